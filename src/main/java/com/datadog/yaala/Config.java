@@ -3,6 +3,7 @@ package com.datadog.yaala;
 import io.micrometer.core.instrument.Clock;
 
 import java.time.Duration;
+import java.util.List;
 
 import static java.time.Duration.ofMinutes;
 import static java.time.Duration.ofSeconds;
@@ -21,6 +22,13 @@ public interface Config {
         return LogFormat.CLF;
     }
 
+    /**
+     * @return the expressions the lines must all match to be monitored (default is none), see {@link TrafficFilter}.
+     */
+    default List<String> filters() {
+        return List.of();
+    }
+
     /**
      * @return the UI refresh period in milliseconds (default is 200ms);
      */
@@ -36,6 +44,95 @@ public interface Config {
         return 1;
     }
 
+    /**
+     * @return the user supplied route templates (ie. <code>/users/{name}</code>) used to collapse routes
+     * (default is none).
+     */
+    default List<String> routeTemplates() {
+        return List.of();
+    }
+
+    /**
+     * @return the maximum number of raw routes whose normalized section is cached (default is 4096).
+     */
+    default int routeCacheSize() {
+        //noinspection MagicNumber
+        return 4096;
+    }
+
+    /**
+     * @return the maximum number of distinct user agents whose classification is cached (default is 1024).
+     */
+    default int agentCacheSize() {
+        //noinspection MagicNumber
+        return 1024;
+    }
+
+    /**
+     * @return the maximum number of tracked route sections, least recently used ones being evicted
+     * into an <i>other</i> bucket (default is 1000).
+     */
+    default int maxRoutes() {
+        //noinspection MagicNumber
+        return 1000;
+    }
+
+    /**
+     * @return the number of most frequent clients to track and display (default is 10).
+     */
+    default int topClients() {
+        //noinspection MagicNumber
+        return 10;
+    }
+
+    /**
+     * @return the maximum number of clients whose hits and bytes are counted exactly in an off-heap table, or 0 not
+     * to count them (default is 0).
+     */
+    default int clientTableSize() {
+        return 0;
+    }
+
+    /**
+     * @return the number of most recent events kept in a columnar buffer for {@link EventQuery}s, or 0 not to keep
+     * any (default is 0).
+     */
+    default int recentEvents() {
+        return 0;
+    }
+
+    /**
+     * @return the approximate number of bytes the statistics may use, above which they are degraded gracefully,
+     * or 0 not to bound them (default is 0), see {@link LogStatistics}.
+     */
+    default long memoryBudget() {
+        return 0L;
+    }
+
+    /**
+     * @return the number of threads parsing and aggregating lines, or 1 to do so on the main thread (default is 1).
+     */
+    default int shards() {
+        return 1;
+    }
+
+    /**
+     * @return the number of bytes behind the end of the log above which lines start being sampled in order to
+     * catch up, or 0 to never shed any load (default is 16MB).
+     */
+    default long shedLag() {
+        //noinspection MagicNumber
+        return 16L << 20;
+    }
+
+    /**
+     * @return the minimum rate at which lines are sampled when shedding load (default is 1%).
+     */
+    default double minSampleRate() {
+        //noinspection MagicNumber
+        return 0.01;
+    }
+
     /**
      * @return the rate of total requests per second at which point an alert will be displayed (default is 10 rps).
      */
@@ -44,12 +141,37 @@ public interface Config {
     }
 
     /**
-     * @return the {@link Clock} used to calculate rates (used primarily for testing).
+     * @return the number of standard deviations away from its baseline at which a route metric is deemed anomalous,
+     * or 0 to disable anomaly detection (default is 3).
+     */
+    default double anomalySigma() {
+        //noinspection MagicNumber
+        return 3.0;
+    }
+
+    /**
+     * @return the {@link Clock} used to calculate rates (used primarily for testing, and when replaying logs in
+     * which case it is a {@link com.datadog.yaala.util.ReplayClock}).
      */
     default Clock clock() {
         return Clock.SYSTEM;
     }
 
+    /**
+     * @return whether requests are aggregated by the time they were logged, rps alerts being evaluated on finalized
+     * event time buckets (default is {@code false}).
+     */
+    default boolean eventTime() {
+        return false;
+    }
+
+    /**
+     * @return how late events may arrive when aggregating by event time, before being dropped (default is 5s).
+     */
+    default Duration allowedLateness() {
+        return ofSeconds(5);
+    }
+
     /**
      * @return the step size (ie. reporting frequency) to use. Primarily for calculating means/avgs
      * (used primarily for testing; default is 10s)
@@ -1,31 +1,86 @@
 package com.datadog.yaala;
 
+import com.datadog.yaala.net.SyslogReceiver;
+import com.datadog.yaala.ui.SortOrder;
 import com.datadog.yaala.ui.UIModel;
 import com.datadog.yaala.util.EvictingBuffer;
+import com.datadog.yaala.util.LineFilter;
+import com.datadog.yaala.util.ReplayClock;
+import io.micrometer.core.instrument.FunctionCounter;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
+import static io.micrometer.core.instrument.Metrics.globalRegistry;
 import static java.lang.String.format;
+import static java.lang.System.nanoTime;
 import static java.time.Instant.ofEpochMilli;
 import static java.time.ZoneId.systemDefault;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableMap;
 
 /**
  * Default implementation of the {@link UIModel}.
  */
-public class DefaultUIModel implements UIModel {
+public class DefaultUIModel implements UIModel, AutoCloseable {
 
     private final Config cfg;
     private final LogStatistics statistics;
     private final EvictingBuffer<String> logs;
+    private final PipelineMetrics pipeline;
+    private final LoadShedder shedder;
+    @Nullable
+    private final TrafficFilter filter;
+    private final LineFilter lineFilter;
+    @Nullable
+    private final ShardedIngest sharded;
+    @Nullable
+    private final ReplayClock replayClock;
+    @Nullable
+    private final FormatDetector detector;
+    @Nullable
+    private StatsExporter exporter;
+    @Nullable
+    private SyslogReceiver syslog;
+
+    // Lines filtered out since the last call to processSkipped, and overall
+    private int filtered;
+    private long totalFiltered;
+    // The weight of the lines sampled at the rate the last batch was read with, before adapting it
+    private double batchWeight = 1.0;
+    private long sinceMs = Long.MIN_VALUE;
+    private long untilMs = Long.MAX_VALUE;
+    // Step during which the statistics of the shards were last collected
+    private long collectedStep;
 
     private int maxStats;
+    private SortOrder sortOrder = SortOrder.HITS;
+    private String routeFilter = "";
+    @Nullable
+    private Predicate<String> routeMatcher;
+    @Nullable
+    private EventQuery query;
 
     DefaultUIModel(Config cfg) {
         this.cfg = cfg;
         this.statistics = new LogStatistics(cfg);
         this.logs = new EvictingBuffer<>();
+        this.pipeline = new PipelineMetrics(globalRegistry);
+        this.shedder = new LoadShedder(cfg);
+        pipeline.registerSampling(shedder::rate, globalRegistry);
+        this.filter = cfg.filters().isEmpty() ? null : TrafficFilter.compile(cfg.filters());
+        this.lineFilter = filter != null ? this::acceptLine : shedder;
+        this.sharded = cfg.shards() > 1 ? new ShardedIngest(cfg, cfg.shards(), pipeline) : null;
+        this.replayClock = cfg.clock() instanceof ReplayClock ? (ReplayClock) cfg.clock() : null;
+        this.detector = cfg.logFormat() == LogFormat.AUTO ? new FormatDetector() : null;
     }
 
     @Override
@@ -35,15 +90,102 @@ public class DefaultUIModel implements UIModel {
 
     @Override
     public void forEachRoute(Consumer<Map<String, Object>> action) {
-        var stats = statistics.getRouteStatistics();
-        int i = 0;
-        for (var rs : stats) {
-            if (i == maxStats) {
-                break;
+        collectShards();
+        statistics.getRouteStatistics(sortOrder, routeMatcher, maxStats).forEach(action);
+    }
+
+    @Override
+    public SortOrder getSortOrder() {
+        return sortOrder;
+    }
+
+    @Override
+    public void setSortOrder(SortOrder order) {
+        sortOrder = order;
+    }
+
+    @Override
+    public String getRouteFilter() {
+        return routeFilter;
+    }
+
+    @Override
+    public void setRouteFilter(String filter) {
+        routeFilter = filter;
+        routeMatcher = compileFilter(filter);
+    }
+
+    /**
+     * @return a predicate matching routes either by prefix or by regex (if prefixed by a <code>~</code>), or
+     * {@code null} if the filter is empty. Invalid regexes are matched literally.
+     */
+    @Nullable
+    static Predicate<String> compileFilter(String filter) {
+        if (filter.isEmpty()) {
+            return null;
+        } else if (filter.length() > 1 && filter.charAt(0) == '~') {
+            try {
+                return Pattern.compile(filter.substring(1)).asPredicate();
+            } catch (PatternSyntaxException ignored) {
+                var literal = filter.substring(1);
+                return route -> route.contains(literal);
             }
-            action.accept(rs);
-            i++;
         }
+        return route -> route.startsWith(filter);
+    }
+
+    @Override
+    public void forEachClient(Consumer<Map<String, Object>> action) {
+        // Leave room for the panel header
+        statistics.getTopClients(Math.min(cfg.topClients(), logs.getCapacity() - 1)).forEach(action);
+    }
+
+    @Override
+    public void forEachRouteClients(Consumer<Map<String, Object>> action) {
+        statistics.getRouteTopClients(Math.min(maxStats, logs.getCapacity() - 1)).forEach(action);
+    }
+
+    @Override
+    public void forEachUpstream(Consumer<Map<String, Object>> action) {
+        statistics.getSlowestUpstreams(logs.getCapacity() - 1).forEach(action);
+    }
+
+    @Override
+    public void forEachUpstreamPod(Consumer<Map<String, Object>> action) {
+        statistics.getSlowestUpstreamPods(logs.getCapacity() - 1).forEach(action);
+    }
+
+    @Override
+    public String getQuery() {
+        return query != null ? query.toString() : "";
+    }
+
+    @Override
+    public void setQuery(String query) {
+        if (query.isBlank()) {
+            this.query = null;
+            return;
+        }
+        var parsed = EventQuery.parse(query);
+        // Fails fast when no recent events are kept
+        statistics.query(parsed);
+        this.query = parsed;
+    }
+
+    @Override
+    public void forEachQueryResult(Consumer<Map<String, Object>> action) {
+        if (query != null) {
+            var results = statistics.query(query);
+            results.subList(0, Math.min(results.size(), logs.getCapacity() - 1)).forEach(action);
+        }
+    }
+
+    /**
+     * @return the results of the arg <i>query</i> of the recent events.
+     * @throws IllegalArgumentException if the query is invalid, or no recent events are kept.
+     */
+    List<Map<String, Object>> query(String query) {
+        return statistics.query(EventQuery.parse(query));
     }
 
     @Override
@@ -66,12 +208,60 @@ public class DefaultUIModel implements UIModel {
         return statistics.totalRps();
     }
 
+    @Override
+    public long uniqueVisitors() {
+        return statistics.uniqueVisitors();
+    }
+
+    @Override
+    public long uniqueUsers() {
+        return statistics.uniqueUsers();
+    }
+
+    @Override
+    public double samplingRate() {
+        return shedder.rate();
+    }
+
+    @Override
+    public int anomalies() {
+        return statistics.getAnomalies().size();
+    }
+
+    @Override
+    public int slowUpstreams() {
+        return statistics.getSlowUpstreams().size();
+    }
+
     @Override
     public long parseErrors() {
         //noinspection NumericCastThatLosesPrecision
         return (long) LogFormat.LINE_ERRORS.count();
     }
 
+    @Override
+    public Map<String, String> getPipelineStats() {
+        var stats = pipeline.toDisplayMap();
+        if (detector != null) {
+            stats.put("log format", detector.summary());
+        }
+        statistics.eventTimeSummary().ifPresent(summary -> stats.put("event time", summary));
+        statistics.clientTableSummary().ifPresent(summary -> stats.put("client table", summary));
+        statistics.userAgentsSummary().ifPresent(summary -> stats.put("user agents", summary));
+        statistics.recentEventsSummary().ifPresent(summary -> stats.put("recent events", summary));
+        stats.put("memory", statistics.memorySummary());
+        if (filter != null) {
+            stats.put("filter", format("%s (%d lines filtered out)", filter, totalFiltered));
+        }
+        if (exporter != null) {
+            stats.put("export", exporter.summary());
+        }
+        if (syslog != null) {
+            stats.put("syslog", syslog.summary());
+        }
+        return stats;
+    }
+
     @Override
     public Optional<String> getAlertString() {
         return statistics
@@ -80,21 +270,228 @@ public class DefaultUIModel implements UIModel {
               var wallTime = e.getKey();
               var rps = e.getValue();
               var ldt = ofEpochMilli(wallTime).atZone(systemDefault()).toLocalDateTime();
-              return format("High traffic generated an alert: rps=%.2f, triggered at %s", rps, ldt);
+              var msg = format("High traffic generated an alert: rps=%.2f, triggered at %s", rps, ldt);
+              var clients = statistics.getAlertClients();
+              if (!clients.isEmpty()) {
+                  var top = clients.get(0);
+                  msg += format(" (top client %s: %.0f%%)", top.get("client"), (Double) top.get("share"));
+              }
+              var anomalies = statistics.getAlertAnomalies();
+              if (!anomalies.isEmpty()) {
+                  var top = anomalies.get(0);
+                  msg += format(" (%s %s %+.1fσ)", top.get("route"), top.get("metric"), (Double) top.get("z"));
+              }
+              return msg;
           });
     }
 
     /**
-     * Processes the <i>lines</i> and update the internal statistics and logs.
+     * @return an immutable snapshot of the statistics, for the HTTP API to serve.
+     */
+    PublishedStats publish() {
+        collectShards();
+        Map<String, Object> totals = new LinkedHashMap<>(8);
+        totals.put("rps", statistics.totalRps());
+        totals.put("visitors", statistics.uniqueVisitors());
+        totals.put("users", statistics.uniqueUsers());
+        totals.put("parseErrors", parseErrors());
+        totals.put("samplingRate", shedder.rate());
+        List<Map<String, Object>> routes = new ArrayList<>(cfg.maxRoutes());
+        for (var rs : statistics.getRouteStatistics()) {
+            Map<String, Object> route = new LinkedHashMap<>(16);
+            for (var key : PUBLISHED_ROUTE_KEYS) {
+                var value = rs.get(key);
+                // Agents are missing from formats without any
+                if (value != null) {
+                    route.put(key, value);
+                }
+            }
+            routes.add(unmodifiableMap(route));
+        }
+        Map<String, Object> alert = new LinkedHashMap<>(8);
+        var trigger = statistics.getAlertTriggerTime();
+        alert.put("active", trigger.isPresent());
+        trigger.ifPresent(e -> {
+            alert.put("triggeredAt", e.getKey());
+            alert.put("rps", e.getValue());
+            alert.put("topClients", statistics.getAlertClients());
+            alert.put("anomalies", statistics.getAlertAnomalies());
+        });
+        Map<String, Object> stats = new LinkedHashMap<>(8);
+        stats.put("time", cfg.clock().wallTime());
+        stats.put("totals", unmodifiableMap(totals));
+        stats.put("routes", unmodifiableList(routes));
+        stats.put("topClients", statistics.getTopClients(cfg.topClients()));
+        stats.put("topAgents", statistics.getTopAgents(cfg.topClients()));
+        if (cfg.clientTableSize() > 0) {
+            stats.put("clientTotals", statistics.getClientTotals(PUBLISHED_CLIENT_TOTALS));
+        }
+        stats.put("alert", unmodifiableMap(alert));
+        stats.put("anomalies", statistics.getAnomalies());
+        stats.put("upstreams", statistics.getSlowestUpstreams(PUBLISHED_UPSTREAMS));
+        stats.put("histograms", unmodifiableMap(pipeline.histograms()));
+        return new PublishedStats(unmodifiableMap(stats), PublishedStats.sampleMeters(statistics.registry()));
+    }
+
+    PipelineMetrics pipeline() {
+        return pipeline;
+    }
+
+    /**
+     * @return the filter deciding which lines should be parsed: those matching the filter expressions, if any, then
+     * sampled when shedding load.
+     */
+    LineFilter lineFilter() {
+        return lineFilter;
+    }
+
+    private boolean acceptLine(byte[] buf, int off, int len) {
+        assert filter != null;
+        if (!filter.accept(buf, off, len)) {
+            filtered++;
+            return false;
+        }
+        return shedder.accept(buf, off, len);
+    }
+
+    /**
+     * Counts the lines which were skipped when shedding load (lines filtered out aren't requests of interest), then
+     * adapts the sampling rate to the arg <i>lag</i>, the lines of the batch still being weighted by the rate they
+     * were sampled at.
+     */
+    void processSkipped(int skipped, long lag) {
+        statistics.incRequests(skipped - filtered);
+        totalFiltered += filtered;
+        filtered = 0;
+        batchWeight = shedder.weight();
+        shedder.adapt(lag);
+    }
+
+    /**
+     * Exports the route statistics of every step with the arg <i>exporter</i> from now on.
+     */
+    void exportTo(StatsExporter exporter) {
+        this.exporter = exporter;
+        statistics.exportTo(exporter);
+    }
+
+    /**
+     * Adds a message to the displayed logs (ie. agent connections).
+     */
+    void addLog(String msg) {
+        logs.add(msg);
+    }
+
+    /**
+     * @return the delta of all statistics since the previous call, for an aggregator to merge.
+     */
+    StatsSnapshot snapshotDelta(String agent) {
+        collectShards();
+        return statistics.snapshotDelta(agent);
+    }
+
+    /**
+     * Merges a snapshot delta received from an agent.
+     */
+    void mergeSnapshot(StatsSnapshot snapshot) {
+        statistics.merge(snapshot);
+    }
+
+    /**
+     * Processes the <i>lines</i> and update the internal statistics and logs. When sharding, lines are handed over
+     * to the shards instead, whose statistics are only merged when read (see {@link #collectShards()}).
      */
     void processLines(Iterable<String> lines) {
+        double weight = batchWeight;
+        if (sharded != null) {
+            for (var line : lines) {
+                // Noise isn't worth handing over, shards tell the formats apart again from the shape of the lines
+                if (detector == null || detector.dispatch(line) != null) {
+                    sharded.dispatch(line, weight);
+                }
+                logs.add(format("%s%n", line));
+            }
+            // Steps must be complete before being evaluated (and exported)
+            if (stepOf(cfg.clock().wallTime()) != collectedStep) {
+                collectShards();
+            }
+            statistics.refreshAlert();
+            return;
+        }
+        var logFormat = cfg.logFormat();
         for (var line : lines) {
-            cfg
-              .logFormat()
-              .parse(line)
-              .ifPresentOrElse(statistics::ingest, statistics::incRequests);
             logs.add(format("%s%n", line));
+            var lineFormat = detector != null ? detector.dispatch(line) : logFormat;
+            if (lineFormat == null) {
+                continue;
+            }
+            long start = nanoTime();
+            var evt = lineFormat.parse(line);
+            pipeline.recordParse(nanoTime() - start, evt.isPresent());
+            evt.ifPresentOrElse(e -> ingest(e, weight), statistics::incRequests);
         }
         statistics.refreshAlert();
     }
+
+    /**
+     * Merges the statistics the shards accumulated since the previous call, if sharding. Only called when the
+     * statistics are read (ie. rendered, published, sent to an aggregator) or a step ends, so that the main loop
+     * doesn't merge them after every batch.
+     */
+    private void collectShards() {
+        if (sharded != null) {
+            sharded.collect(statistics::merge, pipeline);
+            collectedStep = stepOf(cfg.clock().wallTime());
+        }
+    }
+
+    private long stepOf(long time) {
+        return time / cfg.step().toMillis();
+    }
+
+    private void ingest(LogEvent evt, double weight) {
+        long time = evt.getLocalTime().toInstant().toEpochMilli();
+        if (time < sinceMs || time > untilMs) {
+            return;
+        }
+        // When replaying, time only passes as events are read, hence the alert state must follow it event by event
+        if (replayClock != null && replayClock.advance(time)) {
+            statistics.refreshAlert();
+        }
+        statistics.ingest(evt, weight);
+    }
+
+    /**
+     * Only ingests the events logged between <i>sinceMs</i> and <i>untilMs</i> (inclusive) from now on. The range
+     * isn't applied when sharding.
+     */
+    void setTimeRange(long sinceMs, long untilMs) {
+        this.sinceMs = sinceMs;
+        this.untilMs = untilMs;
+    }
+
+    /**
+     * Monitors the arg <i>receiver</i> from which lines are read from now on.
+     */
+    void receiveFrom(SyslogReceiver receiver) {
+        this.syslog = receiver;
+        pipeline.registerQueue("syslog", receiver::pendingBuffers, globalRegistry);
+        FunctionCounter.builder("syslog.datagrams", receiver, SyslogReceiver::datagrams).register(globalRegistry);
+        FunctionCounter.builder("syslog.dropped", receiver, SyslogReceiver::dropped).register(globalRegistry);
+    }
+
+    /**
+     * Stops the shards, if sharding.
+     */
+    @Override
+    public void close() {
+        if (sharded != null) {
+            sharded.close();
+        }
+    }
+
+    private static final int PUBLISHED_CLIENT_TOTALS = 100;
+    private static final int PUBLISHED_UPSTREAMS = 100;
+    private static final List<String> PUBLISHED_ROUTE_KEYS =
+      List.of("route", "hits", "increase", "throughput", "visitors", "users", "errors", "latency", "anomaly", "agents");
 }
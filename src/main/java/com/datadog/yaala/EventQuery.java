@@ -0,0 +1,617 @@
+package com.datadog.yaala;
+
+import com.datadog.yaala.RecentEvents.Dimension;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+import static java.util.Collections.reverse;
+import static java.util.Collections.unmodifiableMap;
+
+/**
+ * An ad-hoc aggregation of the {@link RecentEvents}, parsed from a small query language:
+ * <pre>
+ * count by status
+ * sum(bytes) by client where status=404 last 5m
+ * avg(latency) by route where method=POST,PUT and status>=5xx top 20
+ * </pre>
+ * <ul>
+ * <li>The aggregate is either <code>count</code>, or the <code>sum</code>, <code>avg</code> or <code>max</code> of
+ * <code>bytes</code> or <code>latency</code> (in milliseconds, events without any being ignored).</li>
+ * <li>Events are grouped <code>by</code> <code>client</code>, <code>user</code>, <code>method</code>,
+ * <code>route</code> (section) or <code>status</code>, or make up a single group otherwise.</li>
+ * <li>Conditions are joined by <code>and</code>, and follow the syntax of the {@link TrafficFilter} clauses, the
+ * <code>user</code> and <code>latency</code> fields aside: clients are only compared to exact addresses, or
+ * prefixes ending with <code>*</code> like the other strings.</li>
+ * <li><code>last</code> only scans the events logged over the last seconds, minutes, hours or days (ie.
+ * <code>5m</code>), and only the <code>top</code> 10 groups by decreasing aggregate are kept unless specified.</li>
+ * </ul>
+ * Scans are vectorized: rows are processed by batches whose selection vector is narrowed by each condition in turn,
+ * a column at a time, then the selected rows are aggregated into dense arrays indexed by group (the dictionary ids
+ * or the statuses). Conditions on strings are evaluated once per dictionary entry rather than once per row.
+ * Buffers of millions of rows are split into as many ranges as there are cores, scanned in parallel in the common
+ * fork join pool, then merged.
+ *
+ * @author Nicolas Estrada.
+ */
+@SuppressWarnings("MagicCharacter")
+final class EventQuery {
+
+    private final String query;
+    private final Function function;
+    @Nullable
+    private final Field measure;
+    @Nullable
+    private final Field group;
+    private final List<Condition> conditions;
+    private final long lastMs;
+    private final int top;
+
+    private EventQuery(String query, Function function, @Nullable Field measure, @Nullable Field group,
+                       List<Condition> conditions, long lastMs, int top) {
+        this.query = query;
+        this.function = function;
+        this.measure = measure;
+        this.group = group;
+        this.conditions = conditions;
+        this.lastMs = lastMs;
+        this.top = top;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the arg <i>query</i> is invalid.
+     */
+    static EventQuery parse(String query) {
+        // Conditions are single tokens, whatever the spacing around their operator
+        var tokens = query.trim().replaceAll("\\s*(!=|==|<=|>=|=|<|>)\\s*", "$1").split("\\s+");
+        var aggregate = tokens[0].toLowerCase(Locale.ROOT);
+        Function function;
+        Field measure = null;
+        if ("count".equals(aggregate)) {
+            function = Function.COUNT;
+        } else {
+            int open = aggregate.indexOf('(');
+            if (open < 0 || !aggregate.endsWith(")")) {
+                throw new IllegalArgumentException("invalid aggregate: " + tokens[0]);
+            }
+            function = Function.of(aggregate.substring(0, open));
+            measure = Field.of(aggregate.substring(open + 1, aggregate.length() - 1));
+            if (function == Function.COUNT || !measure.measure) {
+                throw new IllegalArgumentException("invalid aggregate: " + tokens[0]);
+            }
+        }
+        Field group = null;
+        List<Condition> conditions = new ArrayList<>(4);
+        long lastMs = 0L;
+        int top = DEFAULT_TOP;
+        int i = 1;
+        while (i < tokens.length) {
+            switch (tokens[i].toLowerCase(Locale.ROOT)) {
+                case "by":
+                    group = Field.of(operand(tokens, i));
+                    if (!group.groupable) {
+                        throw new IllegalArgumentException("can't group by " + tokens[i + 1]);
+                    }
+                    i += 2;
+                    break;
+                case "where":
+                    conditions.add(condition(operand(tokens, i)));
+                    i += 2;
+                    while (i < tokens.length && ("and".equalsIgnoreCase(tokens[i]) || "&&".equals(tokens[i]))) {
+                        conditions.add(condition(operand(tokens, i)));
+                        i += 2;
+                    }
+                    break;
+                case "last":
+                    lastMs = parseDuration(operand(tokens, i));
+                    i += 2;
+                    break;
+                case "top":
+                    var operand = operand(tokens, i);
+                    try {
+                        top = Integer.parseInt(operand);
+                    } catch (NumberFormatException e) {
+                        top = -1;
+                    }
+                    if (top < 1) {
+                        throw new IllegalArgumentException("invalid top: " + operand);
+                    }
+                    i += 2;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unexpected '" + tokens[i] + "'");
+            }
+        }
+        return new EventQuery(query.trim(), function, measure, group, conditions, lastMs, top);
+    }
+
+    private static String operand(String[] tokens, int keyword) {
+        if (keyword + 1 >= tokens.length) {
+            throw new IllegalArgumentException("missing operand after '" + tokens[keyword] + "'");
+        }
+        return tokens[keyword + 1];
+    }
+
+    private static Condition condition(String condition) {
+        int opStart = 0;
+        while (opStart < condition.length() && Character.isLetter(condition.charAt(opStart))) {
+            opStart++;
+        }
+        int opEnd = opStart;
+        while (opEnd < condition.length() && "=!<>".indexOf(condition.charAt(opEnd)) >= 0) {
+            opEnd++;
+        }
+        var field = Field.of(condition.substring(0, opStart));
+        var op = condition.substring(opStart, opEnd);
+        var values = condition.substring(opEnd).split(",");
+        if (values[0].isEmpty()) {
+            throw new IllegalArgumentException("invalid condition: " + condition);
+        }
+        if (field.dimension != null) {
+            if (!"=".equals(op) && !"==".equals(op) && !"!=".equals(op)) {
+                throw new IllegalArgumentException("only = and != are supported: " + condition);
+            }
+            return new StringCondition(field.dimension, !"!=".equals(op), values);
+        }
+        return new NumberCondition(field, op, values, condition);
+    }
+
+    private static long parseDuration(String duration) {
+        long unit;
+        switch (duration.charAt(duration.length() - 1)) {
+            case 's':
+                unit = 1000L;
+                break;
+            case 'm':
+                unit = 60_000L;
+                break;
+            case 'h':
+                unit = 3_600_000L;
+                break;
+            case 'd':
+                unit = 86_400_000L;
+                break;
+            default:
+                throw new IllegalArgumentException("invalid duration: " + duration);
+        }
+        try {
+            long n = Long.parseLong(duration.substring(0, duration.length() - 1));
+            if (n > 0) {
+                return n * unit;
+            }
+        } catch (NumberFormatException ignored) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("invalid duration: " + duration);
+    }
+
+    /**
+     * Runs the query over the arg <i>events</i>.
+     *
+     * @param nowMs the current time, in milliseconds since the epoch, from which <code>last</code> is counted.
+     * @return the top groups by decreasing aggregate, each as a map of the group (unless there is none) and the
+     * aggregate, by name.
+     */
+    List<Map<String, Object>> execute(RecentEvents events, long nowMs) {
+        List<Selector> selectors = new ArrayList<>(conditions.size() + 1);
+        if (lastMs > 0) {
+            long from = nowMs - lastMs;
+            var times = events.times();
+            selectors.add((sel, n) -> {
+                int m = 0;
+                for (int k = 0; k < n; k++) {
+                    int row = sel[k];
+                    if (times[row] >= from) {
+                        sel[m++] = row;
+                    }
+                }
+                return m;
+            });
+        }
+        for (var condition : conditions) {
+            selectors.add(condition.bind(events));
+        }
+        int rows = events.size();
+        int groups = group == null ? 1 : group.dimension != null ? events.dictionary(group.dimension).size() : STATUSES;
+        int ranges = rows >= PARALLEL_ROWS ? Runtime.getRuntime().availableProcessors() : 1;
+        Partial total;
+        if (ranges == 1) {
+            total = scan(events, selectors, groups, 0, rows);
+        } else {
+            total = IntStream
+              .range(0, ranges)
+              .parallel()
+              .mapToObj(r -> scan(events, selectors, groups, (int) ((long) rows * r / ranges),
+                (int) ((long) rows * (r + 1) / ranges)))
+              .reduce(this::merge)
+              .orElseThrow();
+        }
+        return results(events, total, groups);
+    }
+
+    /**
+     * Scans the rows between <i>from</i> and <i>to</i> by batches.
+     */
+    private Partial scan(RecentEvents events, List<Selector> selectors, int groups, int from, int to) {
+        var partial = new Partial(groups, function);
+        var sel = new int[BATCH];
+        var keys = new int[BATCH];
+        var values = new double[BATCH];
+        for (int start = from; start < to; start += BATCH) {
+            int n = Math.min(BATCH, to - start);
+            for (int k = 0; k < n; k++) {
+                sel[k] = start + k;
+            }
+            for (int s = 0; s < selectors.size() && n > 0; s++) {
+                n = selectors.get(s).select(sel, n);
+            }
+            if (n > 0) {
+                gatherKeys(events, sel, keys, n);
+                gatherValues(events, sel, values, n);
+                partial.accumulate(keys, values, n);
+            }
+        }
+        return partial;
+    }
+
+    private void gatherKeys(RecentEvents events, int[] sel, int[] keys, int n) {
+        if (group == null) {
+            Arrays.fill(keys, 0, n, 0);
+        } else if (group.dimension != null) {
+            var ids = events.ids(group.dimension);
+            for (int k = 0; k < n; k++) {
+                keys[k] = ids[sel[k]];
+            }
+        } else {
+            var statuses = events.statuses();
+            for (int k = 0; k < n; k++) {
+                keys[k] = Math.min(Math.max(statuses[sel[k]], 0), STATUSES - 1);
+            }
+        }
+    }
+
+    private void gatherValues(RecentEvents events, int[] sel, double[] values, int n) {
+        if (measure == Field.BYTES) {
+            var bytes = events.bytes();
+            for (int k = 0; k < n; k++) {
+                values[k] = bytes[sel[k]];
+            }
+        } else if (measure == Field.LATENCY) {
+            var latencies = events.latencies();
+            for (int k = 0; k < n; k++) {
+                values[k] = latencies[sel[k]];
+            }
+        } else {
+            Arrays.fill(values, 0, n, 0.0);
+        }
+    }
+
+    private Partial merge(Partial a, Partial b) {
+        for (int g = 0; g < a.counts.length; g++) {
+            a.counts[g] += b.counts[g];
+            a.values[g] = function == Function.MAX ? Math.max(a.values[g], b.values[g]) : a.values[g] + b.values[g];
+        }
+        return a;
+    }
+
+    /**
+     * Selects the top groups with a bounded min heap.
+     */
+    private List<Map<String, Object>> results(RecentEvents events, Partial total, int groups) {
+        double[] aggregates = new double[groups];
+        var heap = new PriorityQueue<Integer>(top + 1, Comparator.comparingDouble(g -> aggregates[g]));
+        for (int g = 0; g < groups; g++) {
+            long count = total.counts[g];
+            // Without any group, the aggregate of no events is still reported
+            if (count == 0 && group != null) {
+                continue;
+            }
+            aggregates[g] = function == Function.COUNT ? count :
+              function == Function.AVG ? total.values[g] / count :
+                total.values[g];
+            heap.add(g);
+            if (heap.size() > top) {
+                heap.poll();
+            }
+        }
+        var label = function == Function.COUNT ? "count" : function.name + '(' + measure.name + ')';
+        var dictionary = group != null && group.dimension != null ? events.dictionary(group.dimension) : null;
+        var results = new ArrayList<Map<String, Object>>(heap.size());
+        while (!heap.isEmpty()) {
+            int g = heap.poll();
+            Map<String, Object> result = new LinkedHashMap<>(4);
+            if (group != null) {
+                result.put(group.name, dictionary != null ? dictionary.value(g) : (Object) g);
+            }
+            double aggregate = aggregates[g];
+            boolean integral = function == Function.COUNT || (measure == Field.BYTES && function != Function.AVG);
+            result.put(label, integral ? (Object) (long) aggregate : (Object) aggregate);
+            results.add(unmodifiableMap(result));
+        }
+        reverse(results);
+        return results;
+    }
+
+    @Override
+    public String toString() {
+        return query;
+    }
+
+    /**
+     * The counts and sums (or maxima) of a range of rows, by group.
+     */
+    private static final class Partial {
+
+        private final Function function;
+        private final long[] counts;
+        private final double[] values;
+
+        private Partial(int groups, Function function) {
+            this.function = function;
+            this.counts = new long[groups];
+            this.values = new double[groups];
+            if (function == Function.MAX) {
+                Arrays.fill(values, Double.NEGATIVE_INFINITY);
+            }
+        }
+
+        /**
+         * Aggregates the first <i>n</i> values by key, skipping the NaN ones.
+         */
+        private void accumulate(int[] keys, double[] batch, int n) {
+            if (function == Function.MAX) {
+                for (int k = 0; k < n; k++) {
+                    double v = batch[k];
+                    if (v == v) {
+                        counts[keys[k]]++;
+                        values[keys[k]] = Math.max(values[keys[k]], v);
+                    }
+                }
+            } else {
+                for (int k = 0; k < n; k++) {
+                    double v = batch[k];
+                    if (v == v) {
+                        counts[keys[k]]++;
+                        values[keys[k]] += v;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Narrows the first <i>n</i> rows of a selection vector down to those matching a condition, in place.
+     */
+    @FunctionalInterface
+    private interface Selector {
+
+        /**
+         * @return the number of selected rows left.
+         */
+        int select(int[] sel, int n);
+    }
+
+    private interface Condition {
+
+        /**
+         * @return a selector over the current columns of the arg <i>events</i>.
+         */
+        Selector bind(RecentEvents events);
+    }
+
+    /**
+     * Compares a dictionary encoded column to exact values, or to prefixes ending with <code>*</code>, by matching
+     * every dictionary entry once.
+     */
+    private static final class StringCondition implements Condition {
+
+        private final Dimension dimension;
+        private final boolean eq;
+        private final String[] values;
+
+        private StringCondition(Dimension dimension, boolean eq, String[] values) {
+            this.dimension = dimension;
+            this.eq = eq;
+            this.values = values;
+        }
+
+        @Override
+        public Selector bind(RecentEvents events) {
+            var dictionary = events.dictionary(dimension);
+            var matches = new boolean[dictionary.size()];
+            for (int id = 0; id < matches.length; id++) {
+                matches[id] = matches(dictionary.value(id)) == eq;
+            }
+            var ids = events.ids(dimension);
+            return (sel, n) -> {
+                int m = 0;
+                for (int k = 0; k < n; k++) {
+                    int row = sel[k];
+                    if (matches[ids[row]]) {
+                        sel[m++] = row;
+                    }
+                }
+                return m;
+            };
+        }
+
+        private boolean matches(String string) {
+            for (var value : values) {
+                if (value.endsWith("*") ?
+                  string.startsWith(value.substring(0, value.length() - 1)) :
+                  string.equals(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Compares the status, bytes sent or latency, every alternative being an inclusive range so that statuses
+     * classes (ie. <code>5xx</code>) are ranges of a hundred statuses.
+     */
+    private static final class NumberCondition implements Condition {
+
+        private final Field field;
+        private final boolean negate;
+        private final double[] lows;
+        private final double[] highs;
+
+        private NumberCondition(Field field, String op, String[] values, String condition) {
+            this.field = field;
+            this.negate = "!=".equals(op);
+            this.lows = new double[values.length];
+            this.highs = new double[values.length];
+            boolean ordering = !negate && !"=".equals(op) && !"==".equals(op);
+            if (ordering && values.length > 1) {
+                throw new IllegalArgumentException("only = and != support alternatives: " + condition);
+            }
+            for (int i = 0; i < values.length; i++) {
+                var value = values[i];
+                boolean range = field == Field.STATUS && value.length() == 3 && value.endsWith("xx");
+                double low;
+                double high;
+                try {
+                    low = range ? Integer.parseInt(value.substring(0, 1)) * 100 : Double.parseDouble(value);
+                    high = range ? low + 99 : low;
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid number: " + value, e);
+                }
+                switch (op) {
+                    case "<":
+                        high = Math.nextDown(low);
+                        low = Double.NEGATIVE_INFINITY;
+                        break;
+                    case "<=":
+                        low = Double.NEGATIVE_INFINITY;
+                        break;
+                    case ">":
+                        low = Math.nextUp(high);
+                        high = Double.POSITIVE_INFINITY;
+                        break;
+                    case ">=":
+                        high = Double.POSITIVE_INFINITY;
+                        break;
+                    case "=":
+                    case "==":
+                    case "!=":
+                        break;
+                    default:
+                        throw new IllegalArgumentException("invalid condition: " + condition);
+                }
+                lows[i] = low;
+                highs[i] = high;
+            }
+        }
+
+        @Override
+        public Selector bind(RecentEvents events) {
+            if (field == Field.LATENCY) {
+                var latencies = events.latencies();
+                // Events without any latency never match
+                return (sel, n) -> {
+                    int m = 0;
+                    for (int k = 0; k < n; k++) {
+                        int row = sel[k];
+                        float v = latencies[row];
+                        if (v == v && in(v) != negate) {
+                            sel[m++] = row;
+                        }
+                    }
+                    return m;
+                };
+            }
+            var column = field == Field.STATUS ? events.statuses() : events.bytes();
+            return (sel, n) -> {
+                int m = 0;
+                for (int k = 0; k < n; k++) {
+                    int row = sel[k];
+                    if (in(column[row]) != negate) {
+                        sel[m++] = row;
+                    }
+                }
+                return m;
+            };
+        }
+
+        private boolean in(double v) {
+            for (int i = 0; i < lows.length; i++) {
+                if (v >= lows[i] && v <= highs[i]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private enum Function {
+
+        COUNT("count"),
+        SUM("sum"),
+        AVG("avg"),
+        MAX("max");
+
+        private final String name;
+
+        Function(String name) {
+            this.name = name;
+        }
+
+        static Function of(String name) {
+            for (var f : values()) {
+                if (f.name.equals(name)) {
+                    return f;
+                }
+            }
+            throw new IllegalArgumentException("unknown aggregate function: " + name);
+        }
+    }
+
+    private enum Field {
+
+        CLIENT("client", Dimension.CLIENT, true, false),
+        USER("user", Dimension.USER, true, false),
+        METHOD("method", Dimension.METHOD, true, false),
+        ROUTE("route", Dimension.ROUTE, true, false),
+        STATUS("status", null, true, false),
+        BYTES("bytes", null, false, true),
+        LATENCY("latency", null, false, true);
+
+        private final String name;
+        @Nullable
+        private final Dimension dimension;
+        private final boolean groupable;
+        private final boolean measure;
+
+        Field(String name, @Nullable Dimension dimension, boolean groupable, boolean measure) {
+            this.name = name;
+            this.dimension = dimension;
+            this.groupable = groupable;
+            this.measure = measure;
+        }
+
+        static Field of(String name) {
+            for (var f : values()) {
+                if (f.name.equalsIgnoreCase(name)) {
+                    return f;
+                }
+            }
+            throw new IllegalArgumentException("unknown field: " + name);
+        }
+    }
+
+    // Enough for the selection vectors and the gathered columns to stay in the L1 cache
+    private static final int BATCH = 1024;
+    private static final int PARALLEL_ROWS = 1 << 20;
+    private static final int STATUSES = 1000;
+    private static final int DEFAULT_TOP = 10;
+}
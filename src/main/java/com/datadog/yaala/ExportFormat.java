@@ -0,0 +1,111 @@
+package com.datadog.yaala;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * The formats in which per route statistics are exported every step by the {@link StatsExporter}, one row per route.
+ *
+ * @author Nicolas Estrada.
+ */
+@SuppressWarnings("MagicCharacter")
+public enum ExportFormat {
+
+    CSV("csv") {
+        @Nullable
+        @Override
+        String header() {
+            return "time_ms,route," + String.join(",", COLUMNS) + '\n';
+        }
+
+        @Override
+        void append(StringBuilder sb, long timeMs, String route, double[] values) {
+            sb.append(timeMs).append(',');
+            if (route.indexOf(',') >= 0 || route.indexOf('"') >= 0) {
+                sb.append('"').append(route.replace("\"", "\"\"")).append('"');
+            } else {
+                sb.append(route);
+            }
+            for (double v : values) {
+                sb.append(',');
+                if (!Double.isNaN(v)) {
+                    appendValue(sb, v);
+                }
+            }
+            sb.append('\n');
+        }
+    },
+
+    /**
+     * InfluxDB line protocol, ie. <code>yaala_route,route=/api hits=2,bytes=200,... 1525881639000000000</code>.
+     */
+    LINE_PROTOCOL("lp") {
+        @Nullable
+        @Override
+        String header() {
+            return null;
+        }
+
+        @Override
+        void append(StringBuilder sb, long timeMs, String route, double[] values) {
+            sb.append(MEASUREMENT).append(",route=");
+            for (int i = 0; i < route.length(); i++) {
+                char c = route.charAt(i);
+                if (c == ',' || c == ' ' || c == '=' || c == '\\') {
+                    sb.append('\\');
+                }
+                sb.append(c);
+            }
+            char sep = ' ';
+            for (int i = 0; i < values.length; i++) {
+                if (!Double.isNaN(values[i])) {
+                    sb.append(sep).append(COLUMNS.get(i)).append('=');
+                    appendValue(sb, values[i]);
+                    sep = ',';
+                }
+            }
+            sb.append(' ').append(MILLISECONDS.toNanos(timeMs)).append('\n');
+        }
+    };
+
+    /**
+     * The exported values of every route, in order: hits, bytes and status classes over the step, total hits since
+     * startup and request time percentiles over the step (in milliseconds, missing if unknown).
+     */
+    static final List<String> COLUMNS = List.of(
+      "hits", "bytes", "total", "status_2xx", "status_3xx", "status_4xx", "status_5xx", "p50_ms", "p90_ms", "p99_ms");
+
+    private final String extension;
+
+    ExportFormat(String extension) {
+        this.extension = extension;
+    }
+
+    String extension() {
+        return extension;
+    }
+
+    /**
+     * @return the line starting every file, if any.
+     */
+    @Nullable
+    abstract String header();
+
+    /**
+     * Appends the row of a route, the arg <i>values</i> following {@link ExportFormat#COLUMNS} and NaN values being
+     * missing.
+     */
+    abstract void append(StringBuilder sb, long timeMs, String route, double[] values);
+
+    private static void appendValue(StringBuilder sb, double v) {
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) {
+            sb.append((long) v);
+        } else {
+            sb.append(v);
+        }
+    }
+
+    private static final String MEASUREMENT = "yaala_route";
+}
@@ -0,0 +1,98 @@
+package com.datadog.yaala;
+
+import javax.annotation.Nullable;
+import java.util.Optional;
+
+import static java.lang.String.format;
+
+/**
+ * Tells the {@link LogFormat} of every line of a possibly mixed stream (ie. CLF and INGRESS_NGINX lines interleaved
+ * by <code>stern</code> or when tailing several files, along with the ingress controller's own klog lines), so that
+ * each line is handed to its own parser rather than tried against every regex.
+ * <br>
+ * Both formats start with the client followed by <code>" - "</code>, then either the real IP between brackets
+ * (INGRESS_NGINX) or the remote user (CLF): finding the first space and comparing a few chars tells them apart, and
+ * rejects anything else as noise (ie. <code>I0609 12:00:00.000000 1 controller.go:...</code>) in a few nanoseconds,
+ * without counting it as a parse error nor a request.
+ * <br>
+ * The first {@value #SAMPLE_LINES} lines are sampled to report which format the stream is made of, and how mixed it
+ * is.
+ * <br>
+ * It is a naive, non-thread safe implementation.
+ *
+ * @author Nicolas Estrada.
+ */
+final class FormatDetector {
+
+    static final int SAMPLE_LINES = 1000;
+
+    // By format ordinal, the AUTO slot counting noise
+    private final int[] sampled = new int[LogFormat.values().length];
+    private int samples;
+    private long noise;
+
+    /**
+     * @return the format of the arg <i>line</i>, or null if it is noise.
+     */
+    @Nullable
+    LogFormat dispatch(String line) {
+        var format = shapeOf(line);
+        if (samples < SAMPLE_LINES) {
+            sampled[format != null ? format.ordinal() : LogFormat.AUTO.ordinal()]++;
+            samples++;
+        }
+        if (format == null) {
+            noise++;
+            LogFormat.LINE_NOISE.increment();
+        }
+        return format;
+    }
+
+    /**
+     * @return the format the arg <i>line</i> is shaped like, or null if neither.
+     */
+    @Nullable
+    static LogFormat shapeOf(String line) {
+        int sp = line.indexOf(' ');
+        if (sp <= 0 || line.length() <= sp + 3 || !line.startsWith(" - ", sp)) {
+            return null;
+        }
+        return line.charAt(sp + 3) == '[' ? LogFormat.INGRESS_NGINX : LogFormat.CLF;
+    }
+
+    /**
+     * @return the format of most of the sampled lines, if any was sampled.
+     */
+    Optional<LogFormat> detected() {
+        LogFormat detected = null;
+        for (var format : LogFormat.values()) {
+            if (format != LogFormat.AUTO && sampled[format.ordinal()] > 0
+              && (detected == null || sampled[format.ordinal()] > sampled[detected.ordinal()])) {
+                detected = format;
+            }
+        }
+        return Optional.ofNullable(detected);
+    }
+
+    long noise() {
+        return noise;
+    }
+
+    /**
+     * @return the share of every format among the sampled lines, and the number of noise lines so far.
+     */
+    String summary() {
+        if (samples == 0) {
+            return "no line yet";
+        }
+        var sb = new StringBuilder();
+        for (var format : LogFormat.values()) {
+            int n = sampled[format.ordinal()];
+            if (n > 0) {
+                sb.append(format == LogFormat.AUTO ? "noise" : format.name())
+                  .append(format(" %.0f%%, ", 100.0 * n / samples));
+            }
+        }
+        return sb.append(format("%d sampled, %d noise", samples, noise)).toString();
+    }
+}
@@ -0,0 +1,80 @@
+package com.datadog.yaala;
+
+import com.datadog.yaala.util.LineFilter;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Sheds load when yaala cannot keep up with the log it follows, by only parsing a random sample of the lines.
+ * <br>
+ * Once the lag (bytes behind the end of the log) exceeds the configured maximum and keeps on growing, the sampling
+ * rate is halved (down to a minimum) every second, and doubled back once the lag is under control again. Since each
+ * line is kept with probability <i>rate</i>, scaling the sampled events by {@link LoadShedder#weight()} keeps all
+ * estimates unbiased, while the total number of lines remains exact as skipped lines are still counted.
+ *
+ * @author Nicolas Estrada.
+ */
+public final class LoadShedder implements LineFilter {
+
+    private final long maxLag;
+    private final double minRate;
+
+    private double rate = 1.0;
+    private long lastLag;
+    private long lastAdapt = nanoTime();
+    // xorshift state, since a Random would be needlessly synchronized
+    private long seed = nanoTime() | 1L;
+
+    LoadShedder(Config cfg) {
+        this.maxLag = cfg.shedLag();
+        this.minRate = cfg.minSampleRate();
+    }
+
+    @Override
+    public boolean accept(byte[] buf, int off, int len) {
+        if (rate >= 1.0) {
+            return true;
+        }
+        seed ^= seed << 13;
+        seed ^= seed >>> 7;
+        seed ^= seed << 17;
+        // Uniform double in [0, 1) from the upper 53 bits
+        return (seed >>> 11) * 0x1.0p-53 < rate;
+    }
+
+    /**
+     * Adapts the sampling rate to the arg <i>lag</i>, at most once per second.
+     */
+    void adapt(long lag) {
+        long now = nanoTime();
+        if (maxLag <= 0 || now - lastAdapt < ADAPT_PERIOD_NS) {
+            return;
+        }
+        if (lag > maxLag && lag >= lastLag) {
+            rate = max(minRate, rate / 2);
+        } else if (lag < maxLag >> 2) {
+            rate = min(1.0, rate * 2);
+        }
+        lastLag = lag;
+        lastAdapt = now;
+    }
+
+    /**
+     * @return the probability of a line being kept.
+     */
+    public double rate() {
+        return rate;
+    }
+
+    /**
+     * @return the weight of every sampled event (ie. the inverse of the sampling rate).
+     */
+    public double weight() {
+        return 1.0 / rate;
+    }
+
+    private static final long ADAPT_PERIOD_NS = SECONDS.toNanos(1);
+}
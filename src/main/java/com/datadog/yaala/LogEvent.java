@@ -23,10 +23,47 @@ public class LogEvent {
     private final String protocol;
     private final int status;
     private final int bytesSent;
+    private final double requestTime;
+    // Upstream fields, comma separated lists when the request was retried
+    @Nullable
+    private final String upstreamName;
+    @Nullable
+    private final String upstreamAddr;
+    @Nullable
+    private final String upstreamResponseTime;
+    @Nullable
+    private final String upstreamStatus;
+    @Nullable
+    private final String userAgent;
 
     LogEvent(String clientIP, String remoteUser, ZonedDateTime localTime,
              String method, String route, String protocol,
              int status, int bytesSent) {
+        this(clientIP, remoteUser, localTime, method, route, protocol, status, bytesSent, Double.NaN);
+    }
+
+    LogEvent(String clientIP, String remoteUser, ZonedDateTime localTime,
+             String method, String route, String protocol,
+             int status, int bytesSent, double requestTime) {
+        this(clientIP, remoteUser, localTime, method, route, protocol, status, bytesSent, requestTime,
+          null, null, null, null);
+    }
+
+    LogEvent(String clientIP, String remoteUser, ZonedDateTime localTime,
+             String method, String route, String protocol,
+             int status, int bytesSent, double requestTime,
+             @Nullable String upstreamName, @Nullable String upstreamAddr,
+             @Nullable String upstreamResponseTime, @Nullable String upstreamStatus) {
+        this(clientIP, remoteUser, localTime, method, route, protocol, status, bytesSent, requestTime,
+          upstreamName, upstreamAddr, upstreamResponseTime, upstreamStatus, null);
+    }
+
+    LogEvent(String clientIP, String remoteUser, ZonedDateTime localTime,
+             String method, String route, String protocol,
+             int status, int bytesSent, double requestTime,
+             @Nullable String upstreamName, @Nullable String upstreamAddr,
+             @Nullable String upstreamResponseTime, @Nullable String upstreamStatus,
+             @Nullable String userAgent) {
         this.clientIP = clientIP;
         this.remoteUser = "-".equals(remoteUser) ? null : remoteUser;
         this.localTime = localTime;
@@ -35,6 +72,12 @@ public class LogEvent {
         this.protocol = protocol;
         this.status = status;
         this.bytesSent = bytesSent;
+        this.requestTime = requestTime;
+        this.upstreamName = upstreamName == null || upstreamName.isEmpty() ? null : upstreamName;
+        this.upstreamAddr = orNull(upstreamAddr);
+        this.upstreamResponseTime = orNull(upstreamResponseTime);
+        this.upstreamStatus = orNull(upstreamStatus);
+        this.userAgent = userAgent;
     }
 
     public String getClientIP() {
@@ -70,6 +113,61 @@ public class LogEvent {
         return bytesSent;
     }
 
+    /**
+     * @return the time it took to serve the request in seconds, or {@link Double#NaN} if the format doesn't have it.
+     */
+    public double getRequestTime() {
+        return requestTime;
+    }
+
+    /**
+     * @return the name of the upstream service which served the request (ie. <code>$proxy_upstream_name</code>), or
+     * {@code null} if the format doesn't have it or the request wasn't proxied.
+     */
+    @Nullable
+    public String getUpstreamName() {
+        return upstreamName;
+    }
+
+    /**
+     * @return the addresses of the upstream pods which were tried (ie. <code>10.0.0.1:80, 10.0.0.2:80</code>), or
+     * {@code null}.
+     */
+    @Nullable
+    public String getUpstreamAddr() {
+        return upstreamAddr;
+    }
+
+    /**
+     * @return the response times of the upstream pods which were tried in seconds, or {@code null}.
+     */
+    @Nullable
+    public String getUpstreamResponseTime() {
+        return upstreamResponseTime;
+    }
+
+    /**
+     * @return the statuses of the upstream pods which were tried, or {@code null}.
+     */
+    @Nullable
+    public String getUpstreamStatus() {
+        return upstreamStatus;
+    }
+
+    /**
+     * @return the user agent of the client (ie. <code>$http_user_agent</code>, <code>-</code> if it sent none), or
+     * {@code null} if the format doesn't have it.
+     */
+    @Nullable
+    public String getUserAgent() {
+        return userAgent;
+    }
+
+    @Nullable
+    private static String orNull(@Nullable String field) {
+        return field == null || "-".equals(field) ? null : field;
+    }
+
     @Override
     public String toString() {
         return format("%s - %s [%s] \"%s %s %s\" %d %d",
@@ -2,6 +2,7 @@ package com.datadog.yaala;
 
 import io.micrometer.core.instrument.Counter;
 
+import javax.annotation.Nullable;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.time.ZonedDateTime;
@@ -10,11 +11,15 @@ import java.util.regex.Pattern;
 
 import static com.datadog.yaala.LogEvent.CLF_DT_FORMAT;
 import static io.micrometer.core.instrument.Metrics.counter;
+import static java.lang.Double.parseDouble;
 import static java.lang.Integer.parseInt;
 import static java.util.Optional.ofNullable;
 
 /**
  * All http log formats should be parsed using this enumerated class.
+ * <br>
+ * {@link LogFormat#AUTO} isn't a format per se: it hands each line to the format its shape matches, see
+ * {@link FormatDetector}.
  *
  * @author Nicolas Estrada.
  */
@@ -28,19 +33,53 @@ public enum LogFormat {
     // $body_bytes_sent "$http_referer" "$http_user_agent" $request_length $request_time [$proxy_upstream_name]
     // $upstream_addr $upstream_response_length $upstream_response_time $upstream_status $req_id';
     INGRESS_NGINX("^(?<cip>[\\S]+) - \\[(\\S+)] - (?<ru>\\S+) \\[(?<lt>[\\w:/]+\\s[+\\-]\\d{4})] " +
-      "\"(?<mth>\\w{3,4}) (?<rt>\\S+) (?<pcl>HTTP/\\d\\.\\d)\" (?<st>\\d{3}) (?<sz>\\d+).*$");
+      "\"(?<mth>\\w{3,4}) (?<rt>\\S+) (?<pcl>HTTP/\\d\\.\\d)\" (?<st>\\d{3}) (?<sz>\\d+)" +
+      "(?: \"[^\"]*\" \"(?<ua>[^\"]*)\" \\d+ (?<rqt>[\\d.]+)" +
+      "(?: \\[(?<ups>[^\\]]*)] (?<upa>" + LogFormat.LIST + ") " + LogFormat.LIST + " (?<upt>" + LogFormat.LIST + ") " +
+      "(?<upst>" + LogFormat.LIST + "))?)?.*$"),
+
+    AUTO(null) {
+        @Override
+        public Optional<LogEvent> parse(String line) {
+            var format = FormatDetector.shapeOf(line);
+            if (format == null) {
+                LINE_NOISE.increment();
+                return Optional.empty();
+            }
+            return format.parse(line);
+        }
+
+        @Override
+        public long parseTime(String line) {
+            var format = FormatDetector.shapeOf(line);
+            return format != null ? format.parseTime(line) : -1L;
+        }
+    };
+
+    // Upstream fields are lists when retried (", " separated) or internally redirected (" : " separated)
+    private static final String LIST = "[^ ,]+(?:(?:, | : )[^ ,]+)*";
 
     public static final Counter LINE_ERRORS = counter("line.errors");
+    // Lines rejected by their shape when detecting formats, which are neither errors nor requests
+    public static final Counter LINE_NOISE = counter("line.noise");
+    @Nullable
     private final Pattern pattern;
+    private final boolean hasRequestTime;
+    private final boolean hasUpstream;
+    private final boolean hasUserAgent;
 
-    LogFormat(String regex) {
-        this.pattern = Pattern.compile(regex);
+    LogFormat(@Nullable String regex) {
+        this.pattern = regex != null ? Pattern.compile(regex) : null;
+        this.hasRequestTime = regex != null && regex.contains("(?<rqt>");
+        this.hasUpstream = regex != null && regex.contains("(?<ups>");
+        this.hasUserAgent = regex != null && regex.contains("(?<ua>");
     }
 
     /**
      * Parses a line into a {@link LogEvent}, or returns {@link Optional#empty()}.
      */
     public Optional<LogEvent> parse(String line) {
+        assert pattern != null;
         var matcher = pattern.matcher(line);
         LogEvent evt = null;
         if (matcher.matches()) {
@@ -53,13 +92,36 @@ public enum LogFormat {
               cleanupRoute(matcher.group("rt")),
               matcher.group("pcl"),
               parseInt(matcher.group("st")),
-              parseInt(matcher.group("sz")));
+              parseInt(matcher.group("sz")),
+              hasRequestTime ? parseRequestTime(matcher.group("rqt")) : Double.NaN,
+              hasUpstream ? matcher.group("ups") : null,
+              hasUpstream ? matcher.group("upa") : null,
+              hasUpstream ? matcher.group("upt") : null,
+              hasUpstream ? matcher.group("upst") : null,
+              hasUserAgent ? matcher.group("ua") : null);
         } else {
             LINE_ERRORS.increment();
         }
         return ofNullable(evt);
     }
 
+    /**
+     * Parses the time of a line only, without accounting it as an error if it can't be parsed.
+     *
+     * @return the time in milliseconds since the epoch, or -1.
+     */
+    public long parseTime(String line) {
+        assert pattern != null;
+        var matcher = pattern.matcher(line);
+        return matcher.matches() ?
+          ZonedDateTime.parse(matcher.group("lt"), CLF_DT_FORMAT).toInstant().toEpochMilli() :
+          -1L;
+    }
+
+    private static double parseRequestTime(@Nullable String requestTime) {
+        return requestTime != null ? parseDouble(requestTime) : Double.NaN;
+    }
+
     private static String cleanupRoute(String route) {
         String clean = route;
         if (route.startsWith("http")) {
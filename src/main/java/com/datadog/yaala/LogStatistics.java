@@ -1,22 +1,49 @@
 package com.datadog.yaala;
 
+import com.datadog.yaala.UserAgents.Category;
+import com.datadog.yaala.ui.SortOrder;
+import com.datadog.yaala.util.CountMinSketch;
+import com.datadog.yaala.util.EventTimeWindows;
+import com.datadog.yaala.util.Ewma;
+import com.datadog.yaala.util.HeavyHitters;
+import com.datadog.yaala.util.Histogram;
 import com.datadog.yaala.util.MeanCounter;
+import com.datadog.yaala.util.OffHeapTable;
+import com.datadog.yaala.util.RollingHyperLogLog;
 import com.datadog.yaala.util.StepConfig;
+import com.datadog.yaala.util.StepHistory;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
+import javax.annotation.Nullable;
+import java.time.Instant;
 import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
+import static com.datadog.yaala.StatsSnapshot.diffRegisters;
+import static com.datadog.yaala.util.Misc.hash64;
 import static io.micrometer.core.instrument.Metrics.globalRegistry;
 import static java.lang.Double.compare;
 import static java.lang.Math.max;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.Comparator.comparingLong;
 import static java.util.Comparator.reverseOrder;
 import static java.util.Optional.empty;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -25,6 +52,24 @@ import static java.util.stream.Collectors.toList;
 /**
  * This class is responsible to ingesting {@link LogEvent}s and accumulating all interesting statistics
  * regarding the latter, as well as handling all alerting logic.
+ * <br>
+ * Routes are kept sorted by hits as events are ingested, and indexed by all other {@link SortOrder}s once per step
+ * since these only change when the step rolls over. Routes created in between are appended to the latter indexes,
+ * which is exact since their previous step values are all zero.
+ * <br>
+ * Every step, the hit rate, error rate and throughput of each route are also scored against their own streaming
+ * {@link Ewma} baseline, so that routes deviating from their usual traffic are flagged as anomalies whatever their
+ * volume. Rising hit or error rates feed the alerting state machine alongside the global rps threshold.
+ * <br>
+ * When aggregating by event time, requests are also summed into {@link EventTimeWindows} by the time they were
+ * logged, and the rps threshold is checked against every finalized bucket instead, at the end time of the latter,
+ * so that neither bursty reads nor interleaved sources trip it.
+ * <br>
+ * The memory used by the route tables, sketches, histories and buffers is estimated from their sizes rather than
+ * measured. Given a budget, the statistics are degraded once per step while above it, from the least to the most
+ * noticeable: the least recently hit routes are merged into <i>other</i>, then the resolution of the route histories
+ * is halved, then the recent events, the user agents cache and the upstream pods are halved. Degradations are never
+ * undone, and shards aren't bounded.
  *
  * @author Nicolas Estrada.
  */
@@ -34,39 +79,337 @@ public class LogStatistics {
     private final Config cfg;
     private final MeterRegistry reg;
     private final MeanCounter totalRequests;
+    private final RouteNormalizer normalizer;
     private final Map<String, RouteStats> routeStats;
     private final SortedSet<RouteStats> topHits;
+    private final Map<SortOrder, RouteStats[]> stepIndexes;
+    private final List<RouteStats> unindexedRoutes;
+    private final HeavyHitters topClients;
+    private final RollingHyperLogLog visitors;
+    private final RollingHyperLogLog users;
+    private final UpstreamStats upstreams;
+    // Requests by event time, if enabled
+    @Nullable
+    private final EventTimeWindows eventRequests;
+    // Exact hits and bytes by client, if enabled
+    @Nullable
+    private final OffHeapTable clientTotals;
+    // Slots of the clients with the most hits as of the step they were looked up at, scanning the whole table being
+    // too costly to be done on every publish
+    private int[] topClientSlots = new int[0];
+    private long topClientsStep = -1;
+    private int topClientsLimit;
+    // Most recent events for ad-hoc queries, if enabled
+    @Nullable
+    private final RecentEvents recentEvents;
+    // User agent classifications and their most frequent families (not tracked by shards)
+    @Nullable
+    private final UserAgents userAgents;
+    @Nullable
+    private final HeavyHitters topAgents;
+    private final double[] agentTotals = new double[Category.values().length];
+    // What has already been sent to an aggregator (agent mode only)
+    private final SentState sent;
+    // Above which the statistics are degraded, 0 if unbounded
+    private final long memoryBudget;
+
+    // Bucket in which all evicted routes are accumulated
+    private RouteStats otherStats;
+
+    // Lowered by merging cold routes in order to stay within the memory budget, along with the history resolution
+    private int routeLimit;
+    private int historyStepsPerPoint = 1;
+    private long mergedRoutes;
+    private int shrunkBuffers;
+
+    @Nullable
+    private StatsExporter exporter;
 
     // alerting logic
     private long tentativeAlertTriggerTime;
     private long tentativeAlertRemovalTime;
     private long alertTriggerTime;
     private double alertRps;
+    private List<Map<String, Object>> alertClients = List.of();
+    private List<Map<String, Object>> alertAnomalies = List.of();
+    // Rate of the last finalized event time bucket
+    private double eventRps;
+
+    // Anomalies of the previous step, by decreasing deviation
+    private List<Map<String, Object>> anomalies = List.of();
+    private boolean risingAnomaly;
+
+    private long lastStep;
+
+    // Last filtered view of a step index, reused until the index changes
+    private long indexVersion;
+    private long cachedVersion = -1;
+    @Nullable
+    private SortOrder cachedOrder;
+    @Nullable
+    private Predicate<String> cachedFilter;
+    private int cachedLimit;
+    private List<RouteStats> cachedRoutes = List.of();
 
     LogStatistics(Config cfg) {
+        this(cfg, true);
+    }
+
+    /**
+     * @param global whether the meters should be exposed through the global registry, which isn't the case for
+     *               shards whose statistics are merged into another instance.
+     */
+    LogStatistics(Config cfg, boolean global) {
         this.cfg = cfg;
         this.reg = new SimpleMeterRegistry(new StepConfig(cfg.step()), cfg.clock());
         this.totalRequests = newAveragingCounter(HTTP_REQUESTS);
-        this.routeStats = new HashMap<>(16);
+        this.normalizer = new RouteNormalizer(cfg);
+        // Access ordered in order to evict the least recently used route sections
+        this.routeStats = new LinkedHashMap<>(16, 0.75f, true);
         this.topHits = new TreeSet<>(reverseOrder());
-        globalRegistry.add(reg);
+        this.stepIndexes = new EnumMap<>(SortOrder.class);
+        this.unindexedRoutes = new ArrayList<>(16);
+        // Monitor more clients than displayed in order to improve the accuracy of the top ones
+        this.topClients = new HeavyHitters(cfg.topClients() << 1, new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH));
+        this.visitors = newUniquesCounter(TOTAL_PRECISION);
+        this.users = newUniquesCounter(TOTAL_PRECISION);
+        this.sent = new SentState(TOTAL_PRECISION);
+        this.upstreams = new UpstreamStats(cfg.anomalySigma());
+        // Shards don't track clients at all, let alone exactly
+        this.clientTotals = global && cfg.clientTableSize() > 0 ?
+          new OffHeapTable(cfg.clientTableSize(), clientArenaBytes(cfg), CLIENT_COUNTERS) :
+          null;
+        // Shards don't see all events, hence their buckets would be finalized too early
+        this.eventRequests = global && cfg.eventTime() ?
+          new EventTimeWindows(cfg.step().toMillis(), cfg.allowedLateness().toMillis(), cfg.clock(), this::onBucket) :
+          null;
+        // Shards don't see all events either
+        this.recentEvents = global && cfg.recentEvents() > 0 ? new RecentEvents(cfg.recentEvents()) : null;
+        this.userAgents = global ? new UserAgents(cfg.agentCacheSize()) : null;
+        this.topAgents = global ? new HeavyHitters(cfg.topClients() << 1) : null;
+        this.memoryBudget = global ? cfg.memoryBudget() : 0L;
+        if (memoryBudget > 0 && memoryBudget < reservedMemoryBytes(cfg)) {
+            throw new IllegalArgumentException(String.format("a memory budget of %d bytes is below the %d bytes " +
+              "reserved up front", memoryBudget, reservedMemoryBytes(cfg)));
+        }
+        this.routeLimit = cfg.maxRoutes();
+        if (eventRequests != null) {
+            Gauge.builder("event.time.late", eventRequests, EventTimeWindows::late).register(reg);
+        }
+        if (clientTotals != null) {
+            Gauge.builder("client.table.keys", clientTotals, OffHeapTable::size).register(reg);
+            Gauge.builder("client.table.rejected", clientTotals, OffHeapTable::rejected).register(reg);
+        }
+        if (memoryBudget > 0) {
+            Gauge.builder("memory.estimated", this, LogStatistics::memoryBytes).register(reg);
+        }
+        if (global) {
+            globalRegistry.add(reg);
+        }
     }
 
     /**
      * Updates the underlying metrics upon ingestion of the arg <i>evt</i>.
      */
     void ingest(LogEvent evt) {
+        ingest(evt, 1.0);
+    }
+
+    /**
+     * Same as above, but the event was sampled and stands for <i>weight</i> events as far as route statistics are
+     * concerned. The total number of requests isn't weighted since skipped lines are counted separately.
+     */
+    void ingest(LogEvent evt, double weight) {
         totalRequests.increment();
-        var prefix = routeSection(evt.getRoute(), cfg.routeDepth());
-        var stats = routeStats.computeIfAbsent(prefix, k -> new RouteStats(prefix));
+        long time = eventRequests != null || recentEvents != null ? evt.getLocalTime().toInstant().toEpochMilli() : 0L;
+        if (eventRequests != null) {
+            eventRequests.add(time, weight);
+        }
+        // Heavy hitters count whole occurrences
+        int occurrences = occurrences(weight);
+        topClients.offer(evt.getClientIP(), occurrences);
+        if (clientTotals != null) {
+            int slot = clientTotals.slot(evt.getClientIP());
+            if (slot >= 0) {
+                // In fixed point, rounding every weighted hit would bias the totals when sampling
+                clientTotals.add(slot, CLIENT_HITS, Math.round(weight * CLIENT_SCALE));
+                clientTotals.add(slot, CLIENT_BYTES, Math.round(evt.getBytesSent() * weight * CLIENT_SCALE));
+            }
+        }
+        long clientHash = hash64(evt.getClientIP());
+        long userHash = evt.getRemoteUser() != null ? hash64(evt.getRemoteUser()) : 0L;
+        visitors.add(clientHash);
+        if (userHash != 0L) {
+            users.add(userHash);
+        }
+        var section = normalizer.section(evt.getRoute());
+        if (recentEvents != null) {
+            recentEvents.add(evt, time, section);
+        }
+        var stats = routeStats(section);
         // In order to maintain the sorted invariant of top hits, since the object is mutable,
         // it is necessary to remove it then add it again
         topHits.remove(stats);
-        stats.hits.increment();
-        stats.bytesSent.increment(evt.getBytesSent());
+        stats.hits.increment(weight);
+        stats.bytesSent.increment(evt.getBytesSent() * weight);
+        stats.history.add(weight);
+        if (evt.getStatus() >= 500) {
+            stats.errors.increment(weight);
+        }
+        double requestTime = evt.getRequestTime();
+        if (!Double.isNaN(requestTime)) {
+            stats.latency.increment(requestTime * 1000 * weight);
+        }
+        if (exporter != null) {
+            stats.recordExport(evt.getStatus(), requestTime, weight);
+        }
+        upstreams.ingest(evt, weight);
+        if (userAgents != null && evt.getUserAgent() != null) {
+            var agent = userAgents.classify(evt.getUserAgent());
+            stats.countAgent(agent.category(), weight);
+            agentTotals[agent.category().ordinal()] += weight;
+            topAgents.offer(agent.family(), occurrences);
+        }
+        stats.clients.offer(evt.getClientIP(), occurrences);
+        stats.visitors.add(clientHash);
+        if (userHash != 0L) {
+            stats.users.add(userHash);
+        }
         topHits.add(stats);
     }
 
+    /**
+     * @return the arg <i>weight</i> randomly rounded to either of its nearest whole numbers, so that whole counts
+     * remain unbiased whatever the sampling rate (ie. 1.5 is as often 1 as 2).
+     */
+    private static int occurrences(double weight) {
+        int whole = (int) weight;
+        double fraction = weight - whole;
+        return fraction > 0 && ThreadLocalRandom.current().nextDouble() < fraction ? whole + 1 : whole;
+    }
+
+    private RouteStats routeStats(String section) {
+        var stats = routeStats.get(section);
+        if (stats == null) {
+            stats = new RouteStats(section);
+            stats.history.advance(lastStep);
+            routeStats.put(section, stats);
+            unindexedRoutes.add(stats);
+            indexVersion++;
+            if (routeStats.size() > routeLimit) {
+                evictEldestRoute();
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Evicts the least recently used route section, folding its hits and bytes into the <i>other</i> bucket
+     * and removing its meters so that memory doesn't grow with route cardinality.
+     */
+    private void evictEldestRoute() {
+        var it = routeStats.values().iterator();
+        var eldest = it.next();
+        it.remove();
+        topHits.remove(eldest);
+        eldest.evicted = true;
+        indexVersion++;
+        reg.remove(eldest.hits.getId());
+        reg.remove(eldest.bytesSent.getId());
+        reg.remove(eldest.errors.getId());
+        reg.remove(eldest.latency.getId());
+        var otherStats = otherStats();
+        topHits.remove(otherStats);
+        otherStats.hits.absorb(eldest.hits);
+        otherStats.bytesSent.absorb(eldest.bytesSent);
+        otherStats.errors.absorb(eldest.errors);
+        otherStats.latency.absorb(eldest.latency);
+        otherStats.history.absorb(eldest.history);
+        otherStats.visitors.merge(eldest.visitors.window());
+        otherStats.users.merge(eldest.users.window());
+        if (eldest.agents != null) {
+            for (var category : Category.values()) {
+                otherStats.countAgent(category, eldest.agents[category.ordinal()]);
+            }
+        }
+        // Whatever was already sent for the evicted route mustn't be sent again as part of the other bucket
+        otherStats.sent.hits += eldest.sent.hits;
+        otherStats.sent.bytes += eldest.sent.bytes;
+        otherStats.sent.errors += eldest.sent.errors;
+        otherStats.sent.latency += eldest.sent.latency;
+        topHits.add(otherStats);
+    }
+
+    /**
+     * @return the bucket into which evicted routes are folded, creating it if necessary.
+     */
+    private RouteStats otherStats() {
+        if (otherStats == null) {
+            otherStats = new RouteStats(OTHER_ROUTE);
+            otherStats.history.advance(lastStep);
+            unindexedRoutes.add(otherStats);
+        }
+        return otherStats;
+    }
+
+    /*
+     * Agent/aggregator snapshots follow.
+     */
+
+    /**
+     * @return the delta of all statistics since the previous call, in order to be merged by an aggregator.
+     */
+    StatsSnapshot snapshotDelta(String agent) {
+        var snapshot = new StatsSnapshot(agent, cfg.clock().wallTime(), TOTAL_PRECISION);
+        long requests = (long) totalRequests.count();
+        snapshot.addRequests(requests - sent.hits);
+        sent.hits = requests;
+        sent.diff(visitors, users, snapshot.getVisitors(), snapshot.getUsers());
+        for (var rs : topHits) {
+            long hits = (long) rs.hits.count();
+            long bytes = (long) rs.bytesSent.count();
+            long errors = (long) rs.errors.count();
+            long latency = (long) rs.latency.count();
+            if (hits > rs.sent.hits || bytes > rs.sent.bytes || rs.sent.hasNewRegisters(rs.visitors, rs.users)) {
+                var route = snapshot.route(rs.route, ROUTE_PRECISION);
+                route.hits = hits - rs.sent.hits;
+                route.bytes = bytes - rs.sent.bytes;
+                route.errors = errors - rs.sent.errors;
+                route.latency = latency - rs.sent.latency;
+                rs.sent.hits = hits;
+                rs.sent.bytes = bytes;
+                rs.sent.errors = errors;
+                rs.sent.latency = latency;
+                rs.sent.diff(rs.visitors, rs.users, route.visitors, route.users);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Merges a snapshot delta received from an agent, as if its events were ingested now.
+     */
+    void merge(StatsSnapshot snapshot) {
+        totalRequests.increment(snapshot.getRequests());
+        visitors.current().mergeRegisters(snapshot.getVisitors());
+        users.current().mergeRegisters(snapshot.getUsers());
+        for (var route : snapshot.getRoutes()) {
+            // The other bucket of the agent isn't a route of its own, its meters being those of ours
+            var stats = OTHER_ROUTE.equals(route.section) ? otherStats() : routeStats(route.section);
+            topHits.remove(stats);
+            stats.hits.increment(route.hits);
+            stats.bytesSent.increment(route.bytes);
+            stats.history.add(route.hits);
+            stats.errors.increment(route.errors);
+            stats.latency.increment(route.latency);
+            stats.visitors.current().mergeRegisters(route.visitors);
+            stats.users.current().mergeRegisters(route.users);
+            topHits.add(stats);
+        }
+    }
+
+    // End of snapshots
+
     /**
      * Same as above but just increments the total requests counter.
      * The log line couldn't be parsed but it <i>is</i> a hit so don't forget it.
@@ -75,6 +418,15 @@ public class LogStatistics {
         totalRequests.increment();
     }
 
+    /**
+     * Same as above for <i>n</i> lines which were not even parsed (ie. skipped when shedding load).
+     */
+    void incRequests(long n) {
+        if (n > 0) {
+            totalRequests.increment(n);
+        }
+    }
+
     /*
      * Alerting state machine follows.
      */
@@ -83,36 +435,288 @@ public class LogStatistics {
      * Refreshes the current alert status.
      */
     public void refreshAlert() {
+        refreshStep();
+        if (eventRequests != null) {
+            // Evaluated as buckets are finalized
+            eventRequests.advance();
+        } else {
+            evaluateAlert(totalRps(), cfg.clock().wallTime());
+        }
+    }
+
+    /**
+     * Evaluates the alert state against the arg <i>rps</i>, as of the arg <i>now</i>.
+     */
+    private void evaluateAlert(double rps, long now) {
         boolean newTrafficSpike = tentativeAlertTriggerTime == 0;
         boolean alertIsTriggering = alertTriggerTime > 0;
-        if (totalRps() >= cfg.alertThreshold()) {
+        if (rps >= cfg.alertThreshold() || risingAnomaly) {
             if (newTrafficSpike) {
-                markTentativeAlert();
-            } else if (!alertIsTriggering && shouldTriggerAlert()) {
-                triggerAlert();
+                markTentativeAlert(now);
+            } else if (!alertIsTriggering && shouldTriggerAlert(now)) {
+                triggerAlert(rps, now);
             }
-        } else if (alertIsTriggering && shouldRemoveAlert()) {
+        } else if (alertIsTriggering && shouldRemoveAlert(now)) {
             resetAlert();
         }
     }
 
-    private void markTentativeAlert() {
+    private void onBucket(long start, double total) {
+        long width = cfg.step().toMillis();
+        eventRps = total * SECONDS.toMillis(1) / width;
+        evaluateAlert(eventRps, start + width);
+    }
+
+    /**
+     * Performs the maintenance which should only happen once per step, ie. decaying the heavy hitters
+     * in order for the top clients to reflect the current traffic, advancing the route histories and re-indexing
+     * the routes.
+     */
+    private void refreshStep() {
+        long step = cfg.clock().wallTime() / cfg.step().toMillis();
+        if (step != lastStep) {
+            lastStep = step;
+            topClients.decay();
+            if (topAgents != null) {
+                topAgents.decay();
+            }
+            for (var rs : routeStats.values()) {
+                rs.clients.decay();
+                rs.history.advance(step);
+            }
+            if (otherStats != null) {
+                otherStats.history.advance(step);
+            }
+            if (exporter != null) {
+                exportStep(step * cfg.step().toMillis());
+            }
+            upstreams.step();
+            detectAnomalies();
+            enforceBudget();
+            reindex();
+        }
+    }
+
+    /**
+     * Degrades the statistics while they use more memory than the budget, see above. Routes are merged down to
+     * {@value #MIN_BUDGET_ROUTES} routes, and histories coarsened down to {@value #MIN_HISTORY_POINTS} points, one
+     * halving per step.
+     */
+    private void enforceBudget() {
+        if (memoryBudget <= 0) {
+            return;
+        }
+        long excess = memoryBytes() - memoryBudget;
+        if (excess <= 0) {
+            return;
+        }
+        long routeBytes = ROUTE_BYTES + (long) (HISTORY_STEPS / historyStepsPerPoint) * Float.BYTES;
+        long merged = Math.min(routeStats.size() - MIN_BUDGET_ROUTES, (excess + routeBytes - 1) / routeBytes);
+        if (merged > 0) {
+            for (long i = 0; i < merged; i++) {
+                evictEldestRoute();
+            }
+            routeLimit = routeStats.size();
+            mergedRoutes += merged;
+            excess = memoryBytes() - memoryBudget;
+        }
+        if (excess > 0 && HISTORY_STEPS / historyStepsPerPoint > MIN_HISTORY_POINTS) {
+            historyStepsPerPoint <<= 1;
+            for (var rs : routeStats.values()) {
+                rs.history.coarsen();
+            }
+            if (otherStats != null) {
+                otherStats.history.coarsen();
+            }
+            excess = memoryBytes() - memoryBudget;
+        }
+        if (excess > 0) {
+            boolean shrunk = recentEvents != null && recentEvents.shrink();
+            shrunk |= userAgents != null && userAgents.shrink();
+            shrunk |= upstreams.shrink();
+            if (shrunk) {
+                shrunkBuffers++;
+            }
+        }
+    }
+
+    /**
+     * @return the memory reserved up front whatever the traffic (ie. the sketches and the client table), which no
+     * degradation can reclaim, in bytes.
+     */
+    static long reservedMemoryBytes(Config cfg) {
+        long bytes = SKETCHES_BYTES;
+        if (cfg.clientTableSize() > 0) {
+            bytes += OffHeapTable.memoryBytes(cfg.clientTableSize(), clientArenaBytes(cfg), CLIENT_COUNTERS);
+        }
+        return bytes;
+    }
+
+    private static int clientArenaBytes(Config cfg) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) cfg.clientTableSize() * CLIENT_KEY_BYTES);
+    }
+
+    /**
+     * @return the approximate memory used by the statistics, in bytes.
+     */
+    long memoryBytes() {
+        long bytes = 0L;
+        for (var usage : memoryUsage().values()) {
+            bytes += usage;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the approximate memory used by every kind of structure, in bytes.
+     */
+    private Map<String, Long> memoryUsage() {
+        Map<String, Long> usage = new LinkedHashMap<>(8);
+        long routes = routeStats.size() + (otherStats != null ? 1 : 0);
+        usage.put("routes", routes * ROUTE_BYTES);
+        usage.put("history", routes * (HISTORY_STEPS / historyStepsPerPoint) * Float.BYTES);
+        usage.put("sketches", (long) SKETCHES_BYTES);
+        usage.put("upstreams", upstreams.memoryBytes());
+        if (recentEvents != null) {
+            usage.put("recent events", recentEvents.memoryBytes());
+        }
+        if (clientTotals != null) {
+            usage.put("client table", clientTotals.memoryBytes());
+        }
+        if (userAgents != null) {
+            usage.put("agents", userAgents.memoryBytes());
+        }
+        return usage;
+    }
+
+    /**
+     * Exports a row for every route which was hit during the previous step, then hands the batch over to the exporter.
+     */
+    private void exportStep(long time) {
+        assert exporter != null;
+        var values = new double[ExportFormat.COLUMNS.size()];
+        for (var rs : routeStats.values()) {
+            exportRoute(time, rs, values);
+        }
+        if (otherStats != null) {
+            exportRoute(time, otherStats, values);
+        }
+        exporter.flush();
+    }
+
+    private void exportRoute(long time, RouteStats rs, double[] values) {
+        double hits = rs.hits.increase();
+        if (hits > 0) {
+            assert exporter != null;
+            rs.exportValues(values);
+            exporter.append(time, rs.route, values);
+        }
+        rs.resetExport();
+    }
+
+    /**
+     * Exports the statistics of every step from now on.
+     */
+    void exportTo(StatsExporter exporter) {
+        this.exporter = exporter;
+    }
+
+    /**
+     * Scores the previous step of every route against its baselines, in O(routes). The <i>other</i> bucket isn't
+     * scored since evictions make it jump by design.
+     */
+    private void detectAnomalies() {
+        double sigma = cfg.anomalySigma();
+        if (sigma <= 0) {
+            return;
+        }
+        List<Map<String, Object>> found = new ArrayList<>(4);
+        boolean rising = false;
+        for (var rs : routeStats.values()) {
+            double rate = rs.hits.increase();
+            double errorRate = rs.errorRate();
+            double bytes = rs.bytesSent.increase();
+            // Values are reported along with the baselines they were scored against
+            double rateMean = rs.rateBaseline.mean();
+            double errorMean = rs.errorBaseline.mean();
+            double bytesMean = rs.bytesBaseline.mean();
+            double rateZ = rs.rateBaseline.update(rate);
+            double bytesZ = rs.bytesBaseline.update(bytes);
+            // Without hits there is no error rate to speak of
+            double errorZ = rate > 0 ? rs.errorBaseline.update(errorRate) : 0.0;
+            rs.anomaly = 0.0;
+            if (rs.rateBaseline.count() <= ANOMALY_WARMUP_STEPS) {
+                continue;
+            }
+            rising |= addAnomaly(found, rs, "rate", rate, rateMean, rateZ, sigma);
+            rising |= addAnomaly(found, rs, "errors", errorRate, errorMean, errorZ, sigma);
+            addAnomaly(found, rs, "bytes", bytes, bytesMean, bytesZ, sigma);
+        }
+        found.sort((a, b) -> compare(Math.abs((Double) b.get("z")), Math.abs((Double) a.get("z"))));
+        anomalies = found;
+        risingAnomaly = rising;
+    }
+
+    /**
+     * @return {@code true} if a rising anomaly was found.
+     */
+    private static boolean addAnomaly(List<Map<String, Object>> found,
+                                      RouteStats rs,
+                                      String metric,
+                                      double value,
+                                      double mean,
+                                      double z,
+                                      double sigma) {
+        if (Math.abs(z) < sigma) {
+            return false;
+        }
+        if (Math.abs(z) > Math.abs(rs.anomaly)) {
+            rs.anomaly = z;
+        }
+        found.add(Map.of("route", rs.route, "metric", metric, "value", value, "mean", mean, "z", z));
+        return z > 0;
+    }
+
+    /**
+     * Sorts all routes once for every step based {@link SortOrder}, the sort keys being computed beforehand
+     * so that they are neither recomputed for every comparison nor changing while sorting.
+     */
+    private void reindex() {
+        var routes = topHits.toArray(new RouteStats[0]);
+        for (var order : SortOrder.values()) {
+            if (order == SortOrder.HITS) {
+                continue;
+            }
+            for (var rs : routes) {
+                rs.sortKey = rs.value(order);
+            }
+            var index = routes.clone();
+            Arrays.sort(index, BY_SORT_KEY);
+            stepIndexes.put(order, index);
+        }
+        unindexedRoutes.clear();
+        indexVersion++;
+    }
+
+    private void markTentativeAlert(long now) {
         assert alertTriggerTime == 0 && tentativeAlertRemovalTime == 0;
-        this.tentativeAlertTriggerTime = cfg.clock().wallTime();
+        this.tentativeAlertTriggerTime = now;
     }
 
-    private void triggerAlert() {
+    private void triggerAlert(double rps, long now) {
         alertTriggerTime = tentativeAlertTriggerTime;
-        alertRps = totalRps();
-        tentativeAlertRemovalTime = cfg.clock().wallTime() + cfg.alertCooldown().toMillis();
+        alertRps = rps;
+        alertClients = getTopClients(ALERT_CLIENTS);
+        alertAnomalies = anomalies;
+        tentativeAlertRemovalTime = now + cfg.alertCooldown().toMillis();
     }
 
-    private boolean shouldTriggerAlert() {
-        return tentativeAlertTriggerTime + cfg.alertDelay().toMillis() <= cfg.clock().wallTime();
+    private boolean shouldTriggerAlert(long now) {
+        return tentativeAlertTriggerTime + cfg.alertDelay().toMillis() <= now;
     }
 
-    private boolean shouldRemoveAlert() {
-        return cfg.clock().wallTime() >= tentativeAlertRemovalTime;
+    private boolean shouldRemoveAlert(long now) {
+        return now >= tentativeAlertRemovalTime;
     }
 
     private void resetAlert() {
@@ -120,6 +724,8 @@ public class LogStatistics {
         tentativeAlertRemovalTime = 0;
         alertTriggerTime = 0;
         alertRps = 0;
+        alertClients = List.of();
+        alertAnomalies = List.of();
     }
 
     /**
@@ -131,6 +737,28 @@ public class LogStatistics {
           empty();
     }
 
+    /**
+     * @return the top clients at the time the alert was triggered, or an empty list if no alert is being fired.
+     */
+    public List<Map<String, Object>> getAlertClients() {
+        return alertClients;
+    }
+
+    /**
+     * @return the anomalies found when the alert was triggered, or an empty list if no alert is being fired.
+     */
+    public List<Map<String, Object>> getAlertAnomalies() {
+        return alertAnomalies;
+    }
+
+    /**
+     * @return the anomalous route metrics of the previous step as <i>route</i>, <i>metric</i>, <i>value</i>,
+     * <i>mean</i> and <i>z</i> (z-score) maps, by decreasing deviation.
+     */
+    public List<Map<String, Object>> getAnomalies() {
+        return anomalies;
+    }
+
     // End of alerting logic
 
     /**
@@ -144,10 +772,274 @@ public class LogStatistics {
     }
 
     /**
-     * @return the total number of requests per second.
+     * @return a snapshot of at most <i>limit</i> route statistics sorted by the arg <i>order</i>, only keeping the
+     * routes matching the arg <i>filter</i> (if any).
+     */
+    public List<Map<String, Object>> getRouteStatistics(SortOrder order, @Nullable Predicate<String> filter, int limit) {
+        List<RouteStats> routes;
+        if (order == SortOrder.HITS) {
+            // Changes with every event, there is no point in caching it
+            routes = filterRoutes(topHits, filter, limit);
+        } else {
+            if (cachedVersion != indexVersion || cachedOrder != order || cachedFilter != filter ||
+              cachedLimit != limit) {
+                var index = stepIndexes.getOrDefault(order, EMPTY_INDEX);
+                cachedRoutes = filterRoutes(new IndexView(index, unindexedRoutes), filter, limit);
+                cachedVersion = indexVersion;
+                cachedOrder = order;
+                cachedFilter = filter;
+                cachedLimit = limit;
+            }
+            routes = cachedRoutes;
+        }
+        List<Map<String, Object>> stats = new ArrayList<>(routes.size());
+        for (var rs : routes) {
+            stats.add(rs.toMap());
+        }
+        return stats;
+    }
+
+    private static List<RouteStats> filterRoutes(Iterable<RouteStats> routes,
+                                                 @Nullable Predicate<String> filter,
+                                                 int limit) {
+        List<RouteStats> filtered = new ArrayList<>(limit);
+        for (var rs : routes) {
+            if (filtered.size() >= limit) {
+                break;
+            }
+            if (!rs.evicted && (filter == null || filter.test(rs.route))) {
+                filtered.add(rs);
+            }
+        }
+        return filtered;
+    }
+
+    /**
+     * @return at most <i>n</i> of the most frequent clients overall, as <i>client</i>, <i>hits</i> and <i>share</i>
+     * (percentage of all recent hits) maps.
+     */
+    public List<Map<String, Object>> getTopClients(int n) {
+        return clientsToMaps(topClients, n);
+    }
+
+    /**
+     * @return at most <i>n</i> of the upstream services hit during the previous step by decreasing p99, as
+     * <i>upstream</i>, <i>hits</i>, <i>errors</i> (percentage), <i>retries</i>, <i>p50</i>, <i>p90</i>, <i>p99</i>
+     * (in milliseconds), <i>z</i> and <i>slow</i> maps.
+     */
+    public List<Map<String, Object>> getSlowestUpstreams(int n) {
+        return upstreams.slowestServices(n);
+    }
+
+    /**
+     * @return same as above for the upstream pods, along with their <i>service</i>.
+     */
+    public List<Map<String, Object>> getSlowestUpstreamPods(int n) {
+        return upstreams.slowestPods(n);
+    }
+
+    /**
+     * @return the upstream services whose p90 deviated from their baseline during the previous step.
+     */
+    public List<Map<String, Object>> getSlowUpstreams() {
+        return upstreams.slowServices();
+    }
+
+    /**
+     * @return the most frequent clients of the <i>n</i> top routes, as <i>route</i> and <i>clients</i> maps.
+     */
+    public Iterable<Map<String, Object>> getRouteTopClients(int n) {
+        List<Map<String, Object>> routes = new ArrayList<>(n);
+        for (var rs : topHits) {
+            if (routes.size() == n) {
+                break;
+            }
+            routes.add(Map.of("route", rs.route, "clients", clientsToMaps(rs.clients, ROUTE_CLIENTS)));
+        }
+        return routes;
+    }
+
+    /**
+     * @return at most <i>n</i> clients with the most hits since startup, as <i>client</i>, <i>hits</i> and
+     * <i>bytes</i> maps, or an empty list if exact client totals aren't enabled. The clients are only looked up once
+     * per step (or when more are asked for), their totals being up-to-date though.
+     */
+    public List<Map<String, Object>> getClientTotals(int n) {
+        if (clientTotals == null) {
+            return List.of();
+        }
+        if (topClientsStep != lastStep || topClientsLimit < n) {
+            topClientSlots = clientTotals.top(n, CLIENT_HITS);
+            topClientsStep = lastStep;
+            topClientsLimit = n;
+        }
+        var top = Arrays.stream(topClientSlots)
+          .boxed()
+          .sorted(comparingLong(slot -> -clientTotals.get(slot, CLIENT_HITS)))
+          .limit(n)
+          .collect(toList());
+        List<Map<String, Object>> clients = new ArrayList<>(top.size());
+        for (int slot : top) {
+            clients.add(Map.of(
+              "client", clientTotals.key(slot),
+              "hits", Math.round((double) clientTotals.get(slot, CLIENT_HITS) / CLIENT_SCALE),
+              "bytes", Math.round((double) clientTotals.get(slot, CLIENT_BYTES) / CLIENT_SCALE)));
+        }
+        return clients;
+    }
+
+    /**
+     * @return a summary of the event time windows for the pipeline panel, if enabled.
+     */
+    Optional<String> eventTimeSummary() {
+        if (eventRequests == null) {
+            return empty();
+        }
+        long watermark = eventRequests.watermark();
+        return Optional.of(String.format("watermark %s, %d late events dropped",
+          watermark != Long.MIN_VALUE ? Instant.ofEpochMilli(watermark) : "-", eventRequests.late()));
+    }
+
+    /**
+     * Runs the arg <i>query</i> over the most recent events.
+     *
+     * @throws IllegalArgumentException if no recent events are kept.
+     */
+    List<Map<String, Object>> query(EventQuery query) {
+        if (recentEvents == null) {
+            throw new IllegalArgumentException("recent events aren't kept, see --recent-events");
+        }
+        return query.execute(recentEvents, cfg.clock().wallTime());
+    }
+
+    /**
+     * @return at most <i>n</i> of the most frequent user agent families overall, as <i>family</i>, <i>hits</i> and
+     * <i>share</i> (percentage of all recent hits) maps, or an empty list if the format doesn't have agents.
+     */
+    public List<Map<String, Object>> getTopAgents(int n) {
+        if (topAgents == null) {
+            return List.of();
+        }
+        long total = max(1L, topAgents.total());
+        var top = topAgents.top(n);
+        List<Map<String, Object>> agents = new ArrayList<>(top.size());
+        for (var hh : top) {
+            long count = (Long) hh.get("count");
+            agents.add(Map.of("family", hh.get("key"), "hits", count, "share", 100.0 * count / total));
+        }
+        return agents;
+    }
+
+    /**
+     * @return a summary of the user agent categories and their classifier for the pipeline panel, if any agent was
+     * seen.
+     */
+    Optional<String> userAgentsSummary() {
+        double total = Arrays.stream(agentTotals).sum();
+        if (userAgents == null || total == 0.0) {
+            return empty();
+        }
+        var sb = new StringBuilder();
+        for (var category : Category.values()) {
+            double hits = agentTotals[category.ordinal()];
+            if (hits > 0) {
+                sb.append(String.format("%s %.0f%%, ", category.label(), 100 * hits / total));
+            }
+        }
+        return Optional.of(sb.append(String.format("%d classified, %d cached",
+          userAgents.classified(), userAgents.cacheSize())).toString());
+    }
+
+    /**
+     * @return a summary of the recent events buffer for the pipeline panel, if enabled.
+     */
+    Optional<String> recentEventsSummary() {
+        if (recentEvents == null) {
+            return empty();
+        }
+        return Optional.of(String.format("%d/%d events, %dMB",
+          recentEvents.size(), recentEvents.capacity(), recentEvents.memoryBytes() >> 20));
+    }
+
+    /**
+     * @return a summary of the memory used for the pipeline panel, along with the budget and the degradations it
+     * caused, if any.
+     */
+    String memorySummary() {
+        var sb = new StringBuilder(megabytes(memoryBytes()));
+        if (memoryBudget > 0) {
+            sb.append(" of ").append(megabytes(memoryBudget));
+        }
+        var separator = " (";
+        for (var e : memoryUsage().entrySet()) {
+            sb.append(separator).append(e.getKey()).append(' ').append(megabytes(e.getValue()));
+            separator = ", ";
+        }
+        sb.append(')');
+        if (mergedRoutes > 0) {
+            sb.append(String.format(", %d routes merged", mergedRoutes));
+        }
+        if (historyStepsPerPoint > 1) {
+            sb.append(String.format(", %d steps per history point", historyStepsPerPoint));
+        }
+        if (shrunkBuffers > 0) {
+            sb.append(String.format(", buffers halved %d times", shrunkBuffers));
+        }
+        return sb.toString();
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format("%.1fMB", bytes / (double) (1 << 20));
+    }
+
+    /**
+     * @return a summary of the exact client totals table for the pipeline panel, if enabled.
+     */
+    Optional<String> clientTableSummary() {
+        if (clientTotals == null) {
+            return empty();
+        }
+        return Optional.of(String.format("%d clients, %dMB off-heap, %d rejected",
+          clientTotals.size(), clientTotals.memoryBytes() >> 20, clientTotals.rejected()));
+    }
+
+    private static List<Map<String, Object>> clientsToMaps(HeavyHitters hitters, int n) {
+        long total = max(1L, hitters.total());
+        var top = hitters.top(n);
+        List<Map<String, Object>> clients = new ArrayList<>(top.size());
+        for (var hh : top) {
+            long count = (Long) hh.get("count");
+            clients.add(Map.of("client", hh.get("key"), "hits", count, "share", 100.0 * count / total));
+        }
+        return clients;
+    }
+
+    /**
+     * @return the registry holding all the meters, including those registered globally.
+     */
+    MeterRegistry registry() {
+        return reg;
+    }
+
+    /**
+     * @return the total number of requests per second, over the last finalized bucket when aggregating by event time.
      */
     public double totalRps() {
-        return totalRequests.mean(SECONDS);
+        return eventRequests != null ? eventRps : totalRequests.mean(SECONDS);
+    }
+
+    /**
+     * @return the estimated number of distinct client IPs over the current window.
+     */
+    public long uniqueVisitors() {
+        return visitors.estimate();
+    }
+
+    /**
+     * @return the estimated number of distinct remote users over the current window.
+     */
+    public long uniqueUsers() {
+        return users.estimate();
     }
 
     /**
@@ -188,8 +1080,69 @@ public class LogStatistics {
         return new MeanCounter(reg.counter(name, tags), cfg.clock(), cfg.step().toMillis());
     }
 
+    static final String OTHER_ROUTE = "(other)";
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 2048;
+    private static final int ROUTE_CLIENTS = 3;
+    private static final int ALERT_CLIENTS = 3;
+    // Room for IPv4 addresses and most IPv6 ones
+    private static final int CLIENT_KEY_BYTES = 24;
+    private static final int CLIENT_COUNTERS = 2;
+    private static final int CLIENT_HITS = 0;
+    private static final int CLIENT_BYTES = 1;
+    // Client counters are in thousandths of hits and bytes
+    private static final long CLIENT_SCALE = 1000L;
+    /**
+     * Creates a distinct count estimator over a window of {@link #UNIQUES_WINDOW_STEPS} steps.
+     */
+    private RollingHyperLogLog newUniquesCounter(int precision) {
+        return new RollingHyperLogLog(precision, UNIQUES_WINDOW_STEPS, cfg.clock(), cfg.step().toMillis());
+    }
+
+    // 2^12 registers (4KB) for a ~1.6% standard error overall, and 2^8 (256B) for ~6.5% per route
+    private static final int TOTAL_PRECISION = 12;
+    private static final int ROUTE_PRECISION = 8;
+    private static final int UNIQUES_WINDOW_STEPS = 6;
+    // 120 floats (480B) per route, ie. the last 20 minutes with the default step
+    private static final int HISTORY_STEPS = 120;
+    // Rolling visitors and users sketches, then meters and their ids, clients, baselines and map entries
+    private static final int ROUTE_BYTES = 2 * (UNIQUES_WINDOW_STEPS + 1) * (1 << ROUTE_PRECISION) + 2048;
+    // The top clients sketch and the rolling visitors and users sketches
+    private static final int SKETCHES_BYTES =
+      SKETCH_DEPTH * SKETCH_WIDTH * Integer.BYTES + 2 * (UNIQUES_WINDOW_STEPS + 1) * (1 << TOTAL_PRECISION);
+    private static final int MIN_BUDGET_ROUTES = 16;
+    private static final int MIN_HISTORY_POINTS = 15;
+    // A smoothing factor of 0.1 amounts to a window of ~20 steps
+    private static final double BASELINE_ALPHA = 0.1;
+    private static final int ANOMALY_WARMUP_STEPS = 5;
     private static final String HTTP_REQUESTS = "http.requests";
     private static final String BYTES_SENT = "bytes.sent";
+    private static final String HTTP_ERRORS = "http.errors";
+    private static final String REQUEST_TIME = "http.request.time";
+    private static final RouteStats[] EMPTY_INDEX = new RouteStats[0];
+    private static final Comparator<RouteStats> BY_SORT_KEY = (a, b) -> {
+        int cmp = compare(b.sortKey, a.sortKey);
+        return cmp == 0 ? a.route.compareTo(b.route) : cmp;
+    };
+
+    /**
+     * A step index followed by the routes created since it was built.
+     */
+    private static final class IndexView implements Iterable<RouteStats> {
+
+        private final RouteStats[] index;
+        private final List<RouteStats> unindexed;
+
+        private IndexView(RouteStats[] index, List<RouteStats> unindexed) {
+            this.index = index;
+            this.unindexed = unindexed;
+        }
+
+        @Override
+        public Iterator<RouteStats> iterator() {
+            return Stream.concat(Arrays.stream(index), unindexed.stream()).iterator();
+        }
+    }
 
     @SuppressWarnings("PackageVisibleField")
     private final class RouteStats implements Comparable<RouteStats> {
@@ -197,11 +1150,48 @@ public class LogStatistics {
         final String route;
         final MeanCounter hits;
         final MeanCounter bytesSent;
+        final MeanCounter errors;
+        // Sum of all request times, in milliseconds
+        final MeanCounter latency;
+        final HeavyHitters clients;
+        final RollingHyperLogLog visitors;
+        final RollingHyperLogLog users;
+        final SentState sent;
+        // Hits per step
+        final StepHistory history;
+        final Ewma rateBaseline;
+        final Ewma errorBaseline;
+        final Ewma bytesBaseline;
+        // z-score of the most anomalous metric of the previous step, 0 if none
+        double anomaly;
+        // Status classes (2xx and below, 3xx, 4xx, 5xx) and request times (in micros) of the current step,
+        // only allocated when exporting
+        @Nullable
+        double[] stepStatuses;
+        @Nullable
+        Histogram stepLatencies;
+        // Hits by user agent category, only allocated once an agent is seen
+        @Nullable
+        double[] agents;
+        boolean evicted;
+        double sortKey;
 
         private RouteStats(String route) {
             this.route = route;
             this.hits = newAveragingCounter(HTTP_REQUESTS, "route", route);
             this.bytesSent = newAveragingCounter(BYTES_SENT, "route", route);
+            this.errors = newAveragingCounter(HTTP_ERRORS, "route", route);
+            this.latency = newAveragingCounter(REQUEST_TIME, "route", route);
+            // Plain Space-Saving since a sketch per route would be too costly
+            this.clients = new HeavyHitters(ROUTE_CLIENTS << 1);
+            this.visitors = newUniquesCounter(ROUTE_PRECISION);
+            this.users = newUniquesCounter(ROUTE_PRECISION);
+            this.sent = new SentState(ROUTE_PRECISION);
+            this.history = new StepHistory(HISTORY_STEPS / historyStepsPerPoint, historyStepsPerPoint);
+            // Floored at 1 hit, 1% of errors and 1KB per step
+            this.rateBaseline = new Ewma(BASELINE_ALPHA, 1.0);
+            this.errorBaseline = new Ewma(BASELINE_ALPHA, 1.0);
+            this.bytesBaseline = new Ewma(BASELINE_ALPHA, 1024.0);
         }
 
         @Override
@@ -223,13 +1213,163 @@ public class LogStatistics {
             return route.hashCode();
         }
 
+        /**
+         * @return the percentage of server errors over the previous step.
+         */
+        double errorRate() {
+            double increase = hits.increase();
+            return increase > 0 ? 100 * errors.increase() / increase : 0.0;
+        }
+
+        /**
+         * @return the mean request time in milliseconds over the previous step.
+         */
+        double meanLatency() {
+            double increase = hits.increase();
+            return increase > 0 ? latency.increase() / increase : 0.0;
+        }
+
+        void recordExport(int status, double requestTime, double weight) {
+            if (stepStatuses == null) {
+                stepStatuses = new double[4];
+                stepLatencies = new Histogram();
+            }
+            stepStatuses[Math.min(3, Math.max(0, status / 100 - 2))] += weight;
+            if (!Double.isNaN(requestTime)) {
+                stepLatencies.record((long) (requestTime * 1_000_000));
+            }
+        }
+
+        /**
+         * Fills the arg <i>values</i> following {@link ExportFormat#COLUMNS}.
+         */
+        void exportValues(double[] values) {
+            values[0] = hits.increase();
+            values[1] = bytesSent.increase();
+            values[2] = hits.count();
+            for (int i = 0; i < 4; i++) {
+                values[3 + i] = stepStatuses != null ? stepStatuses[i] : 0.0;
+            }
+            boolean timed = stepLatencies != null && stepLatencies.count() > 0;
+            values[7] = timed ? stepLatencies.percentile(0.5) / 1000.0 : Double.NaN;
+            values[8] = timed ? stepLatencies.percentile(0.9) / 1000.0 : Double.NaN;
+            values[9] = timed ? stepLatencies.percentile(0.99) / 1000.0 : Double.NaN;
+        }
+
+        void countAgent(Category category, double weight) {
+            if (agents == null) {
+                agents = new double[Category.values().length];
+            }
+            agents[category.ordinal()] += weight;
+        }
+
+        /**
+         * @return the hits since startup by user agent category.
+         */
+        Map<String, Long> agentCounts() {
+            assert agents != null;
+            Map<String, Long> counts = new LinkedHashMap<>(8);
+            for (var category : Category.values()) {
+                if (agents[category.ordinal()] > 0) {
+                    counts.put(category.label(), Math.round(agents[category.ordinal()]));
+                }
+            }
+            return unmodifiableMap(counts);
+        }
+
+        void resetExport() {
+            if (stepStatuses != null) {
+                Arrays.fill(stepStatuses, 0.0);
+                stepLatencies.clear();
+            }
+        }
+
+        double value(SortOrder order) {
+            switch (order) {
+                case INCREASE:
+                    return hits.increase();
+                case THROUGHPUT:
+                    return bytesSent.mean(SECONDS);
+                case ERROR_RATE:
+                    return errorRate();
+                case LATENCY:
+                    return meanLatency();
+                default:
+                    return hits.count();
+            }
+        }
+
+        /**
+         * @return the displayable statistics, with the hits by user agent category once an agent was seen.
+         */
         Map<String, Object> toMap() {
-            return Map.of(
-              "route", route,
-              "hits", hits.count(),
-              "increase", hits.increase(),
-              "throughput", bytesSent.mean(SECONDS)
-            );
+            Map<String, Object> map = new HashMap<>(16);
+            map.put("route", route);
+            map.put("hits", hits.count());
+            map.put("increase", hits.increase());
+            map.put("throughput", bytesSent.mean(SECONDS));
+            map.put("visitors", visitors.estimate());
+            map.put("users", users.estimate());
+            map.put("errors", errorRate());
+            map.put("latency", meanLatency());
+            map.put("history", history);
+            map.put("anomaly", anomaly);
+            if (agents != null) {
+                map.put("agents", agentCounts());
+            }
+            return unmodifiableMap(map);
+        }
+    }
+
+    /**
+     * Keeps track of what was already sent to an aggregator in order to only send deltas. Sketch registers are
+     * tracked for the current step only, since rolling sketches start over every step.
+     */
+    @SuppressWarnings("PackageVisibleField")
+    private static final class SentState {
+
+        final int precision;
+        long hits;
+        long bytes;
+        long errors;
+        long latency;
+        long step = -1;
+        @Nullable
+        byte[] visitors;
+        @Nullable
+        byte[] users;
+
+        private SentState(int precision) {
+            this.precision = precision;
+        }
+
+        boolean hasNewRegisters(RollingHyperLogLog v, RollingHyperLogLog u) {
+            boolean sameStep = step == v.currentStep();
+            return hasNewRegisters(v.current().registers(), sameStep ? visitors : null) ||
+              hasNewRegisters(u.current().registers(), sameStep ? users : null);
+        }
+
+        private static boolean hasNewRegisters(byte[] current, @Nullable byte[] sent) {
+            if (sent != null) {
+                return StatsSnapshot.hasNewRegisters(current, sent);
+            }
+            for (byte r : current) {
+                if (r != 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void diff(RollingHyperLogLog v, RollingHyperLogLog u, byte[] deltaVisitors, byte[] deltaUsers) {
+            // Allocated lazily since only agents ever send snapshots
+            if (visitors == null || users == null || step != v.currentStep()) {
+                visitors = new byte[1 << precision];
+                users = new byte[1 << precision];
+                step = v.currentStep();
+            }
+            diffRegisters(v.current().registers(), visitors, deltaVisitors);
+            diffRegisters(u.current().registers(), users, deltaUsers);
         }
     }
 }
@@ -0,0 +1,212 @@
+package com.datadog.yaala;
+
+import com.datadog.yaala.util.Histogram;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+import static com.datadog.yaala.util.Misc.printBandwidth;
+import static java.lang.String.format;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Self instrumentation of the ingest pipeline, in order to know whether yaala keeps up with the log it follows.
+ * <br>
+ * Since it is always on, the hot path only touches plain fields (no atomics or meter lookups), rates and JVM
+ * statistics (allocations, GC pauses) being computed when {@link PipelineMetrics#sample()} is called about once per
+ * second. All metrics are exposed to Micrometer as function counters and gauges reading these fields.
+ *
+ * @author Nicolas Estrada.
+ */
+@SuppressWarnings("DuplicateStringLiteralInspection")
+public final class PipelineMetrics {
+
+    private final Histogram parseNanos = new Histogram();
+    private final Histogram batchSizes = new Histogram();
+    private final Map<String, IntSupplier> queues = new LinkedHashMap<>(4);
+    private final List<GarbageCollectorMXBean> gcBeans;
+    private final LongSupplier allocatedBytes;
+    private DoubleSupplier samplingRate = () -> 1.0;
+
+    private long linesRead;
+    private long linesParsed;
+    private long lag;
+
+    // Sampled
+    private long lastSample = nanoTime();
+    private long lastLinesRead;
+    private long lastLinesParsed;
+    private long lastAllocated;
+    private long lastGcCount;
+    private long lastGcMillis;
+    private double linesReadRate;
+    private double linesParsedRate;
+    private double allocationRate;
+    private double gcPauseRate;
+    private long gcCount;
+
+    PipelineMetrics(MeterRegistry reg) {
+        this.gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+        this.allocatedBytes = allocatedBytesSupplier();
+        this.lastAllocated = allocatedBytes.getAsLong();
+        FunctionCounter.builder("pipeline.lines.read", this, m -> m.linesRead).register(reg);
+        FunctionCounter.builder("pipeline.lines.parsed", this, m -> m.linesParsed).register(reg);
+        Gauge.builder("pipeline.parse.time.p50", this, m -> m.parseNanos.percentile(0.5)).baseUnit("ns").register(reg);
+        Gauge.builder("pipeline.parse.time.p99", this, m -> m.parseNanos.percentile(0.99)).baseUnit("ns").register(reg);
+        Gauge.builder("pipeline.batch.size", this, m -> m.batchSizes.mean()).register(reg);
+        Gauge.builder("pipeline.lag", this, m -> m.lag).baseUnit("bytes").register(reg);
+        Gauge.builder("pipeline.allocation.rate", this, m -> m.allocationRate).baseUnit("bytes").register(reg);
+        Gauge.builder("pipeline.gc.pause.ratio", this, m -> m.gcPauseRate).register(reg);
+    }
+
+    /**
+     * Records a batch of lines which were read.
+     */
+    void recordBatch(int size) {
+        linesRead += size;
+        batchSizes.record(size);
+    }
+
+    /**
+     * Records the time it took to parse a single line.
+     */
+    void recordParse(long nanos, boolean parsed) {
+        parseNanos.record(nanos);
+        if (parsed) {
+            linesParsed++;
+        }
+    }
+
+    /**
+     * Records the parse times and number of lines parsed by another thread (ie. a shard).
+     */
+    void recordParses(Histogram nanos, long parsed) {
+        parseNanos.merge(nanos);
+        linesParsed += parsed;
+    }
+
+    /**
+     * Records the number of bytes behind the end of the followed log.
+     */
+    void recordLag(long bytes) {
+        lag = bytes;
+    }
+
+    /**
+     * Registers a queue whose depth should be monitored.
+     */
+    void registerQueue(String name, IntSupplier depth, MeterRegistry reg) {
+        queues.put(name, depth);
+        Gauge.builder("pipeline.queue.depth", depth, IntSupplier::getAsInt).tag("queue", name).register(reg);
+    }
+
+    /**
+     * Registers the rate at which lines are sampled when shedding load.
+     */
+    void registerSampling(DoubleSupplier rate, MeterRegistry reg) {
+        samplingRate = rate;
+        Gauge.builder("pipeline.sample.rate", rate, DoubleSupplier::getAsDouble).register(reg);
+    }
+
+    /**
+     * Computes all rates, at most once per second.
+     */
+    void sample() {
+        long now = nanoTime();
+        long elapsed = now - lastSample;
+        if (elapsed < SAMPLE_PERIOD_NS) {
+            return;
+        }
+        double secs = (double) elapsed / SAMPLE_PERIOD_NS;
+        linesReadRate = (linesRead - lastLinesRead) / secs;
+        linesParsedRate = (linesParsed - lastLinesParsed) / secs;
+        long allocated = allocatedBytes.getAsLong();
+        // Threads which died take their allocations with them, hence the lower bound
+        allocationRate = allocated < 0 ? -1 : Math.max(0, allocated - lastAllocated) / secs;
+        long count = 0;
+        long millis = 0;
+        for (var gc : gcBeans) {
+            count += Math.max(0, gc.getCollectionCount());
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        gcCount = count - lastGcCount;
+        gcPauseRate = (millis - lastGcMillis) / (secs * 1000);
+        lastSample = now;
+        lastLinesRead = linesRead;
+        lastLinesParsed = linesParsed;
+        lastAllocated = allocated;
+        lastGcCount = count;
+        lastGcMillis = millis;
+    }
+
+    /**
+     * @return all metrics formatted for displaying purposes.
+     */
+    Map<String, String> toDisplayMap() {
+        Map<String, String> m = new LinkedHashMap<>(16);
+        m.put("lines read", format("%.0f/s (total %d)", linesReadRate, linesRead));
+        m.put("lines parsed", format("%.0f/s (total %d)", linesParsedRate, linesParsed));
+        m.put("parse time", format("p50=%dns p99=%dns max=%dns",
+          parseNanos.percentile(0.5), parseNanos.percentile(0.99), parseNanos.max()));
+        m.put("batch size", format("mean=%.0f p99=%d", batchSizes.mean(), batchSizes.percentile(0.99)));
+        m.put("lag", format("%d bytes behind", lag));
+        m.put("sampling", format("%.1f%%", samplingRate.getAsDouble() * 100));
+        queues.forEach((name, depth) -> m.put("queue " + name, String.valueOf(depth.getAsInt())));
+        m.put("allocations", allocationRate < 0 ? "n/a" : printBandwidth(allocationRate));
+        m.put("gc", format("%d collections, %.1f%% paused", gcCount, gcPauseRate * 100));
+        return m;
+    }
+
+    /**
+     * @return the percentiles of the parse time and batch size histograms.
+     */
+    Map<String, Object> histograms() {
+        Map<String, Object> m = new LinkedHashMap<>(4);
+        m.put("parseTimeNs", percentiles(parseNanos));
+        m.put("batchSize", percentiles(batchSizes));
+        return m;
+    }
+
+    private static Map<String, Object> percentiles(Histogram h) {
+        Map<String, Object> m = new LinkedHashMap<>(8);
+        m.put("count", h.count());
+        m.put("mean", h.mean());
+        m.put("p50", h.percentile(0.5));
+        m.put("p90", h.percentile(0.9));
+        m.put("p99", h.percentile(0.99));
+        m.put("max", h.max());
+        return m;
+    }
+
+    /**
+     * @return the total number of bytes allocated by all threads, or -1 if not supported (ie. native images).
+     */
+    private static LongSupplier allocatedBytesSupplier() {
+        var threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            var sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+                return () -> {
+                    long total = 0;
+                    for (long bytes : sunThreads.getThreadAllocatedBytes(sunThreads.getAllThreadIds())) {
+                        total += Math.max(0, bytes);
+                    }
+                    return total;
+                };
+            }
+        }
+        return () -> -1L;
+    }
+
+    private static final long SAMPLE_PERIOD_NS = SECONDS.toNanos(1);
+}
@@ -0,0 +1,174 @@
+package com.datadog.yaala;
+
+import com.datadog.yaala.util.Json;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * An immutable snapshot of the statistics, published periodically by the main loop for the
+ * {@link com.datadog.yaala.net.StatsHttpServer} to serve.
+ * <br>
+ * It only holds plain values captured on the main thread, so that readers never touch the live statistics, and its
+ * JSON and Prometheus encodings are computed lazily by the first reader then cached until the next snapshot is
+ * published. Concurrent first readers may encode it more than once, which is harmless.
+ *
+ * @author Nicolas Estrada.
+ */
+@SuppressWarnings("MagicCharacter")
+public final class PublishedStats {
+
+    private final Map<String, Object> stats;
+    private final List<MeterSample> meters;
+
+    @Nullable
+    private volatile byte[] json;
+    @Nullable
+    private volatile byte[] prometheus;
+
+    PublishedStats(Map<String, Object> stats, List<MeterSample> meters) {
+        this.stats = stats;
+        this.meters = meters;
+    }
+
+    /**
+     * @return the totals, routes, clients, alert and histograms as JSON.
+     */
+    public byte[] json() {
+        var bytes = json;
+        if (bytes == null) {
+            bytes = Json.encode(stats).getBytes(UTF_8);
+            json = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return all meters in the Prometheus text exposition format.
+     */
+    public byte[] prometheus() {
+        var bytes = prometheus;
+        if (bytes == null) {
+            bytes = encodePrometheus(meters).getBytes(UTF_8);
+            prometheus = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the current value of all the meters of the arg <i>reg</i>, sorted by name.
+     */
+    static List<MeterSample> sampleMeters(MeterRegistry reg) {
+        List<MeterSample> samples = new ArrayList<>(reg.getMeters().size());
+        for (var meter : reg.getMeters()) {
+            var id = meter.getId();
+            var name = sanitize(id.getName());
+            var type = id.getType();
+            if (type == Meter.Type.COUNTER || type == Meter.Type.GAUGE) {
+                for (var m : meter.measure()) {
+                    samples.add(type == Meter.Type.COUNTER ?
+                      new MeterSample(name + "_total", "counter", id.getTags(), m.getValue()) :
+                      new MeterSample(name, "gauge", id.getTags(), m.getValue()));
+                    break;
+                }
+            } else {
+                for (var m : meter.measure()) {
+                    var statistic = m.getStatistic().getTagValueRepresentation();
+                    samples.add(new MeterSample(name + '_' + sanitize(statistic), "gauge", id.getTags(), m.getValue()));
+                }
+            }
+        }
+        samples.sort(Comparator.comparing(s -> s.name));
+        return samples;
+    }
+
+    private static String encodePrometheus(List<MeterSample> samples) {
+        var sb = new StringBuilder(samples.size() * 64);
+        String lastName = null;
+        for (var s : samples) {
+            if (!s.name.equals(lastName)) {
+                sb.append("# TYPE ").append(s.name).append(' ').append(s.type).append('\n');
+                lastName = s.name;
+            }
+            sb.append(s.name);
+            if (!s.tags.isEmpty()) {
+                sb.append('{');
+                boolean first = true;
+                for (var tag : s.tags) {
+                    if (!first) {
+                        sb.append(',');
+                    }
+                    sb.append(sanitize(tag.getKey())).append("=\"");
+                    escapeLabel(sb, tag.getValue());
+                    sb.append('"');
+                    first = false;
+                }
+                sb.append('}');
+            }
+            sb.append(' ');
+            if (Double.isNaN(s.value)) {
+                sb.append("NaN");
+            } else if (Double.isInfinite(s.value)) {
+                sb.append(s.value > 0 ? "+Inf" : "-Inf");
+            } else {
+                sb.append(s.value);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the arg <i>name</i> with all characters which aren't allowed in Prometheus names replaced by '_'.
+     */
+    static String sanitize(String name) {
+        var sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' ||
+              (i > 0 && c >= '0' && c <= '9');
+            sb.append(valid ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private static void escapeLabel(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * The value of a single meter at the time of the snapshot.
+     */
+    @SuppressWarnings("PackageVisibleField")
+    static final class MeterSample {
+
+        final String name;
+        final String type;
+        final List<Tag> tags;
+        final double value;
+
+        MeterSample(String name, String type, List<Tag> tags, double value) {
+            this.name = name;
+            this.type = type;
+            this.tags = tags;
+            this.value = value;
+        }
+    }
+}
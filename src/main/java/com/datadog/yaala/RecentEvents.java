@@ -0,0 +1,240 @@
+package com.datadog.yaala;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A bounded, columnar ring buffer of the most recent events, for {@link EventQuery}s to answer the ad-hoc questions
+ * the route statistics can't (ie. the bytes sent to every client for 404s over the last 5 minutes).
+ * <br>
+ * Every field is a primitive column indexed by row: the time, status, bytes sent and request time as is, and the
+ * strings (client, remote user, method and route section) as ids into a {@link Dictionary} per column, ie. 36 bytes
+ * per event and no object per row. Once full, the oldest rows are overwritten.
+ * <br>
+ * Dictionaries only grow, until they hold twice as many strings as there are rows: the live rows are then
+ * re-encoded into a compacted dictionary, dropping the strings of the overwritten ones.
+ * <br>
+ * The buffer may be {@link #shrink() shrunk} in order to save memory, in which case only the most recent half of its
+ * events are kept.
+ * <br>
+ * Sampled events aren't weighted. It is a naive, non-thread safe implementation, hence events must not be added
+ * while being scanned.
+ *
+ * @author Nicolas Estrada.
+ */
+final class RecentEvents {
+
+    private int capacity;
+    private long[] times;
+    private int[] statuses;
+    private int[] bytes;
+    // Request times in milliseconds, NaN if the format doesn't have them
+    private float[] latencies;
+    private int[][] ids;
+    private final Dictionary[] dictionaries;
+    private int size;
+    private int next;
+
+    RecentEvents(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.times = new long[capacity];
+        this.statuses = new int[capacity];
+        this.bytes = new int[capacity];
+        this.latencies = new float[capacity];
+        var dimensions = Dimension.values();
+        this.ids = new int[dimensions.length][capacity];
+        this.dictionaries = new Dictionary[dimensions.length];
+        for (var d : dimensions) {
+            dictionaries[d.ordinal()] = new Dictionary();
+        }
+    }
+
+    /**
+     * Appends the arg <i>evt</i>, overwriting the oldest event if the buffer is full.
+     *
+     * @param time  the time of the event, in milliseconds since the epoch.
+     * @param route the section of the route of the event.
+     */
+    void add(LogEvent evt, long time, String route) {
+        int i = next;
+        times[i] = time;
+        statuses[i] = evt.getStatus();
+        bytes[i] = evt.getBytesSent();
+        latencies[i] = (float) (evt.getRequestTime() * 1000);
+        encode(i, Dimension.CLIENT, evt.getClientIP());
+        encode(i, Dimension.USER, evt.getRemoteUser() != null ? evt.getRemoteUser() : "-");
+        encode(i, Dimension.METHOD, evt.getMethod());
+        encode(i, Dimension.ROUTE, route);
+        next = next + 1 == capacity ? 0 : next + 1;
+        if (size < capacity) {
+            size++;
+        }
+    }
+
+    private void encode(int row, Dimension dimension, String value) {
+        int d = dimension.ordinal();
+        int id = dictionaries[d].find(value);
+        if (id < 0) {
+            if (dictionaries[d].size() >= capacity << 1) {
+                compact(d);
+            }
+            id = dictionaries[d].add(value);
+        }
+        ids[d][row] = id;
+    }
+
+    /**
+     * Re-encodes the live rows of the arg <i>dimension</i> into a new dictionary, holding only their strings.
+     */
+    private void compact(int dimension) {
+        var old = dictionaries[dimension];
+        var compacted = new Dictionary();
+        var column = ids[dimension];
+        for (int i = 0; i < size; i++) {
+            var value = old.value(column[i]);
+            int id = compacted.find(value);
+            column[i] = id >= 0 ? id : compacted.add(value);
+        }
+        dictionaries[dimension] = compacted;
+    }
+
+    /**
+     * Halves the capacity of the buffer, keeping the most recent events and only their strings.
+     *
+     * @return whether the buffer was shrunk, which isn't the case below {@value #MIN_SHRUNK_CAPACITY} events.
+     */
+    boolean shrink() {
+        int newCapacity = capacity >> 1;
+        if (newCapacity < MIN_SHRUNK_CAPACITY) {
+            return false;
+        }
+        int kept = Math.min(size, newCapacity);
+        // The kept rows are copied from the oldest to the newest, the newest being right before the next one
+        int from = Math.floorMod(next - kept, capacity);
+        times = shrink(times, new long[newCapacity], from, kept);
+        statuses = shrink(statuses, new int[newCapacity], from, kept);
+        bytes = shrink(bytes, new int[newCapacity], from, kept);
+        latencies = shrink(latencies, new float[newCapacity], from, kept);
+        for (int d = 0; d < ids.length; d++) {
+            ids[d] = shrink(ids[d], new int[newCapacity], from, kept);
+        }
+        capacity = newCapacity;
+        size = kept;
+        next = kept == newCapacity ? 0 : kept;
+        for (int d = 0; d < dictionaries.length; d++) {
+            compact(d);
+        }
+        return true;
+    }
+
+    private <T> T shrink(T column, T shrunk, int from, int kept) {
+        int head = Math.min(kept, capacity - from);
+        System.arraycopy(column, from, shrunk, 0, head);
+        System.arraycopy(column, 0, shrunk, head, kept - head);
+        return shrunk;
+    }
+
+    /**
+     * @return the number of live rows, which are the first ones of every column.
+     */
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    long[] times() {
+        return times;
+    }
+
+    int[] statuses() {
+        return statuses;
+    }
+
+    int[] bytes() {
+        return bytes;
+    }
+
+    float[] latencies() {
+        return latencies;
+    }
+
+    /**
+     * @return the dictionary ids of the arg <i>dimension</i>, by row.
+     */
+    int[] ids(Dimension dimension) {
+        return ids[dimension.ordinal()];
+    }
+
+    Dictionary dictionary(Dimension dimension) {
+        return dictionaries[dimension.ordinal()];
+    }
+
+    /**
+     * @return the approximate memory used by the columns and dictionaries, in bytes.
+     */
+    long memoryBytes() {
+        long bytes = (long) capacity * ROW_BYTES;
+        for (var dictionary : dictionaries) {
+            bytes += (long) dictionary.size() * DICTIONARY_ENTRY_BYTES;
+        }
+        return bytes;
+    }
+
+    /**
+     * The dictionary encoded string columns.
+     */
+    enum Dimension {
+        CLIENT,
+        USER,
+        METHOD,
+        ROUTE
+    }
+
+    /**
+     * Assigns consecutive ids to distinct strings.
+     */
+    static final class Dictionary {
+
+        private final Map<String, Integer> ids = new HashMap<>(64);
+        private String[] values = new String[64];
+
+        /**
+         * @return the id of the arg <i>value</i>, or -1 if it wasn't added.
+         */
+        int find(String value) {
+            var id = ids.get(value);
+            return id != null ? id : -1;
+        }
+
+        private int add(String value) {
+            int id = ids.size();
+            if (id == values.length) {
+                values = Arrays.copyOf(values, id << 1);
+            }
+            values[id] = value;
+            ids.put(value, id);
+            return id;
+        }
+
+        String value(int id) {
+            return values[id];
+        }
+
+        int size() {
+            return ids.size();
+        }
+    }
+
+    private static final int MIN_SHRUNK_CAPACITY = 1024;
+    // 1 long, 2 ints, 1 float and 4 int ids
+    private static final int ROW_BYTES = 36;
+    // A rough estimate of a short string, its boxed id and hash map entry
+    private static final int DICTIONARY_ENTRY_BYTES = 100;
+}
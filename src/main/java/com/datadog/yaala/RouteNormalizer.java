@@ -0,0 +1,168 @@
+package com.datadog.yaala;
+
+import com.datadog.yaala.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.datadog.yaala.LogStatistics.routeSection;
+
+/**
+ * This class is responsible for collapsing high cardinality routes (ie. <code>/users/12345/orders/987</code>)
+ * into route <i>templates</i> (ie. <code>/users/{id}/orders/{id}</code>) before they are truncated into sections.
+ * <br>
+ * Numeric, UUID and hash (long hexadecimal strings) segments are replaced by placeholders, and user supplied
+ * templates such as <code>/users/{name}</code> take precedence over the latter. Since routes are highly repetitive,
+ * all results are cached in a bounded {@link LruCache} keyed by the raw route.
+ *
+ * @author Nicolas Estrada.
+ */
+@SuppressWarnings("MagicCharacter")
+final class RouteNormalizer {
+
+    static final String ID = "{id}";
+    static final String UUID = "{uuid}";
+    static final String HASH = "{hash}";
+
+    private final int routeDepth;
+    private final List<String[]> templates;
+    private final LruCache<String, String> sections;
+
+    RouteNormalizer(Config cfg) {
+        this.routeDepth = cfg.routeDepth();
+        this.templates = new ArrayList<>(cfg.routeTemplates().size());
+        for (var template : cfg.routeTemplates()) {
+            templates.add(segments(template));
+        }
+        this.sections = new LruCache<>(cfg.routeCacheSize());
+    }
+
+    /**
+     * @return the normalized section of the arg <i>route</i>, truncated at the configured route depth.
+     */
+    String section(String route) {
+        var section = sections.get(route);
+        if (section == null) {
+            section = routeSection(normalize(route), routeDepth);
+            sections.put(route, section);
+        }
+        return section;
+    }
+
+    /**
+     * @return the number of cached routes.
+     */
+    int cacheSize() {
+        return sections.size();
+    }
+
+    /**
+     * Collapses the arg <i>route</i> (without any query params) into its template form.
+     */
+    String normalize(String route) {
+        if (!route.startsWith("/")) {
+            return route;
+        }
+        int qIx = route.indexOf('?');
+        var path = qIx >= 0 ? route.substring(0, qIx) : route;
+        var segments = segments(path);
+        int start = applyTemplate(segments);
+        var sb = new StringBuilder(path.length());
+        for (int i = 0; i < segments.length; i++) {
+            sb.append('/');
+            sb.append(i < start ? segments[i] : placeholder(segments[i]));
+        }
+        if (sb.length() == 0 || path.endsWith("/")) {
+            sb.append('/');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Rewrites the leading segments matching the first user supplied template.
+     *
+     * @return the number of rewritten segments which shouldn't be collapsed any further.
+     */
+    private int applyTemplate(String[] segments) {
+        for (var template : templates) {
+            if (template.length <= segments.length && matches(template, segments)) {
+                System.arraycopy(template, 0, segments, 0, template.length);
+                return template.length;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean matches(String[] template, String[] segments) {
+        for (int i = 0; i < template.length; i++) {
+            var seg = template[i];
+            if (!isVariable(seg) && !seg.equals(segments[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isVariable(String segment) {
+        return segment.length() > 1 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}';
+    }
+
+    /**
+     * @return the placeholder for the arg <i>segment</i> if it is an identifier, or the segment itself.
+     */
+    static String placeholder(String segment) {
+        int len = segment.length();
+        if (len == 0) {
+            return segment;
+        }
+        boolean digits = true;
+        boolean hex = true;
+        for (int i = 0; i < len && hex; i++) {
+            char c = segment.charAt(i);
+            digits &= c >= '0' && c <= '9';
+            hex = isHex(c);
+        }
+        if (digits) {
+            return ID;
+        } else if (hex && len >= MIN_HASH_LENGTH) {
+            return HASH;
+        } else if (isUUID(segment)) {
+            return UUID;
+        }
+        return segment;
+    }
+
+    private static boolean isUUID(String segment) {
+        if (segment.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = segment.charAt(i);
+            boolean dash = i == 8 || i == 13 || i == 18 || i == 23;
+            if (dash ? c != '-' : !isHex(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    private static String[] segments(String route) {
+        List<String> segments = new ArrayList<>(8);
+        int from = route.startsWith("/") ? 1 : 0;
+        while (from < route.length()) {
+            int ix = route.indexOf('/', from);
+            if (ix < 0) {
+                ix = route.length();
+            }
+            segments.add(route.substring(from, ix));
+            from = ix + 1;
+        }
+        return segments.toArray(new String[0]);
+    }
+
+    private static final int MIN_HASH_LENGTH = 16;
+}
@@ -0,0 +1,204 @@
+package com.datadog.yaala;
+
+import com.datadog.yaala.util.Histogram;
+import com.datadog.yaala.util.SpscQueue;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import static io.micrometer.core.instrument.Metrics.globalRegistry;
+import static java.lang.Math.floorMod;
+import static java.lang.System.nanoTime;
+
+/**
+ * Spreads the parsing and aggregation of log lines over several shards, each one owned by its own thread with its own
+ * unsynchronized {@link LogStatistics}, and fed by its own {@link SpscQueue} from the main loop.
+ * <br>
+ * Lines are partitioned by a hash of the first segment of their route (found without parsing the line), so that
+ * shards track disjoint route sections. Nothing is shared between shards on the hot path: the statistics of every
+ * shard are only merged into the main {@link LogStatistics} when requested by {@link ShardedIngest#collect}, as
+ * {@link StatsSnapshot} deltas just like those of remote agents.
+ * <br>
+ * Top clients aren't part of the snapshots and are therefore not tracked when sharding.
+ *
+ * @author Nicolas Estrada.
+ */
+final class ShardedIngest implements AutoCloseable {
+
+    private final Shard[] shards;
+    private final Queue<Report> reports;
+    // Last sampling weight sent to each shard (main thread only)
+    private final double[] weights;
+
+    ShardedIngest(Config cfg, int n, PipelineMetrics pipeline) {
+        this.shards = new Shard[n];
+        this.reports = new ConcurrentLinkedQueue<>();
+        this.weights = new double[n];
+        for (int i = 0; i < n; i++) {
+            var shard = new Shard("shard-" + i, cfg, reports);
+            shards[i] = shard;
+            weights[i] = 1.0;
+            pipeline.registerQueue(shard.name, shard.queue::size, globalRegistry);
+            var thread = new Thread(shard, "yaala-" + shard.name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Hands the arg <i>line</i> over to its shard, waiting for room in the latter's queue if it is full.
+     */
+    void dispatch(String line, double weight) {
+        int ix = partition(line, shards.length);
+        var queue = shards[ix].queue;
+        if (weight != weights[ix]) {
+            // Weights only change when the sampling rate does, hence boxing them is cheaper than wrapping every line
+            offer(queue, weight);
+            weights[ix] = weight;
+        }
+        offer(queue, line);
+    }
+
+    private static void offer(SpscQueue<Object> queue, Object item) {
+        while (!queue.offer(item)) {
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Merges the deltas reported by the shards since the previous call, then requests the next ones. Shards report
+     * asynchronously, so the merged statistics lag by up to one call.
+     */
+    void collect(Consumer<StatsSnapshot> merge, PipelineMetrics pipeline) {
+        Report report;
+        while ((report = reports.poll()) != null) {
+            merge.accept(report.snapshot);
+            pipeline.recordParses(report.parseNanos, report.parsed);
+        }
+        for (var shard : shards) {
+            shard.requested = true;
+        }
+    }
+
+    /**
+     * @return the shard of the arg <i>line</i>, by hashing the first segment of the route following the method.
+     */
+    @SuppressWarnings("MagicCharacter")
+    static int partition(String line, int n) {
+        int h = 0;
+        int quote = line.indexOf('"');
+        int from = quote >= 0 ? line.indexOf(' ', quote) + 1 : 0;
+        if (from > 0) {
+            for (int i = from; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c == ' ' || c == '?' || (c == '/' && i > from)) {
+                    break;
+                }
+                h = 31 * h + c;
+            }
+        }
+        // Spread the bits since there are usually very few route sections
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return floorMod(h, n);
+    }
+
+    @Override
+    public void close() {
+        for (var shard : shards) {
+            shard.running = false;
+        }
+    }
+
+    private static final int QUEUE_CAPACITY = 1 << 14;
+
+    /**
+     * The statistics deltas and parsing metrics of a shard since its previous report.
+     */
+    private static final class Report {
+
+        private final StatsSnapshot snapshot;
+        private final Histogram parseNanos;
+        private final long parsed;
+
+        private Report(StatsSnapshot snapshot, Histogram parseNanos, long parsed) {
+            this.snapshot = snapshot;
+            this.parseNanos = parseNanos;
+            this.parsed = parsed;
+        }
+    }
+
+    /**
+     * A single shard, whose statistics are only ever touched by its own thread.
+     */
+    private static final class Shard implements Runnable {
+
+        private final String name;
+        private final LogFormat logFormat;
+        private final LogStatistics statistics;
+        private final SpscQueue<Object> queue;
+        private final Queue<Report> reports;
+        private volatile boolean requested;
+        private volatile boolean running = true;
+
+        // Owned by the shard thread
+        private Histogram parseNanos = new Histogram();
+        private long parsed;
+        private double weight = 1.0;
+
+        private Shard(String name, Config cfg, Queue<Report> reports) {
+            this.name = name;
+            this.logFormat = cfg.logFormat();
+            this.statistics = new LogStatistics(cfg, false);
+            this.queue = new SpscQueue<>(QUEUE_CAPACITY);
+            this.reports = reports;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                int n = 0;
+                Object item;
+                while (n < BATCH_SIZE && (item = queue.poll()) != null) {
+                    process(item);
+                    n++;
+                }
+                if (requested) {
+                    report();
+                }
+                if (n == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NS);
+                }
+            }
+        }
+
+        private void process(Object item) {
+            if (item instanceof Double) {
+                weight = (Double) item;
+                return;
+            }
+            long start = nanoTime();
+            var evt = logFormat.parse((String) item);
+            parseNanos.record(nanoTime() - start);
+            if (evt.isPresent()) {
+                parsed++;
+                statistics.ingest(evt.get(), weight);
+            } else {
+                statistics.incRequests();
+            }
+        }
+
+        private void report() {
+            requested = false;
+            reports.add(new Report(statistics.snapshotDelta(name), parseNanos, parsed));
+            parseNanos = new Histogram();
+            parsed = 0;
+        }
+
+        private static final int BATCH_SIZE = 256;
+        private static final long IDLE_PARK_NS = 100_000L;
+    }
+}
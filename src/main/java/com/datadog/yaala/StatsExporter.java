@@ -0,0 +1,222 @@
+package com.datadog.yaala;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Exports the per route statistics of every step to rolling local files, in order to keep them for offline analysis.
+ * <br>
+ * Rows are encoded by the ingesting thread into a private batch which is handed over when flushed, by copying it into
+ * the front buffer under a lock which is never held while writing. A background thread swaps the front and back
+ * buffers, then writes the whole back buffer (with the header of a new file, if any) in a single gathering write.
+ * Hence the ingesting thread never waits on the disk: if the writer falls behind by a whole buffer, batches are
+ * dropped and counted instead.
+ * <br>
+ * Files are rolled once they exceed <i>maxFileBytes</i>, only the <i>maxFiles</i> most recent ones being kept.
+ *
+ * @author Nicolas Estrada.
+ */
+final class StatsExporter implements AutoCloseable {
+
+    private final Path dir;
+    private final ExportFormat format;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final long startTime;
+    private final Thread writer;
+
+    // Ingesting thread only
+    private final StringBuilder batch;
+
+    // Guarded by this
+    private ByteBuffer front;
+    private boolean closed;
+    private long dropped;
+
+    // Writer thread only
+    private ByteBuffer back;
+    private final Deque<Path> files;
+    @Nullable
+    private FileChannel channel;
+    private long fileBytes;
+    private int fileIndex;
+
+    @Nullable
+    private volatile IOException failure;
+
+    private StatsExporter(Path dir, ExportFormat format, long maxFileBytes, int maxFiles, int bufferBytes) {
+        this.dir = dir;
+        this.format = format;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.startTime = System.currentTimeMillis();
+        this.batch = new StringBuilder(BATCH_CAPACITY);
+        this.front = ByteBuffer.allocate(bufferBytes);
+        this.back = ByteBuffer.allocate(bufferBytes);
+        this.files = new ArrayDeque<>(maxFiles + 1);
+        this.writer = new Thread(this::writeLoop, "yaala-exporter");
+        writer.setDaemon(true);
+    }
+
+    /**
+     * Starts exporting to files in the arg <i>dir</i>, which is created if necessary.
+     */
+    static StatsExporter open(Path dir, ExportFormat format, long maxFileBytes, int maxFiles) throws IOException {
+        return open(dir, format, maxFileBytes, maxFiles, BUFFER_BYTES);
+    }
+
+    static StatsExporter open(Path dir,
+                              ExportFormat format,
+                              long maxFileBytes,
+                              int maxFiles,
+                              int bufferBytes) throws IOException {
+        Files.createDirectories(dir);
+        var exporter = new StatsExporter(dir, format, maxFileBytes, maxFiles, bufferBytes);
+        exporter.writer.start();
+        return exporter;
+    }
+
+    /**
+     * Appends the row of a route to the current batch (ingesting thread only).
+     *
+     * @see ExportFormat#COLUMNS
+     */
+    void append(long timeMs, String route, double[] values) {
+        format.append(batch, timeMs, route, values);
+    }
+
+    /**
+     * Hands the current batch over to the writer (ingesting thread only).
+     */
+    void flush() {
+        if (batch.length() == 0) {
+            return;
+        }
+        var bytes = batch.toString().getBytes(UTF_8);
+        batch.setLength(0);
+        synchronized (this) {
+            if (closed || failure != null || bytes.length > front.remaining()) {
+                dropped++;
+                return;
+            }
+            front.put(bytes);
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return a summary of the exporter for the pipeline panel.
+     */
+    synchronized String summary() {
+        var error = failure;
+        return error != null ?
+          format("failed: %s", error.getMessage()) :
+          format("%s (%d files), %d batches dropped", dir, files.size(), dropped);
+    }
+
+    synchronized long dropped() {
+        return dropped;
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (front.position() == 0 && !closed) {
+                        wait();
+                    }
+                    if (front.position() == 0) {
+                        break;
+                    }
+                    var swap = front;
+                    front = back;
+                    back = swap;
+                }
+                back.flip();
+                write(back);
+                back.clear();
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeFile();
+        }
+    }
+
+    private void write(ByteBuffer buf) throws IOException {
+        ByteBuffer header = null;
+        if (channel == null || (fileBytes > 0 && fileBytes + buf.remaining() > maxFileBytes)) {
+            roll();
+            var line = format.header();
+            header = ByteBuffer.wrap(line != null ? line.getBytes(UTF_8) : new byte[0]);
+        }
+        assert channel != null;
+        var bufs = header != null ? new ByteBuffer[]{header, buf} : new ByteBuffer[]{buf};
+        while (buf.hasRemaining()) {
+            fileBytes += channel.write(bufs);
+        }
+    }
+
+    private void roll() throws IOException {
+        closeFile();
+        var path = dir.resolve(format("yaala-%d-%04d.%s", startTime, fileIndex++, format.extension()));
+        channel = FileChannel.open(path, CREATE, WRITE, TRUNCATE_EXISTING);
+        fileBytes = 0;
+        // Only one file is added at a time, hence at most one expires, which is deleted outside of the lock
+        Path expired = null;
+        synchronized (this) {
+            files.add(path);
+            if (files.size() > maxFiles) {
+                expired = files.removeFirst();
+            }
+        }
+        if (expired != null) {
+            Files.deleteIfExists(expired);
+        }
+    }
+
+    private void closeFile() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Flushes the current batch and waits for everything to be written, unless interrupted.
+     */
+    @Override
+    public void close() {
+        flush();
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final int BATCH_CAPACITY = 16 << 10;
+    // Room for ~25k rows per step
+    private static final int BUFFER_BYTES = 4 << 20;
+}
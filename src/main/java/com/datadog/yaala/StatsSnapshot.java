@@ -0,0 +1,281 @@
+package com.datadog.yaala;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.lang.Math.max;
+
+/**
+ * A compact and mergeable binary snapshot of the {@link LogStatistics} state, used by agents to ship the
+ * <i>deltas</i> accumulated since their last snapshot to an aggregator.
+ * <br>
+ * Counters are deltas which are summed when merged, and sketch registers are only those which increased since the
+ * last snapshot (merged by taking the maximum), so both agents and aggregators can merge snapshots in any order.
+ * <br>
+ * Only what {@link LogStatistics} keeps for good is shipped: request times as a sum rather than a histogram, and no
+ * rate history, which the aggregator rebuilds from the hits as snapshots are merged. The <i>other</i> bucket is
+ * shipped as the {@link LogStatistics#OTHER_ROUTE} section, which merges into the other bucket of the aggregator.
+ * <br>
+ * The wire format is as follows, where all integers are unsigned varints:
+ * <pre>
+ * version:byte agent:utf wallTime:long requests visitors:sketch users:sketch #routes route*
+ * route  := section:utf hits bytes errors latency visitors:sketch users:sketch
+ * sketch := precision:byte #registers (index value:byte)*
+ * </pre>
+ *
+ * @author Nicolas Estrada.
+ */
+public final class StatsSnapshot {
+
+    private final String agent;
+    private final long wallTime;
+    private long requests;
+    private final byte[] visitors;
+    private final byte[] users;
+    private final Map<String, Route> routes;
+
+    StatsSnapshot(String agent, long wallTime, int precision) {
+        this.agent = agent;
+        this.wallTime = wallTime;
+        this.visitors = new byte[1 << precision];
+        this.users = new byte[1 << precision];
+        this.routes = new LinkedHashMap<>(16);
+    }
+
+    public String getAgent() {
+        return agent;
+    }
+
+    public long getWallTime() {
+        return wallTime;
+    }
+
+    long getRequests() {
+        return requests;
+    }
+
+    void addRequests(long delta) {
+        requests += delta;
+    }
+
+    byte[] getVisitors() {
+        return visitors;
+    }
+
+    byte[] getUsers() {
+        return users;
+    }
+
+    Collection<Route> getRoutes() {
+        return routes.values();
+    }
+
+    /**
+     * @return the route delta for the arg <i>section</i>, creating it if necessary.
+     */
+    Route route(String section, int precision) {
+        return routes.computeIfAbsent(section, k -> new Route(section, precision));
+    }
+
+    /**
+     * @return {@code true} if nothing happened since the previous snapshot.
+     */
+    public boolean isEmpty() {
+        return requests == 0 && routes.isEmpty();
+    }
+
+    /**
+     * Merges the arg <i>other</i> snapshot into this one (ie. coalescing deltas which couldn't be sent).
+     */
+    public void merge(StatsSnapshot other) {
+        requests += other.requests;
+        maxRegisters(visitors, other.visitors);
+        maxRegisters(users, other.users);
+        for (var r : other.routes.values()) {
+            var route = route(r.section, precisionOf(r.visitors));
+            route.hits += r.hits;
+            route.bytes += r.bytes;
+            route.errors += r.errors;
+            route.latency += r.latency;
+            maxRegisters(route.visitors, r.visitors);
+            maxRegisters(route.users, r.users);
+        }
+    }
+
+    /**
+     * Writes the snapshot into the arg <i>out</i> using the wire format.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(VERSION);
+        out.writeUTF(agent);
+        out.writeLong(wallTime);
+        writeVarLong(out, requests);
+        writeSketch(out, visitors);
+        writeSketch(out, users);
+        writeVarLong(out, routes.size());
+        for (var r : routes.values()) {
+            out.writeUTF(r.section);
+            writeVarLong(out, r.hits);
+            writeVarLong(out, r.bytes);
+            writeVarLong(out, r.errors);
+            writeVarLong(out, r.latency);
+            writeSketch(out, r.visitors);
+            writeSketch(out, r.users);
+        }
+    }
+
+    /**
+     * Reads a snapshot from the arg <i>in</i> using the wire format.
+     */
+    public static StatsSnapshot readFrom(DataInput in) throws IOException {
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported snapshot version: " + version);
+        }
+        var agent = in.readUTF();
+        long wallTime = in.readLong();
+        long requests = readVarLong(in);
+        var visitors = readSketch(in);
+        var users = readSketch(in);
+        var snapshot = new StatsSnapshot(agent, wallTime, precisionOf(visitors));
+        snapshot.requests = requests;
+        maxRegisters(snapshot.visitors, visitors);
+        maxRegisters(snapshot.users, users);
+        long n = readVarLong(in);
+        for (long i = 0; i < n; i++) {
+            var section = in.readUTF();
+            long hits = readVarLong(in);
+            long bytes = readVarLong(in);
+            long errors = readVarLong(in);
+            long latency = readVarLong(in);
+            var routeVisitors = readSketch(in);
+            var routeUsers = readSketch(in);
+            var route = snapshot.route(section, precisionOf(routeVisitors));
+            route.hits += hits;
+            route.bytes += bytes;
+            route.errors += errors;
+            route.latency += latency;
+            maxRegisters(route.visitors, routeVisitors);
+            maxRegisters(route.users, routeUsers);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return {@code true} if any register of <i>current</i> is greater than those already <i>sent</i>.
+     */
+    static boolean hasNewRegisters(byte[] current, byte[] sent) {
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] > sent[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies all the registers of <i>current</i> greater than those already <i>sent</i> into <i>delta</i>,
+     * marking them as sent.
+     */
+    static void diffRegisters(byte[] current, byte[] sent, byte[] delta) {
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] > sent[i]) {
+                sent[i] = current[i];
+                delta[i] = current[i];
+            }
+        }
+    }
+
+    static void maxRegisters(byte[] registers, byte[] other) {
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = (byte) max(registers[i], other[i]);
+        }
+    }
+
+    private static int precisionOf(byte[] registers) {
+        return Integer.numberOfTrailingZeros(registers.length);
+    }
+
+    private static void writeSketch(DataOutput out, byte[] registers) throws IOException {
+        out.writeByte(precisionOf(registers));
+        int n = 0;
+        for (byte r : registers) {
+            if (r != 0) {
+                n++;
+            }
+        }
+        writeVarLong(out, n);
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] != 0) {
+                writeVarLong(out, i);
+                out.writeByte(registers[i]);
+            }
+        }
+    }
+
+    private static byte[] readSketch(DataInput in) throws IOException {
+        int precision = in.readByte();
+        if (precision < 4 || precision > 18) {
+            throw new IOException("invalid sketch precision: " + precision);
+        }
+        var registers = new byte[1 << precision];
+        long n = readVarLong(in);
+        for (long i = 0; i < n; i++) {
+            long ix = readVarLong(in);
+            if (ix >= registers.length) {
+                throw new IOException("invalid sketch register: " + ix);
+            }
+            registers[(int) ix] = in.readByte();
+        }
+        return registers;
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        long v = value;
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private static final int VERSION = 2;
+
+    /**
+     * The delta of a single route section.
+     */
+    @SuppressWarnings("PackageVisibleField")
+    static final class Route {
+
+        final String section;
+        long hits;
+        long bytes;
+        long errors;
+        // Sum of all request times, in milliseconds
+        long latency;
+        final byte[] visitors;
+        final byte[] users;
+
+        private Route(String section, int precision) {
+            this.section = section;
+            this.visitors = new byte[1 << precision];
+            this.users = new byte[1 << precision];
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.datadog.yaala;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static java.nio.charset.Charset.defaultCharset;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A sparse index of a log file mapping timestamps to byte offsets, in order to seek straight to a time range
+ * instead of reading the file from its start.
+ * <br>
+ * An entry is sampled every <i>interval</i> bytes: the first complete line following each multiple of the interval
+ * whose timestamp can be parsed, read with a single positional read. Building the index of a 40GB file at 16MB
+ * intervals thus costs ~2.5k small reads, and it is extended incrementally as the file grows.
+ * <br>
+ * The index is persisted next to the log, in a <code>.yaala-idx</code> sidecar file, which is only appended to:
+ * <pre>
+ * magic:int version:int interval:long (offset:long time:long)*
+ * </pre>
+ * A sidecar whose last entry doesn't match the log anymore (ie. it was truncated or rotated) is rebuilt. If it can't
+ * be written, the index is only kept in memory.
+ * <br>
+ * Timestamps are assumed to be (mostly) increasing, as they are logged when requests complete. It is a naive,
+ * non-thread safe implementation.
+ *
+ * @author Nicolas Estrada.
+ */
+@SuppressWarnings("MagicCharacter")
+final class TimeIndex implements AutoCloseable {
+
+    private final FileChannel log;
+    private final LogFormat format;
+    private final long interval;
+    @Nullable
+    private final FileChannel sidecar;
+    private final ByteBuffer chunk;
+    private long[] offsets;
+    private long[] times;
+    private int size;
+    // The offset from which the next entry is sampled
+    private long next;
+
+    private TimeIndex(FileChannel log, LogFormat format, long interval, @Nullable FileChannel sidecar) {
+        this.log = log;
+        this.format = format;
+        this.interval = interval;
+        this.sidecar = sidecar;
+        this.chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        this.offsets = new long[64];
+        this.times = new long[64];
+    }
+
+    /**
+     * Opens the index of the arg <i>path</i> log, loading its sidecar file if it is still valid, then extends it to
+     * the end of the log.
+     */
+    static TimeIndex open(Path path, LogFormat format, long interval) throws IOException {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+        }
+        var log = FileChannel.open(path, READ);
+        FileChannel sidecar;
+        try {
+            sidecar = FileChannel.open(sidecarOf(path), CREATE, READ, WRITE);
+        } catch (IOException e) {
+            sidecar = null;
+        }
+        var index = new TimeIndex(log, format, interval, sidecar);
+        if (!index.load()) {
+            index.reset();
+        }
+        index.extend();
+        return index;
+    }
+
+    static Path sidecarOf(Path path) {
+        return path.resolveSibling(path.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Samples the entries of the part of the log written since the last call.
+     */
+    void extend() throws IOException {
+        long end = log.size();
+        int from = size;
+        while (next < end) {
+            long sampled = sample(next);
+            if (sampled == INCOMPLETE) {
+                break;
+            }
+            next += interval;
+            if (sampled >= 0) {
+                next = Math.max(next, sampled - sampled % interval + interval);
+            }
+        }
+        if (sidecar != null && size > from) {
+            var buf = ByteBuffer.allocate((size - from) * ENTRY_BYTES);
+            for (int i = from; i < size; i++) {
+                buf.putLong(offsets[i]).putLong(times[i]);
+            }
+            buf.flip();
+            long position = HEADER_BYTES + (long) from * ENTRY_BYTES;
+            while (buf.hasRemaining()) {
+                position += sidecar.write(buf, position);
+            }
+        }
+    }
+
+    /**
+     * @return the offset of the last entry logged before <i>timeMs</i>, from which all lines logged at or after
+     * <i>timeMs</i> follow (0 if there isn't any).
+     */
+    long offsetOf(long timeMs) {
+        int i = firstAfter(timeMs - 1);
+        return i > 0 ? offsets[i - 1] : 0L;
+    }
+
+    /**
+     * @return the offset of the first entry logged after <i>timeMs</i>, up to which all lines logged at or before
+     * <i>timeMs</i> are found ({@link Long#MAX_VALUE} if there isn't any).
+     */
+    long endOffsetOf(long timeMs) {
+        int i = firstAfter(timeMs);
+        return i < size ? offsets[i] : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the index of the first entry whose time is strictly after <i>timeMs</i>.
+     */
+    private int firstAfter(long timeMs) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] <= timeMs) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Indexes the first complete line following the arg <i>position</i> whose time can be parsed.
+     *
+     * @return the offset of the indexed line, -1 if none could be parsed in a whole chunk, or {@link
+     * TimeIndex#INCOMPLETE} if the end of the log was reached first.
+     */
+    private long sample(long position) throws IOException {
+        // Starts before the position in case a line starts right at it
+        long start = Math.max(0, position - 1);
+        chunk.clear();
+        while (chunk.hasRemaining() && log.read(chunk, start + chunk.position()) > 0) {
+            // Reads a whole chunk, unless the end of the log is reached
+        }
+        var bytes = chunk.array();
+        int len = chunk.position();
+        int i = position == 0 ? 0 : nextLine(bytes, 0, len);
+        while (i >= 0 && i < len) {
+            int nl = nextLine(bytes, i, len);
+            if (nl < 0) {
+                break;
+            }
+            int end = nl > i + 1 && bytes[nl - 2] == '\r' ? nl - 2 : nl - 1;
+            long time = format.parseTime(new String(bytes, i, end - i, defaultCharset()));
+            if (time != -1) {
+                add(start + i, time);
+                return start + i;
+            }
+            i = nl;
+        }
+        return len < CHUNK_SIZE ? INCOMPLETE : -1;
+    }
+
+    /**
+     * @return the index following the next line feed from <i>from</i>, or -1 if there isn't any.
+     */
+    private static int nextLine(byte[] bytes, int from, int len) {
+        for (int i = from; i < len; i++) {
+            if (bytes[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private void add(long offset, long time) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size << 1);
+            times = Arrays.copyOf(times, size << 1);
+        }
+        offsets[size] = offset;
+        times[size] = time;
+        size++;
+    }
+
+    /**
+     * Loads the entries of the sidecar file, provided it was built with the same interval and its last entry still
+     * matches the log.
+     *
+     * @return {@code true} if it was loaded.
+     */
+    private boolean load() throws IOException {
+        if (sidecar == null || sidecar.size() < HEADER_BYTES) {
+            return false;
+        }
+        var header = ByteBuffer.allocate(HEADER_BYTES);
+        sidecar.read(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getLong() != interval) {
+            return false;
+        }
+        int entries = (int) ((sidecar.size() - HEADER_BYTES) / ENTRY_BYTES);
+        var buf = ByteBuffer.allocate(entries * ENTRY_BYTES);
+        while (buf.hasRemaining() && sidecar.read(buf, HEADER_BYTES + buf.position()) > 0) {
+            // Reads all entries
+        }
+        buf.flip();
+        for (int i = 0; i < entries; i++) {
+            add(buf.getLong(), buf.getLong());
+        }
+        if (size == 0) {
+            return true;
+        }
+        long last = offsets[size - 1];
+        long time = times[size - 1];
+        size--;
+        if (last >= log.size() || sample(last) != last || times[size - 1] != time) {
+            size = 0;
+            return false;
+        }
+        next = last - last % interval + interval;
+        return true;
+    }
+
+    /**
+     * Drops all entries, and truncates the sidecar file to a new header.
+     */
+    private void reset() throws IOException {
+        size = 0;
+        next = 0;
+        if (sidecar != null) {
+            sidecar.truncate(0);
+            var header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).putLong(interval);
+            header.flip();
+            while (header.hasRemaining()) {
+                sidecar.write(header, header.position());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+        if (sidecar != null) {
+            sidecar.close();
+        }
+    }
+
+    static final String SUFFIX = ".yaala-idx";
+    private static final int MAGIC = 0x5949_4458;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int ENTRY_BYTES = 16;
+    // Large enough for a few lines, in case some can't be parsed
+    private static final int CHUNK_SIZE = 64 << 10;
+    private static final long INCOMPLETE = -2;
+}
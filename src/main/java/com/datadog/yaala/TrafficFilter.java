@@ -0,0 +1,451 @@
+package com.datadog.yaala;
+
+import com.datadog.yaala.util.LineFilter;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Restricts the monitored traffic to the lines matching user supplied expressions, evaluated on the raw bytes of
+ * the lines before they are even decoded, let alone parsed into {@link LogEvent}s.
+ * <br>
+ * An expression is made of clauses joined by <code>&&</code>, all of which must match, each comparing a field to
+ * one or more comma separated alternatives:
+ * <pre>
+ * status>=500 && route=/api/*,/admin/*
+ * client!=10.0.0.0/8 && method=GET,HEAD
+ * bytes>1048576
+ * </pre>
+ * <ul>
+ * <li><code>status</code> and <code>bytes</code> support <code>= != &lt; &lt;= &gt; &gt;=</code>, and statuses
+ * may be classes (ie. <code>5xx</code>).</li>
+ * <li><code>route</code> (without its query string, unless a prefix ending with <code>*</code>),
+ * <code>method</code> and <code>client</code> (IPv4 CIDRs or exact addresses) support <code>= !=</code>.</li>
+ * </ul>
+ * Fields are only located (both {@link LogFormat}s share the same layout up to the bytes sent) once a clause needs
+ * them: the client is the first token, the request the first quoted string, followed by the status and the bytes
+ * sent. Lines whose fields can't be located are rejected, as they couldn't be parsed anyway.
+ * <br>
+ * It is a naive, non-thread safe implementation.
+ *
+ * @author Nicolas Estrada.
+ */
+@SuppressWarnings("MagicCharacter")
+final class TrafficFilter implements LineFilter {
+
+    private final String expression;
+    private final List<Clause> clauses;
+
+    // The fields of the line being filtered, -1 until located
+    private int clientEnd;
+    private int methodStart;
+    private int routeStart;
+    private int routeEnd;
+    private int statusStart;
+    private int bytesEnd;
+
+    private TrafficFilter(String expression, List<Clause> clauses) {
+        this.expression = expression;
+        this.clauses = clauses;
+    }
+
+    /**
+     * Compiles the arg <i>expressions</i>, all of which must match.
+     *
+     * @throws IllegalArgumentException if an expression is invalid.
+     */
+    static TrafficFilter compile(List<String> expressions) {
+        List<Clause> clauses = new ArrayList<>(4);
+        for (var expression : expressions) {
+            for (var clause : expression.split("&&")) {
+                clauses.add(clause(clause.trim()));
+            }
+        }
+        return new TrafficFilter(String.join(" && ", expressions), clauses);
+    }
+
+    private static Clause clause(String clause) {
+        int opStart = 0;
+        while (opStart < clause.length() && Character.isLetter(clause.charAt(opStart))) {
+            opStart++;
+        }
+        var field = clause.substring(0, opStart);
+        while (opStart < clause.length() && clause.charAt(opStart) == ' ') {
+            opStart++;
+        }
+        int opEnd = opStart;
+        while (opEnd < clause.length() && "=!<>".indexOf(clause.charAt(opEnd)) >= 0) {
+            opEnd++;
+        }
+        var op = Op.of(clause.substring(opStart, opEnd));
+        var values = clause.substring(opEnd).trim().split(",");
+        if (op == null || values[0].isEmpty()) {
+            throw new IllegalArgumentException("invalid filter: " + clause);
+        }
+        switch (field) {
+            case "status":
+                return new NumberClause(op, values, true);
+            case "bytes":
+                return new NumberClause(op, values, false);
+            case "route":
+                return new BytesClause(Field.ROUTE, equality(op, clause), values);
+            case "method":
+                return new BytesClause(Field.METHOD, equality(op, clause), values);
+            case "client":
+                return new ClientClause(equality(op, clause), values);
+            default:
+                throw new IllegalArgumentException("unknown filter field: " + field);
+        }
+    }
+
+    private static boolean equality(Op op, String clause) {
+        if (op != Op.EQ && op != Op.NE) {
+            throw new IllegalArgumentException("only = and != are supported: " + clause);
+        }
+        return op == Op.EQ;
+    }
+
+    @Override
+    public boolean accept(byte[] buf, int off, int len) {
+        clientEnd = -1;
+        methodStart = -1;
+        for (var clause : clauses) {
+            if (!clause.matches(this, buf, off, off + len)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    private boolean locateClient(byte[] buf, int off, int end) {
+        if (clientEnd < 0) {
+            clientEnd = indexOf(buf, off, end, (byte) ' ');
+        }
+        return clientEnd > off;
+    }
+
+    /**
+     * Locates the method, route, status and bytes sent of the line.
+     */
+    private boolean locateRequest(byte[] buf, int off, int end) {
+        if (methodStart >= 0) {
+            return true;
+        }
+        int quote = indexOf(buf, off, end, (byte) '"');
+        int routeSep = quote < 0 ? -1 : indexOf(buf, quote + 1, end, (byte) ' ');
+        int routeStop = routeSep < 0 ? -1 : indexOf(buf, routeSep + 1, end, (byte) ' ');
+        int close = routeStop < 0 ? -1 : indexOf(buf, routeStop, end, (byte) '"');
+        if (close < 0 || close + 5 >= end || buf[close + 1] != ' ' || buf[close + 5] != ' ') {
+            return false;
+        }
+        methodStart = quote + 1;
+        routeStart = routeSep + 1;
+        routeEnd = routeStop;
+        statusStart = close + 2;
+        int bytesStop = indexOf(buf, close + 6, end, (byte) ' ');
+        bytesEnd = bytesStop < 0 ? end : bytesStop;
+        return true;
+    }
+
+    private static int indexOf(byte[] buf, int from, int end, byte b) {
+        for (int i = from; i < end; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return {@code true} if the bytes between <i>from</i> and <i>to</i> are the arg <i>value</i>, or start with it.
+     */
+    private static boolean matches(byte[] buf, int from, int to, byte[] value, boolean prefix) {
+        if (prefix ? to - from < value.length : to - from != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (buf[from + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the decimal number between <i>from</i> and <i>to</i>, or -1 if it isn't one.
+     */
+    private static long parseNumber(byte[] buf, int from, int to) {
+        if (from >= to) {
+            return -1;
+        }
+        long n = 0;
+        for (int i = from; i < to; i++) {
+            if (buf[i] < '0' || buf[i] > '9') {
+                return -1;
+            }
+            n = n * 10 + (buf[i] - '0');
+        }
+        return n;
+    }
+
+    private enum Op {
+        EQ, NE, LT, LE, GT, GE;
+
+        @Nullable
+        static Op of(String op) {
+            switch (op) {
+                case "=":
+                case "==":
+                    return EQ;
+                case "!=":
+                    return NE;
+                case "<":
+                    return LT;
+                case "<=":
+                    return LE;
+                case ">":
+                    return GT;
+                case ">=":
+                    return GE;
+                default:
+                    return null;
+            }
+        }
+
+        boolean test(long value, long operand) {
+            switch (this) {
+                case EQ:
+                    return value == operand;
+                case NE:
+                    return value != operand;
+                case LT:
+                    return value < operand;
+                case LE:
+                    return value <= operand;
+                case GT:
+                    return value > operand;
+                default:
+                    return value >= operand;
+            }
+        }
+    }
+
+    private enum Field {
+        METHOD, ROUTE
+    }
+
+    private interface Clause {
+
+        boolean matches(TrafficFilter filter, byte[] buf, int off, int end);
+    }
+
+    /**
+     * Compares the status or the bytes sent, statuses classes (ie. <code>5xx</code>) being compared by their
+     * hundreds.
+     */
+    private static final class NumberClause implements Clause {
+
+        private final Op op;
+        private final boolean status;
+        private final long[] operands;
+        private final boolean[] classes;
+
+        private NumberClause(Op op, String[] values, boolean status) {
+            this.op = op;
+            this.status = status;
+            this.operands = new long[values.length];
+            this.classes = new boolean[values.length];
+            for (int i = 0; i < values.length; i++) {
+                var value = values[i].trim();
+                classes[i] = status && value.length() == 3 && value.endsWith("xx");
+                try {
+                    operands[i] = Long.parseLong(classes[i] ? value.substring(0, 1) : value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid number: " + value, e);
+                }
+            }
+        }
+
+        @Override
+        public boolean matches(TrafficFilter filter, byte[] buf, int off, int end) {
+            if (!filter.locateRequest(buf, off, end)) {
+                return false;
+            }
+            long value = status ?
+              parseNumber(buf, filter.statusStart, filter.statusStart + 3) :
+              parseNumber(buf, filter.statusStart + 4, filter.bytesEnd);
+            if (value < 0) {
+                return false;
+            }
+            // Alternatives are or'ed, except when they all must differ
+            boolean any = op != Op.NE;
+            for (int i = 0; i < operands.length; i++) {
+                boolean match = op.test(classes[i] ? value / 100 : value, operands[i]);
+                if (match == any) {
+                    return any;
+                }
+            }
+            return !any;
+        }
+    }
+
+    /**
+     * Compares the method or the route to exact values, or to prefixes ending with <code>*</code>.
+     */
+    private static final class BytesClause implements Clause {
+
+        private final Field field;
+        private final boolean eq;
+        private final byte[][] values;
+        private final boolean[] prefixes;
+
+        private BytesClause(Field field, boolean eq, String[] values) {
+            this.field = field;
+            this.eq = eq;
+            this.values = new byte[values.length][];
+            this.prefixes = new boolean[values.length];
+            for (int i = 0; i < values.length; i++) {
+                var value = values[i].trim();
+                prefixes[i] = value.endsWith("*");
+                this.values[i] = (prefixes[i] ? value.substring(0, value.length() - 1) : value).getBytes(ISO_8859_1);
+            }
+        }
+
+        @Override
+        public boolean matches(TrafficFilter filter, byte[] buf, int off, int end) {
+            if (!filter.locateRequest(buf, off, end)) {
+                return false;
+            }
+            int from;
+            int to;
+            if (field == Field.METHOD) {
+                from = filter.methodStart;
+                to = filter.routeStart - 1;
+            } else {
+                from = pathStart(buf, filter.routeStart, filter.routeEnd);
+                to = filter.routeEnd;
+            }
+            for (int i = 0; i < values.length; i++) {
+                int stop = to;
+                if (!prefixes[i] && field == Field.ROUTE) {
+                    int q = indexOf(buf, from, to, (byte) '?');
+                    stop = q < 0 ? to : q;
+                }
+                if (TrafficFilter.matches(buf, from, stop, values[i], prefixes[i])) {
+                    return eq;
+                }
+            }
+            return !eq;
+        }
+
+        /**
+         * @return the start of the path of absolute routes (ie. <code>http://host/path</code>), like when parsed.
+         */
+        private static int pathStart(byte[] buf, int from, int to) {
+            if (to - from > 4 && buf[from] == 'h' && buf[from + 1] == 't' && buf[from + 2] == 't'
+              && buf[from + 3] == 'p') {
+                int scheme = indexOf(buf, from, to, (byte) ':');
+                if (scheme > 0 && scheme + 2 < to && buf[scheme + 1] == '/' && buf[scheme + 2] == '/') {
+                    int path = indexOf(buf, scheme + 3, to, (byte) '/');
+                    return path < 0 ? to : path;
+                }
+            }
+            return from;
+        }
+    }
+
+    /**
+     * Compares the client to IPv4 CIDRs (ie. <code>10.0.0.0/8</code>), or to exact addresses.
+     */
+    private static final class ClientClause implements Clause {
+
+        private final boolean eq;
+        private final int[] networks;
+        private final int[] masks;
+        private final byte[][] addresses;
+
+        private ClientClause(boolean eq, String[] values) {
+            this.eq = eq;
+            List<byte[]> addresses = new ArrayList<>(values.length);
+            List<int[]> cidrs = new ArrayList<>(values.length);
+            for (var value : values) {
+                var v = value.trim();
+                int slash = v.indexOf('/');
+                if (slash < 0) {
+                    addresses.add(v.getBytes(ISO_8859_1));
+                    continue;
+                }
+                var ip = v.getBytes(ISO_8859_1);
+                long network = parseIpv4(ip, 0, slash);
+                int bits;
+                try {
+                    bits = Integer.parseInt(v.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    bits = -1;
+                }
+                if (network < 0 || bits < 0 || bits > 32) {
+                    throw new IllegalArgumentException("invalid CIDR: " + v);
+                }
+                int mask = bits == 0 ? 0 : -1 << (32 - bits);
+                cidrs.add(new int[]{(int) network & mask, mask});
+            }
+            this.networks = new int[cidrs.size()];
+            this.masks = new int[cidrs.size()];
+            for (int i = 0; i < cidrs.size(); i++) {
+                networks[i] = cidrs.get(i)[0];
+                masks[i] = cidrs.get(i)[1];
+            }
+            this.addresses = addresses.toArray(new byte[0][]);
+        }
+
+        @Override
+        public boolean matches(TrafficFilter filter, byte[] buf, int off, int end) {
+            if (!filter.locateClient(buf, off, end)) {
+                return false;
+            }
+            if (networks.length > 0) {
+                long ip = parseIpv4(buf, off, filter.clientEnd);
+                for (int i = 0; ip >= 0 && i < networks.length; i++) {
+                    if (((int) ip & masks[i]) == networks[i]) {
+                        return eq;
+                    }
+                }
+            }
+            for (var address : addresses) {
+                if (TrafficFilter.matches(buf, off, filter.clientEnd, address, false)) {
+                    return eq;
+                }
+            }
+            return !eq;
+        }
+
+        /**
+         * @return the IPv4 address between <i>from</i> and <i>to</i> as an unsigned int, or -1 if it isn't one.
+         */
+        private static long parseIpv4(byte[] buf, int from, int to) {
+            long ip = 0;
+            int octets = 0;
+            int i = from;
+            while (i < to && octets < 4) {
+                int dot = indexOf(buf, i, to, (byte) '.');
+                int stop = dot < 0 ? to : dot;
+                long octet = stop - i <= 3 ? parseNumber(buf, i, stop) : -1;
+                if (octet < 0 || octet > 255) {
+                    return -1;
+                }
+                ip = ip << 8 | octet;
+                octets++;
+                i = stop + 1;
+            }
+            return octets == 4 && i == to + 1 ? ip : -1;
+        }
+    }
+}
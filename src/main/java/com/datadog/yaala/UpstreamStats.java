@@ -0,0 +1,339 @@
+package com.datadog.yaala;
+
+import com.datadog.yaala.util.Ewma;
+import com.datadog.yaala.util.Histogram;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntSupplier;
+
+import static java.lang.Double.compare;
+
+/**
+ * Aggregates the upstream fields of proxied requests (ie. {@link LogFormat#INGRESS_NGINX}) by upstream service and
+ * by upstream pod address, in order to rank the slowest ones and detect those slowing down.
+ * <br>
+ * A retried request lists every attempt in its upstream fields (ie. <code>10.0.0.1:80, 10.0.0.2:80</code>), which
+ * are walked in lockstep without splitting them: every attempt is accounted to its pod, whereas the service is
+ * accounted the whole request (the sum of the attempts' times and the last status) along with its retries.
+ * <br>
+ * Request times are recorded in per step {@link Histogram}s, the previous step being the one displayed, like all
+ * other step based statistics. Every step, the p90 of each service is also scored against its own {@link Ewma}
+ * baseline, services above <i>sigma</i> standard deviations being flagged as slow. Percentiles aren't weighted when
+ * sampling since sampling doesn't bias them. Least recently used services and pods are evicted above a fixed
+ * cardinality, which may be lowered for pods in order to save memory.
+ * <br>
+ * It is a naive, non-thread safe implementation.
+ *
+ * @author Nicolas Estrada.
+ */
+@SuppressWarnings("MagicCharacter")
+final class UpstreamStats {
+
+    private final double sigma;
+    private final Map<String, Upstream> services;
+    private final Map<String, Upstream> pods;
+    private int maxPods = MAX_PODS;
+
+    UpstreamStats(double sigma) {
+        this.sigma = sigma;
+        this.services = lruMap(() -> MAX_SERVICES);
+        this.pods = lruMap(() -> maxPods);
+    }
+
+    private static Map<String, Upstream> lruMap(IntSupplier max) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Upstream> eldest) {
+                return size() > max.getAsInt();
+            }
+        };
+    }
+
+    /**
+     * Accounts the upstream attempts of the arg <i>evt</i>, if it was proxied.
+     */
+    void ingest(LogEvent evt, double weight) {
+        var name = evt.getUpstreamName();
+        var addrs = evt.getUpstreamAddr();
+        if (name == null || addrs == null) {
+            return;
+        }
+        var times = evt.getUpstreamResponseTime();
+        var statuses = evt.getUpstreamStatus();
+        int attempts = 0;
+        long totalMicros = -1;
+        int lastStatus = 0;
+        int a = 0;
+        int t = 0;
+        int s = 0;
+        while (a < addrs.length()) {
+            int aEnd = valueEnd(addrs, a);
+            int tEnd = times != null ? valueEnd(times, t) : t;
+            int sEnd = statuses != null ? valueEnd(statuses, s) : s;
+            long micros = times != null ? parseMicros(times, t, tEnd) : -1;
+            int status = statuses != null ? parseStatus(statuses, s, sEnd) : 0;
+            var pod = upstream(pods, addrs.substring(a, aEnd), name);
+            pod.record(micros, status, weight);
+            if (micros >= 0) {
+                totalMicros = Math.max(0, totalMicros) + micros;
+            }
+            if (status > 0) {
+                lastStatus = status;
+            }
+            attempts++;
+            a = nextValue(addrs, aEnd);
+            t = times != null ? nextValue(times, tEnd) : t;
+            s = statuses != null ? nextValue(statuses, sEnd) : s;
+        }
+        var service = upstream(services, name, name);
+        service.record(totalMicros, lastStatus, weight);
+        service.stepRetries += (attempts - 1) * weight;
+    }
+
+    private static Upstream upstream(Map<String, Upstream> upstreams, String key, String service) {
+        var upstream = upstreams.get(key);
+        if (upstream == null) {
+            upstream = new Upstream(key, service);
+            upstreams.put(key, upstream);
+        }
+        return upstream;
+    }
+
+    /**
+     * @return the approximate memory used by the services and pods, in bytes.
+     */
+    long memoryBytes() {
+        return (long) (services.size() + pods.size()) * UPSTREAM_BYTES;
+    }
+
+    /**
+     * Halves the maximum number of pods, evicting the least recently used ones.
+     *
+     * @return whether pods were shrunk, which isn't the case below {@value #MIN_SHRUNK_PODS} pods.
+     */
+    boolean shrink() {
+        if (maxPods >> 1 < MIN_SHRUNK_PODS) {
+            return false;
+        }
+        maxPods >>= 1;
+        var it = pods.values().iterator();
+        while (pods.size() > maxPods) {
+            it.next();
+            it.remove();
+        }
+        return true;
+    }
+
+    /**
+     * Rolls the step over, then scores the services against their baselines.
+     */
+    void step() {
+        for (var pod : pods.values()) {
+            pod.roll();
+        }
+        for (var service : services.values()) {
+            service.roll();
+            service.z = 0.0;
+            if (sigma > 0 && service.hits > 0) {
+                double z = service.baseline.update(service.latencies.percentile(0.9) / 1000.0);
+                if (service.baseline.count() > WARMUP_STEPS) {
+                    service.z = z;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return at most <i>n</i> of the services which were hit during the previous step, by decreasing p99.
+     */
+    List<Map<String, Object>> slowestServices(int n) {
+        return slowest(services, n);
+    }
+
+    /**
+     * @return at most <i>n</i> of the pods which were hit during the previous step, by decreasing p99.
+     */
+    List<Map<String, Object>> slowestPods(int n) {
+        return slowest(pods, n);
+    }
+
+    private List<Map<String, Object>> slowest(Map<String, Upstream> upstreams, int n) {
+        List<Upstream> hit = new ArrayList<>(upstreams.size());
+        for (var upstream : upstreams.values()) {
+            if (upstream.hits > 0) {
+                hit.add(upstream);
+            }
+        }
+        hit.sort((u1, u2) -> Long.compare(u2.latencies.percentile(0.99), u1.latencies.percentile(0.99)));
+        List<Map<String, Object>> slowest = new ArrayList<>(Math.min(n, hit.size()));
+        for (var upstream : hit.subList(0, Math.min(n, hit.size()))) {
+            slowest.add(upstream.toMap(sigma));
+        }
+        return slowest;
+    }
+
+    /**
+     * @return the services flagged as slow during the previous step, by decreasing deviation.
+     */
+    List<Map<String, Object>> slowServices() {
+        List<Map<String, Object>> slow = new ArrayList<>(4);
+        for (var service : services.values()) {
+            if (sigma > 0 && service.z >= sigma) {
+                slow.add(service.toMap(sigma));
+            }
+        }
+        slow.sort((s1, s2) -> compare((Double) s2.get("z"), (Double) s1.get("z")));
+        return slow;
+    }
+
+    /**
+     * @return the index at which the value starting at <i>from</i> ends in the arg <i>list</i>.
+     */
+    static int valueEnd(String list, int from) {
+        int i = from;
+        while (i < list.length() && list.charAt(i) != ',' && list.charAt(i) != ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the index at which the value following the one ending at <i>end</i> starts in the arg <i>list</i>,
+     * skipping both <code>", "</code> and <code>" : "</code> separators.
+     */
+    static int nextValue(String list, int end) {
+        int i = end;
+        while (i < list.length() && (list.charAt(i) == ',' || list.charAt(i) == ' ' || list.charAt(i) == ':')) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the decimal seconds between <i>from</i> and <i>to</i> as micros, or -1 if it isn't a number (ie.
+     * <code>-</code>).
+     */
+    static long parseMicros(String s, int from, int to) {
+        if (from == to) {
+            return -1;
+        }
+        long micros = 0;
+        int decimals = -1;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else if (c >= '0' && c <= '9') {
+                if (decimals < 0) {
+                    micros = micros * 10 + (c - '0');
+                } else if (decimals < 6) {
+                    micros = micros * 10 + (c - '0');
+                    decimals++;
+                }
+            } else {
+                return -1;
+            }
+        }
+        for (int i = Math.max(0, decimals); i < 6; i++) {
+            micros *= 10;
+        }
+        return micros;
+    }
+
+    /**
+     * @return the status between <i>from</i> and <i>to</i>, or 0 if it isn't a number (ie. <code>-</code>).
+     */
+    static int parseStatus(String s, int from, int to) {
+        int status = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+            status = status * 10 + (c - '0');
+        }
+        return status;
+    }
+
+    private static final int MAX_SERVICES = 256;
+    private static final int MAX_PODS = 1024;
+    private static final int MIN_SHRUNK_PODS = 64;
+    // Two histograms, a baseline and the names
+    private static final int UPSTREAM_BYTES = 2 * Histogram.MEMORY_BYTES + 256;
+    // A smoothing factor of 0.1 amounts to a window of ~20 steps
+    private static final double BASELINE_ALPHA = 0.1;
+    private static final int WARMUP_STEPS = 5;
+
+    /**
+     * The statistics of a service or a pod, for the current and the previous step.
+     */
+    @SuppressWarnings("PackageVisibleField")
+    private static final class Upstream {
+
+        final String name;
+        // The service of a pod, the service itself otherwise
+        final String service;
+        // Floored at 1ms
+        final Ewma baseline;
+        Histogram stepLatencies;
+        double stepHits;
+        double stepErrors;
+        double stepRetries;
+        // Previous step
+        Histogram latencies;
+        double hits;
+        double errors;
+        double retries;
+        double z;
+
+        private Upstream(String name, String service) {
+            this.name = name;
+            this.service = service;
+            this.baseline = new Ewma(BASELINE_ALPHA, 1.0);
+            this.stepLatencies = new Histogram();
+            this.latencies = new Histogram();
+        }
+
+        void record(long micros, int status, double weight) {
+            stepHits += weight;
+            if (status >= 500 || status == 0) {
+                // No status at all means the upstream couldn't be reached
+                stepErrors += weight;
+            }
+            if (micros >= 0) {
+                stepLatencies.record(micros);
+            }
+        }
+
+        void roll() {
+            var swap = latencies;
+            latencies = stepLatencies;
+            stepLatencies = swap;
+            stepLatencies.clear();
+            hits = stepHits;
+            errors = stepErrors;
+            retries = stepRetries;
+            stepHits = 0;
+            stepErrors = 0;
+            stepRetries = 0;
+        }
+
+        Map<String, Object> toMap(double sigma) {
+            Map<String, Object> m = new LinkedHashMap<>(16);
+            m.put("upstream", name);
+            m.put("service", service);
+            m.put("hits", hits);
+            m.put("errors", hits > 0 ? 100 * errors / hits : 0.0);
+            m.put("retries", retries);
+            m.put("p50", latencies.percentile(0.5) / 1000.0);
+            m.put("p90", latencies.percentile(0.9) / 1000.0);
+            m.put("p99", latencies.percentile(0.99) / 1000.0);
+            m.put("z", z);
+            m.put("slow", sigma > 0 && z >= sigma);
+            return m;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.datadog.yaala;
+
+import com.datadog.yaala.util.LruCache;
+
+import java.util.List;
+import java.util.Locale;
+
+import static com.datadog.yaala.util.Misc.hash64;
+
+/**
+ * Classifies user agents (ie. <code>$http_user_agent</code>) into a {@link Category} and a family (ie.
+ * <i>Chrome</i>, <i>Googlebot</i> or <i>curl</i>), by looking up well known tokens in order: crawlers first since
+ * most of them pose as browsers, then other bots (monitoring, headless browsers), HTTP clients, and browsers last
+ * since most of them pose as each other (ie. Edge as Chrome as Safari).
+ * <br>
+ * Agents repeat heavily, hence classifications are cached in a bounded {@link LruCache} keyed by the 64 bits hash of
+ * the agent, so that the classifier only runs once per distinct agent rather than once per line.
+ * <br>
+ * It is a naive, non-thread safe implementation.
+ *
+ * @author Nicolas Estrada.
+ */
+final class UserAgents {
+
+    private final LruCache<Long, UserAgent> cache;
+    private long classified;
+
+    UserAgents(int cacheSize) {
+        this.cache = new LruCache<>(cacheSize);
+    }
+
+    /**
+     * @return the classification of the arg <i>agent</i>, from the cache if it was already classified.
+     */
+    UserAgent classify(String agent) {
+        long hash = hash64(agent);
+        var ua = cache.get(hash);
+        if (ua == null) {
+            ua = classifyUncached(agent);
+            cache.put(hash, ua);
+            classified++;
+        }
+        return ua;
+    }
+
+    /**
+     * @return the number of times the classifier actually ran, ie. cache misses.
+     */
+    long classified() {
+        return classified;
+    }
+
+    int cacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * @return the approximate memory used by the cache, in bytes.
+     */
+    long memoryBytes() {
+        return (long) cache.size() * CACHE_ENTRY_BYTES;
+    }
+
+    /**
+     * Halves the capacity of the cache, evicting the least recently used classifications.
+     *
+     * @return whether the cache was shrunk, which isn't the case below {@value #MIN_SHRUNK_CACHE_SIZE} agents.
+     */
+    boolean shrink() {
+        int capacity = cache.getCapacity() >> 1;
+        if (capacity < MIN_SHRUNK_CACHE_SIZE) {
+            return false;
+        }
+        cache.setCapacity(capacity);
+        return true;
+    }
+
+    static UserAgent classifyUncached(String agent) {
+        if (agent.isEmpty() || "-".equals(agent)) {
+            return UNKNOWN;
+        }
+        var lower = agent.toLowerCase(Locale.ROOT);
+        for (var rule : RULES) {
+            if (lower.contains(rule.token)) {
+                return rule.agent;
+            }
+        }
+        if (lower.contains("bot") || lower.contains("spider") || lower.contains("crawl")) {
+            return new UserAgent(product(agent), Category.CRAWLER);
+        } else if (lower.startsWith("mozilla/")) {
+            return OTHER_BROWSER;
+        }
+        return new UserAgent(product(agent), Category.OTHER);
+    }
+
+    /**
+     * @return the first product name of the agent (ie. <code>foo</code> for <code>foo/1.0 (bar)</code>).
+     */
+    private static String product(String agent) {
+        int end = 0;
+        while (end < agent.length() && end < MAX_FAMILY_LENGTH && agent.charAt(end) != '/' && agent.charAt(end) != ' '
+          && agent.charAt(end) != ';' && agent.charAt(end) != '(') {
+            end++;
+        }
+        return end > 0 ? agent.substring(0, end) : agent.substring(0, Math.min(agent.length(), MAX_FAMILY_LENGTH));
+    }
+
+    /**
+     * The kind of agent behind a request.
+     */
+    enum Category {
+
+        BROWSER,
+        // Search engines, SEO tools, AI scrapers and anything calling itself a bot, spider or crawler
+        CRAWLER,
+        // Monitoring, health checks and headless browsers
+        BOT,
+        // HTTP libraries and command line tools
+        CLIENT,
+        OTHER,
+        // Missing agent
+        UNKNOWN;
+
+        private final String label = name().toLowerCase(Locale.ROOT);
+
+        String label() {
+            return label;
+        }
+    }
+
+    /**
+     * A classified user agent.
+     */
+    static final class UserAgent {
+
+        private final String family;
+        private final Category category;
+
+        UserAgent(String family, Category category) {
+            this.family = family;
+            this.category = category;
+        }
+
+        String family() {
+            return family;
+        }
+
+        Category category() {
+            return category;
+        }
+
+        @Override
+        public String toString() {
+            return family + " (" + category.label() + ')';
+        }
+    }
+
+    private static final class Rule {
+
+        private final String token;
+        private final UserAgent agent;
+
+        private Rule(String token, String family, Category category) {
+            this.token = token;
+            this.agent = new UserAgent(family, category);
+        }
+    }
+
+    private static final UserAgent UNKNOWN = new UserAgent("-", Category.UNKNOWN);
+    private static final UserAgent OTHER_BROWSER = new UserAgent("Other", Category.BROWSER);
+    private static final int MAX_FAMILY_LENGTH = 32;
+    private static final int MIN_SHRUNK_CACHE_SIZE = 64;
+    // A boxed hash, its map entry and a classification of a short family
+    private static final int CACHE_ENTRY_BYTES = 128;
+    // Matched in order, against the lower cased agent
+    private static final List<Rule> RULES = List.of(
+      new Rule("googlebot", "Googlebot", Category.CRAWLER),
+      new Rule("adsbot-google", "Googlebot", Category.CRAWLER),
+      new Rule("bingbot", "Bingbot", Category.CRAWLER),
+      new Rule("yandexbot", "YandexBot", Category.CRAWLER),
+      new Rule("baiduspider", "Baiduspider", Category.CRAWLER),
+      new Rule("duckduckbot", "DuckDuckBot", Category.CRAWLER),
+      new Rule("applebot", "Applebot", Category.CRAWLER),
+      new Rule("yahoo! slurp", "Yahoo! Slurp", Category.CRAWLER),
+      new Rule("facebookexternalhit", "Facebook", Category.CRAWLER),
+      new Rule("twitterbot", "Twitterbot", Category.CRAWLER),
+      new Rule("ahrefsbot", "AhrefsBot", Category.CRAWLER),
+      new Rule("semrushbot", "SemrushBot", Category.CRAWLER),
+      new Rule("mj12bot", "MJ12bot", Category.CRAWLER),
+      new Rule("petalbot", "PetalBot", Category.CRAWLER),
+      new Rule("gptbot", "GPTBot", Category.CRAWLER),
+      new Rule("ccbot", "CCBot", Category.CRAWLER),
+      new Rule("headlesschrome", "HeadlessChrome", Category.BOT),
+      new Rule("phantomjs", "PhantomJS", Category.BOT),
+      new Rule("kube-probe", "kube-probe", Category.BOT),
+      new Rule("elb-healthchecker", "ELB-HealthChecker", Category.BOT),
+      new Rule("googlehc", "GoogleHC", Category.BOT),
+      new Rule("prometheus", "Prometheus", Category.BOT),
+      new Rule("pingdom", "Pingdom", Category.BOT),
+      new Rule("uptimerobot", "UptimeRobot", Category.BOT),
+      new Rule("datadog", "Datadog", Category.BOT),
+      new Rule("curl/", "curl", Category.CLIENT),
+      new Rule("wget/", "Wget", Category.CLIENT),
+      new Rule("httpie/", "HTTPie", Category.CLIENT),
+      new Rule("python-requests", "python-requests", Category.CLIENT),
+      new Rule("python-urllib", "Python-urllib", Category.CLIENT),
+      new Rule("aiohttp", "aiohttp", Category.CLIENT),
+      new Rule("go-http-client", "Go-http-client", Category.CLIENT),
+      new Rule("okhttp", "okhttp", Category.CLIENT),
+      new Rule("apache-http", "Apache-HttpClient", Category.CLIENT),
+      new Rule("java/", "Java", Category.CLIENT),
+      new Rule("axios/", "axios", Category.CLIENT),
+      new Rule("node-fetch", "node-fetch", Category.CLIENT),
+      new Rule("postmanruntime", "PostmanRuntime", Category.CLIENT),
+      new Rule("libwww-perl", "libwww-perl", Category.CLIENT),
+      new Rule("guzzlehttp", "GuzzleHttp", Category.CLIENT),
+      new Rule("edg/", "Edge", Category.BROWSER),
+      new Rule("edga/", "Edge", Category.BROWSER),
+      new Rule("edgios/", "Edge", Category.BROWSER),
+      new Rule("opr/", "Opera", Category.BROWSER),
+      new Rule("samsungbrowser/", "Samsung Internet", Category.BROWSER),
+      new Rule("firefox/", "Firefox", Category.BROWSER),
+      new Rule("fxios/", "Firefox", Category.BROWSER),
+      new Rule("crios/", "Chrome", Category.BROWSER),
+      new Rule("chrome/", "Chrome", Category.BROWSER),
+      new Rule("safari/", "Safari", Category.BROWSER),
+      new Rule("trident/", "Internet Explorer", Category.BROWSER),
+      new Rule("msie ", "Internet Explorer", Category.BROWSER)
+    );
+}
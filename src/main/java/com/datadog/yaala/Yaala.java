@@ -1,24 +1,45 @@
 package com.datadog.yaala;
 
+import com.datadog.yaala.net.SnapshotClient;
+import com.datadog.yaala.net.SnapshotServer;
+import com.datadog.yaala.net.StatsHttpServer;
+import com.datadog.yaala.net.SyslogReceiver;
+import com.datadog.yaala.util.LineReader;
+import com.datadog.yaala.util.ReplayClock;
+import io.micrometer.core.instrument.Clock;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Model.CommandSpec;
 import picocli.CommandLine.Option;
+import picocli.CommandLine.ParameterException;
 import picocli.CommandLine.Parameters;
+import picocli.CommandLine.Spec;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
-import java.util.ArrayList;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
 import java.util.List;
 import java.util.concurrent.Callable;
 
+import static com.datadog.yaala.net.SnapshotClient.parseAddress;
 import static com.datadog.yaala.ui.ConsoleUI.initConsole;
-import static com.datadog.yaala.util.Misc.newReader;
+import static io.micrometer.core.instrument.Metrics.globalRegistry;
+import static java.lang.String.format;
 import static java.lang.System.exit;
+import static java.lang.System.nanoTime;
 import static java.lang.Thread.currentThread;
 import static java.lang.Thread.sleep;
 import static java.time.Duration.ofSeconds;
+import static java.time.Instant.ofEpochMilli;
+import static java.time.format.DateTimeFormatter.ISO_DATE_TIME;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
  * Main entry point.
@@ -33,9 +54,12 @@ import static java.time.Duration.ofSeconds;
 )
 public final class Yaala implements Callable<Integer>, Config {
 
+    @Spec
+    private CommandSpec spec;
+
     @Parameters(
       paramLabel = "LOG_PATH",
-      description = "The path to the HTTP access log file",
+      description = "The path to the HTTP access log file, a named pipe, or - to read stdin",
       defaultValue = "/tmp/access.log"
     )
     private Path logPath;
@@ -47,6 +71,14 @@ public final class Yaala implements Callable<Integer>, Config {
     )
     private LogFormat logFormat;
 
+    @Option(
+      names = "--filter",
+      paramLabel = "EXPR",
+      description = "Only monitors the lines matching EXPR (ie. 'status>=500 && route=/api/*'), may be repeated",
+      converter = FilterConverter.class
+    )
+    private List<String> filters;
+
     @Option(
       names = "--ui-refresh",
       description = "the UI refresh period in milliseconds",
@@ -61,6 +93,93 @@ public final class Yaala implements Callable<Integer>, Config {
     )
     private Integer routeDepth;
 
+    @Option(
+      names = {"-t", "--route-template"},
+      description = "A route template (ie. /users/{name}) used to collapse matching routes, may be repeated"
+    )
+    private List<String> routeTemplates;
+
+    @Option(
+      names = "--route-cache-size",
+      description = "The maximum number of raw routes whose normalized section is cached",
+      defaultValue = "4096"
+    )
+    private int routeCacheSize;
+
+    @Option(
+      names = "--agent-cache-size",
+      description = "The maximum number of distinct user agents whose classification is cached",
+      defaultValue = "1024"
+    )
+    private int agentCacheSize;
+
+    @Option(
+      names = "--max-routes",
+      description = "The maximum number of tracked route sections, least recently used ones being folded into (other)",
+      defaultValue = "1000",
+      converter = PositiveConverter.class
+    )
+    private int maxRoutes;
+
+    @Option(
+      names = "--top-clients",
+      description = "The number of most frequent clients to track and display",
+      defaultValue = "10"
+    )
+    private int topClients;
+
+    @Option(
+      names = "--client-table-size",
+      description = "The maximum number of clients whose hits and bytes are counted exactly off-heap (0 to disable)",
+      defaultValue = "0"
+    )
+    private int clientTableSize;
+
+    @Option(
+      names = "--recent-events",
+      description = "The number of most recent events kept in a columnar buffer for ad-hoc queries (0 to disable)",
+      defaultValue = "0"
+    )
+    private int recentEvents;
+
+    @Option(
+      names = "--memory-budget",
+      description = "The approximate number of bytes the statistics may use, above which cold routes are merged, "
+        + "histories coarsened and buffers shrunk (0 to disable)",
+      defaultValue = "0"
+    )
+    private long memoryBudget;
+
+    @Option(
+      names = "--query",
+      paramLabel = "QUERY",
+      description = "Prints the results of QUERY (ie. 'sum(bytes) by client where status=404 last 5m') over the recent events on exit, "
+        + "exiting once replayed, may be repeated",
+      converter = QueryConverter.class
+    )
+    private List<String> queries;
+
+    @Option(
+      names = "--shards",
+      description = "The number of threads parsing and aggregating lines, partitioned by route (1 to use the main thread)",
+      defaultValue = "1"
+    )
+    private int shards;
+
+    @Option(
+      names = "--shed-lag",
+      description = "The number of bytes behind the end of the log above which lines are sampled to catch up (0 to disable)",
+      defaultValue = "16777216"
+    )
+    private long shedLag;
+
+    @Option(
+      names = "--min-sample-rate",
+      description = "The minimum rate at which lines are sampled when shedding load",
+      defaultValue = "0.01"
+    )
+    private double minSampleRate;
+
     @Option(
       names = {"-a", "--alert-threshold"},
       description = "The rate of total requests per second at which point an alert will be displayed",
@@ -68,6 +187,26 @@ public final class Yaala implements Callable<Integer>, Config {
     )
     private Integer alertThreshold;
 
+    @Option(
+      names = "--anomaly-sigma",
+      description = "The number of standard deviations away from its baseline at which a route is anomalous (0 to disable)",
+      defaultValue = "3"
+    )
+    private double anomalySigma;
+
+    @Option(
+      names = "--event-time",
+      description = "Aggregates requests by the time they were logged rather than read, rps alerts being evaluated on finalized steps"
+    )
+    private boolean eventTime;
+
+    @Option(
+      names = "--allowed-lateness",
+      description = "The delay in seconds after which late events are dropped when aggregating by event time",
+      defaultValue = "5"
+    )
+    private int allowedLateness;
+
     @Option(
       names = "--alert-delay",
       description = "The delay in seconds to wait until an alert is fired from too many requests per second",
@@ -82,6 +221,110 @@ public final class Yaala implements Callable<Integer>, Config {
     )
     private int alertCooldown;
 
+    @Option(
+      names = "--agent",
+      paramLabel = "HOST:PORT",
+      description = "Sends statistics deltas to the aggregator listening on HOST:PORT"
+    )
+    private String aggregatorAddress;
+
+    @Option(
+      names = "--agent-id",
+      description = "The name identifying this agent to the aggregator (default is the host name)"
+    )
+    private String agentId;
+
+    @Option(
+      names = "--aggregate",
+      paramLabel = "PORT",
+      description = "Aggregates the statistics received from agents on PORT instead of following a log file",
+      defaultValue = "0"
+    )
+    private int aggregatePort;
+
+    @Option(
+      names = "--syslog",
+      paramLabel = "PORT",
+      description = "Receives the log lines shipped over syslog on the UDP PORT instead of following a log file",
+      defaultValue = "0"
+    )
+    private int syslogPort;
+
+    @Option(
+      names = "--syslog-host",
+      description = "The address the syslog receiver binds to",
+      defaultValue = "127.0.0.1"
+    )
+    private String syslogHost;
+
+    @Option(
+      names = "--http-port",
+      paramLabel = "PORT",
+      description = "Serves the statistics as JSON (/api/stats) and Prometheus metrics (/metrics) on PORT (0 to disable)",
+      defaultValue = "0"
+    )
+    private int httpPort;
+
+    @Option(
+      names = "--http-host",
+      description = "The address the HTTP API binds to",
+      defaultValue = "127.0.0.1"
+    )
+    private String httpHost;
+
+    @Option(
+      names = "--export-dir",
+      description = "The directory to which the statistics of every route are exported every step, in rolling files"
+    )
+    private Path exportDir;
+
+    @Option(
+      names = "--export-format",
+      description = "The format in which statistics are exported (CSV or LINE_PROTOCOL)",
+      defaultValue = "CSV"
+    )
+    private ExportFormat exportFormat;
+
+    @Option(
+      names = "--replay",
+      description = "Reads the whole log as fast as possible, the clock being driven by the event timestamps"
+    )
+    private boolean replay;
+
+    @Option(
+      names = "--since",
+      paramLabel = "TIME",
+      description = "Only reads the events logged at or after TIME (ie. 2018-05-09T16:00:00, in the local zone unless specified)",
+      converter = TimeConverter.class
+    )
+    private Long sinceMs;
+
+    @Option(
+      names = "--until",
+      paramLabel = "TIME",
+      description = "Only reads the events logged at or before TIME",
+      converter = TimeConverter.class
+    )
+    private Long untilMs;
+
+    @Option(
+      names = "--index-interval",
+      description = "The number of bytes between two entries of the time index used to seek --since and --until",
+      defaultValue = "16777216"
+    )
+    private long indexInterval;
+
+    @Option(
+      names = "--exit-after-frames",
+      paramLabel = "N",
+      description = "Exits after rendering N frames, printing the resident memory of the process (for benchmarks)",
+      defaultValue = "0",
+      hidden = true
+    )
+    private long exitAfterFrames;
+
+    private final ReplayClock replayClock = new ReplayClock();
+
     public static void main(String... args) {
         int rc = new CommandLine(new Yaala()).execute(args);
         exit(rc);
@@ -92,6 +335,11 @@ public final class Yaala implements Callable<Integer>, Config {
         return logFormat;
     }
 
+    @Override
+    public List<String> filters() {
+        return filters != null ? filters : List.of();
+    }
+
     @Override
     public long refreshPeriodMs() {
         return refreshPeriodMs;
@@ -102,11 +350,88 @@ public final class Yaala implements Callable<Integer>, Config {
         return routeDepth;
     }
 
+    @Override
+    public List<String> routeTemplates() {
+        return routeTemplates != null ? routeTemplates : List.of();
+    }
+
+    @Override
+    public int routeCacheSize() {
+        return routeCacheSize;
+    }
+
+    @Override
+    public int agentCacheSize() {
+        return agentCacheSize;
+    }
+
+    @Override
+    public int maxRoutes() {
+        return maxRoutes;
+    }
+
+    @Override
+    public int topClients() {
+        return topClients;
+    }
+
+    @Override
+    public int clientTableSize() {
+        return clientTableSize;
+    }
+
+    @Override
+    public int recentEvents() {
+        return recentEvents;
+    }
+
+    @Override
+    public long memoryBudget() {
+        return memoryBudget;
+    }
+
+    @Override
+    public int shards() {
+        // Shards would lag behind the replayed time, neither filter nor aggregate events by time, nor keep them
+        return replay || timeRange() || eventTime || recentEvents > 0 ? 1 : shards;
+    }
+
+    @Override
+    public long shedLag() {
+        // Replayed logs are behind by design
+        return replay ? 0L : shedLag;
+    }
+
+    @Override
+    public double minSampleRate() {
+        return minSampleRate;
+    }
+
     @Override
     public int alertThreshold() {
         return alertThreshold;
     }
 
+    @Override
+    public double anomalySigma() {
+        return anomalySigma;
+    }
+
+    @Override
+    public Clock clock() {
+        return replay ? replayClock : Clock.SYSTEM;
+    }
+
+    @Override
+    public boolean eventTime() {
+        return eventTime;
+    }
+
+    @Override
+    public Duration allowedLateness() {
+        return ofSeconds(allowedLateness);
+    }
+
     @Override
     public Duration alertDelay() {
         return ofSeconds(alertDelay);
@@ -117,45 +442,241 @@ public final class Yaala implements Callable<Integer>, Config {
         return ofSeconds(alertCooldown);
     }
 
+    private boolean timeRange() {
+        return sinceMs != null || untilMs != null;
+    }
+
     @Override
     public Integer call() {
+        long reserved = LogStatistics.reservedMemoryBytes(this);
+        if (memoryBudget > 0 && memoryBudget < reserved) {
+            throw new ParameterException(spec.commandLine(), format("--memory-budget should be at least %d bytes, " +
+              "the sketches and the client table being reserved up front", reserved));
+        }
         int rc = 0;
         var driver = currentThread();
         var model = new DefaultUIModel(this);
-        try (var logFile = newReader(logPath);
-             var console = initConsole(this, model)) {
+        var snapshotPeriodNs = MILLISECONDS.toNanos(refreshPeriodMs());
+        var lastSnapshot = nanoTime();
+        var lastPublish = nanoTime() - PUBLISH_PERIOD_NS;
+        var replaying = replay;
+        long frames = 0;
+        try (var http = httpPort > 0 ? StatsHttpServer.listen(new InetSocketAddress(httpHost, httpPort)) : null;
+             var server = aggregatePort > 0 ? SnapshotServer.listen(aggregatePort) : null;
+             var agent = aggregatorAddress != null ? new SnapshotClient(parseAddress(aggregatorAddress)) : null;
+             var syslog = syslogPort > 0 ? SyslogReceiver.listen(new InetSocketAddress(syslogHost, syslogPort)) : null;
+             var logFile = server == null && syslog == null ? LineReader.open(logPath) : null;
+             var index = logFile != null && timeRange() && logFile.seekable() ?
+               TimeIndex.open(logPath, logFormat, indexInterval) :
+               null;
+             var exporter = exportDir != null ?
+               StatsExporter.open(exportDir, exportFormat, EXPORT_FILE_BYTES, EXPORT_FILES) :
+               null;
+             var console = initConsole(this, model, LineReader.STDIN.equals(logPath.toString()))) {
+            var id = agentId != null ? agentId : InetAddress.getLocalHost().getHostName();
+            var pipeline = model.pipeline();
+            if (exporter != null) {
+                model.exportTo(exporter);
+            }
+            if (server != null) {
+                pipeline.registerQueue("snapshots", server::pendingSnapshots, globalRegistry);
+            }
+            if (syslog != null) {
+                model.receiveFrom(syslog);
+            }
+            long since = sinceMs != null ? sinceMs : Long.MIN_VALUE;
+            long until = untilMs != null ? untilMs : Long.MAX_VALUE;
+            long untilOffset = Long.MAX_VALUE;
+            model.setTimeRange(since, until);
+            if (index != null) {
+                logFile.seek(index.offsetOf(since));
+                untilOffset = index.endOffsetOf(until);
+                model.addLog(format("Seeked to offset %d (%d index entries)%n", logFile.position(), index.size()));
+            }
+            var lastIndex = nanoTime();
             while (!driver.isInterrupted()) {
                 if (console.shouldExit()) {
                     break;
                 }
-                var lines = readLines(logFile, model.getLogBufferSize());
+                List<String> lines = List.of();
+                if (index != null && nanoTime() - lastIndex >= INDEX_PERIOD_NS) {
+                    index.extend();
+                    untilOffset = index.endOffsetOf(until);
+                    lastIndex = nanoTime();
+                }
+                if (logFile != null && logFile.position() < untilOffset) {
+                    int batch = model.getLogBufferSize();
+                    if (replaying) {
+                        batch = Math.max(batch, REPLAY_BATCH_SIZE);
+                    }
+                    lines = logFile.readLines(batch, model.lineFilter());
+                    long lag = logFile.lag();
+                    pipeline.recordBatch(lines.size() + logFile.skippedLines());
+                    pipeline.recordLag(lag);
+                    model.processSkipped(logFile.skippedLines(), lag);
+                } else if (syslog != null) {
+                    lines = syslog.readLines(model.getLogBufferSize(), model.lineFilter());
+                    long lag = syslog.lag();
+                    pipeline.recordBatch(lines.size() + syslog.skippedLines());
+                    pipeline.recordLag(lag);
+                    model.processSkipped(syslog.skippedLines(), lag);
+                }
+                // An empty batch only means a stream is being waited for, until it is closed
+                if (lines.isEmpty() && replaying && (logFile == null || logFile.exhausted() || logFile.position() >= untilOffset)) {
+                    // Time stands still from now on, unless the log keeps growing
+                    model.addLog(format("Replay finished at %s%n", ofEpochMilli(replayClock.wallTime())));
+                    replaying = false;
+                    if (queries != null) {
+                        break;
+                    }
+                }
                 if (lines.isEmpty()) {
                     //noinspection BusyWait
                     sleep(refreshPeriodMs());
-                } else {
-                    model.processLines(lines);
                 }
+                if (server != null) {
+                    server.drainEvents(model::addLog);
+                    server.drain(model::mergeSnapshot);
+                }
+                // Even without any new lines, the alert state and the rolling stats must be refreshed
+                model.processLines(lines);
+                if (agent != null && nanoTime() - lastSnapshot >= snapshotPeriodNs) {
+                    agent.send(model.snapshotDelta(id));
+                    lastSnapshot = nanoTime();
+                }
+                if (http != null && nanoTime() - lastPublish >= PUBLISH_PERIOD_NS) {
+                    http.publish(model.publish());
+                    lastPublish = nanoTime();
+                }
+                pipeline.sample();
                 console.refresh();
+                frames = console.frames();
+                if (exitAfterFrames > 0 && frames >= exitAfterFrames) {
+                    break;
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
             rc = 1;
         } catch (InterruptedException e) {
             driver.interrupt();
+        } finally {
+            model.close();
+        }
+        if (rc == 0 && queries != null) {
+            printQueries(model);
+        }
+        if (rc == 0 && exitAfterFrames > 0) {
+            printFootprint(frames);
         }
         return rc;
     }
 
-    private static List<String> readLines(BufferedReader file, int n) throws IOException {
-        List<String> lines = new ArrayList<>(n);
-        for (int i = 0; i < n; i++) {
-            var line = file.readLine();
-            if (line == null) {
-                break;
-            } else {
-                lines.add(line);
+    /**
+     * Prints the resident memory of the process, as reported by <code>/proc/self/status</code> (Linux only, -1
+     * otherwise), once the console is closed.
+     */
+    @SuppressWarnings("UseOfSystemOutOrSystemErr")
+    private static void printFootprint(long frames) {
+        long rss = -1L;
+        long peak = -1L;
+        try {
+            for (var line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    rss = kilobytes(line);
+                } else if (line.startsWith("VmHWM:")) {
+                    peak = kilobytes(line);
+                }
+            }
+        } catch (IOException ignored) {
+        }
+        System.out.println(format("%d frames rendered, resident %d KB, peak %d KB", frames, rss, peak));
+    }
+
+    private static long kilobytes(String statusLine) {
+        // ie. "VmRSS:	   12345 kB"
+        var value = statusLine.substring(statusLine.indexOf(':') + 1).trim();
+        return Long.parseLong(value.substring(0, value.indexOf(' ')));
+    }
+
+    /**
+     * Prints the results of every query, once the console is closed.
+     */
+    @SuppressWarnings("UseOfSystemOutOrSystemErr")
+    private void printQueries(DefaultUIModel model) {
+        for (var query : queries) {
+            System.out.println(query);
+            try {
+                for (var result : model.query(query)) {
+                    var sb = new StringBuilder();
+                    for (var value : result.values()) {
+                        sb.append(format("  %-40s", value instanceof Double ? format("%.2f", (Double) value) : value));
+                    }
+                    System.out.println(sb.toString().stripTrailing());
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println("  " + e.getMessage());
             }
         }
-        return lines;
+    }
+
+    private static final long PUBLISH_PERIOD_NS = SECONDS.toNanos(1);
+    private static final long INDEX_PERIOD_NS = SECONDS.toNanos(1);
+    private static final int REPLAY_BATCH_SIZE = 8192;
+    private static final long EXPORT_FILE_BYTES = 64L << 20;
+    private static final int EXPORT_FILES = 16;
+
+    /**
+     * Validates a filter expression, which is compiled by the model.
+     */
+    static final class FilterConverter implements CommandLine.ITypeConverter<String> {
+
+        @Override
+        public String convert(String value) {
+            TrafficFilter.compile(List.of(value));
+            return value;
+        }
+    }
+
+    /**
+     * Rejects a count below 1.
+     */
+    static final class PositiveConverter implements CommandLine.ITypeConverter<Integer> {
+
+        @Override
+        public Integer convert(String value) {
+            int n = Integer.parseInt(value);
+            if (n < 1) {
+                throw new CommandLine.TypeConversionException(format("'%s' should be at least 1", value));
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Validates a query, which is parsed again by the model.
+     */
+    static final class QueryConverter implements CommandLine.ITypeConverter<String> {
+
+        @Override
+        public String convert(String value) {
+            EventQuery.parse(value);
+            return value;
+        }
+    }
+
+    /**
+     * Converts an ISO-8601 date time, in the local zone unless specified, to milliseconds since the epoch.
+     */
+    static final class TimeConverter implements CommandLine.ITypeConverter<Long> {
+
+        @Override
+        public Long convert(String value) {
+            var time = ISO_DATE_TIME.parseBest(value, ZonedDateTime::from, LocalDateTime::from);
+            var zoned = time instanceof ZonedDateTime ?
+              (ZonedDateTime) time :
+              ((LocalDateTime) time).atZone(ZoneId.systemDefault());
+            return zoned.toInstant().toEpochMilli();
+        }
     }
 }
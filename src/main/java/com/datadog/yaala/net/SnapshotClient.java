@@ -0,0 +1,188 @@
+package com.datadog.yaala.net;
+
+import com.datadog.yaala.StatsSnapshot;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Sends {@link StatsSnapshot} deltas to an aggregator over TCP, as length prefixed frames.
+ * <br>
+ * Deltas are handed over to a daemon thread which connects and writes them, so that neither a down nor a stalled
+ * aggregator ever blocks the caller. Until they are sent, deltas are merged into a single pending snapshot which is
+ * sent as soon as the connection is (re-)established, so nothing is lost and memory doesn't grow with the outage
+ * duration.
+ *
+ * @author Nicolas Estrada.
+ */
+public final class SnapshotClient implements AutoCloseable {
+
+    private final InetSocketAddress address;
+    private final ByteArrayOutputStream frame;
+    private final Thread sender;
+
+    // Guarded by this
+    @Nullable
+    private StatsSnapshot unsent;
+    // Being sent by the sender thread, merged back into the unsent one if it fails
+    private boolean sending;
+    private boolean closed;
+
+    // Sender thread only, but closed by the caller to unblock a stalled write
+    @Nullable
+    private volatile Socket socket;
+    @Nullable
+    private DataOutputStream out;
+
+    public SnapshotClient(InetSocketAddress address) {
+        this.address = address;
+        this.frame = new ByteArrayOutputStream(BUFFER_SIZE);
+        this.sender = new Thread(this::sendLoop, "yaala-snapshot-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Parses a <code>host:port</code> address.
+     */
+    public static InetSocketAddress parseAddress(String hostPort) {
+        int ix = hostPort.lastIndexOf(':');
+        if (ix <= 0) {
+            throw new IllegalArgumentException("expected host:port but got " + hostPort);
+        }
+        return new InetSocketAddress(hostPort.substring(0, ix), Integer.parseInt(hostPort.substring(ix + 1)));
+    }
+
+    /**
+     * Hands the arg <i>snapshot</i> over to the sender, merging it into any previously unsent one.
+     */
+    public synchronized void send(StatsSnapshot snapshot) {
+        if (closed || snapshot.isEmpty()) {
+            return;
+        }
+        if (unsent != null) {
+            unsent.merge(snapshot);
+        } else {
+            unsent = snapshot;
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return {@code true} if some deltas are yet to be sent.
+     */
+    public synchronized boolean hasUnsent() {
+        return unsent != null || sending;
+    }
+
+    public boolean isConnected() {
+        return socket != null;
+    }
+
+    private void sendLoop() {
+        try {
+            while (true) {
+                StatsSnapshot toSend;
+                synchronized (this) {
+                    while (unsent == null && !closed) {
+                        wait();
+                    }
+                    if (closed) {
+                        break;
+                    }
+                    toSend = unsent;
+                    unsent = null;
+                    sending = true;
+                }
+                boolean sent = write(toSend);
+                synchronized (this) {
+                    sending = false;
+                    if (!sent) {
+                        // Older deltas first, although merging is commutative anyway
+                        if (unsent != null) {
+                            toSend.merge(unsent);
+                        }
+                        unsent = toSend;
+                        // Only attempts to reconnect every so often while the aggregator is down
+                        wait(RECONNECT_DELAY_MS);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            disconnect();
+        }
+    }
+
+    /**
+     * @return {@code true} if the arg <i>snapshot</i> was written, connecting first if necessary.
+     */
+    private boolean write(StatsSnapshot snapshot) {
+        try {
+            if (out == null) {
+                connect();
+            }
+            assert out != null;
+            frame.reset();
+            snapshot.writeTo(new DataOutputStream(frame));
+            out.writeInt(frame.size());
+            frame.writeTo(out);
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            disconnect();
+            return false;
+        }
+    }
+
+    private void connect() throws IOException {
+        var s = new Socket();
+        s.setTcpNoDelay(true);
+        s.connect(address, CONNECT_TIMEOUT_MS);
+        socket = s;
+        out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), BUFFER_SIZE));
+    }
+
+    private void disconnect() {
+        out = null;
+        var s = socket;
+        socket = null;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Stops the sender, dropping whatever wasn't sent.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        // Unblocks a write to a stalled aggregator
+        var s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static final int BUFFER_SIZE = 64 << 10;
+    private static final int CONNECT_TIMEOUT_MS = 500;
+    private static final long RECONNECT_DELAY_MS = SECONDS.toMillis(5);
+}
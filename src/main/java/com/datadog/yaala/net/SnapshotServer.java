@@ -0,0 +1,145 @@
+package com.datadog.yaala.net;
+
+import com.datadog.yaala.StatsSnapshot;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+import static java.lang.String.format;
+
+/**
+ * Receives {@link StatsSnapshot} deltas from several agents over TCP, each agent connection being read by its own
+ * daemon thread.
+ * <br>
+ * Deltas are coalesced per agent until {@link SnapshotServer#drain(Consumer)} is called (ie. by the main loop), so
+ * that pending state is bounded by the number of agents regardless of how slow the consumer is, and all merging into
+ * the statistics happens on a single thread.
+ *
+ * @author Nicolas Estrada.
+ */
+public final class SnapshotServer implements AutoCloseable {
+
+    private final ServerSocket server;
+    private final Map<String, StatsSnapshot> pending;
+    private final Set<Socket> connections;
+    private final Queue<String> events;
+
+    private SnapshotServer(ServerSocket server) {
+        this.server = server;
+        this.pending = new ConcurrentHashMap<>(16);
+        this.connections = ConcurrentHashMap.newKeySet();
+        this.events = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Starts listening on the arg <i>port</i> (0 for any available port).
+     */
+    public static SnapshotServer listen(int port) throws IOException {
+        var server = new SnapshotServer(new ServerSocket(port));
+        var acceptor = new Thread(server::acceptLoop, "yaala-snapshot-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @return the number of currently connected agents.
+     */
+    public int connectedAgents() {
+        return connections.size();
+    }
+
+    /**
+     * @return the number of agents whose deltas are waiting to be merged.
+     */
+    public int pendingSnapshots() {
+        return pending.size();
+    }
+
+    /**
+     * Hands over all pending (coalesced) deltas to the arg <i>action</i>.
+     */
+    public void drain(Consumer<StatsSnapshot> action) {
+        for (var agent : pending.keySet()) {
+            var snapshot = pending.remove(agent);
+            if (snapshot != null) {
+                action.accept(snapshot);
+            }
+        }
+    }
+
+    /**
+     * Hands over all connection events (ie. for logging purposes) to the arg <i>action</i>.
+     */
+    public void drainEvents(Consumer<String> action) {
+        String event;
+        while ((event = events.poll()) != null) {
+            action.accept(event);
+        }
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                var socket = server.accept();
+                connections.add(socket);
+                var reader = new Thread(() -> readLoop(socket), "yaala-snapshot-reader-" + socket.getPort());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    events.add(format("Could not accept agent connection: %s%n", e.getMessage()));
+                }
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        var remote = socket.getRemoteSocketAddress();
+        events.add(format("Agent connected from %s%n", remote));
+        try (socket; var in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE))) {
+            while (true) {
+                int len = in.readInt();
+                if (len <= 0 || len > MAX_FRAME_SIZE) {
+                    throw new IOException("invalid frame size: " + len);
+                }
+                var frame = new byte[len];
+                in.readFully(frame);
+                var snapshot = StatsSnapshot.readFrom(new DataInputStream(new ByteArrayInputStream(frame)));
+                pending.merge(snapshot.getAgent(), snapshot, (s1, s2) -> {
+                    s1.merge(s2);
+                    return s1;
+                });
+            }
+        } catch (IOException e) {
+            events.add(format("Agent %s disconnected: %s%n", remote, e.getMessage()));
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (var socket : connections) {
+            socket.close();
+        }
+    }
+
+    private static final int BUFFER_SIZE = 64 << 10;
+    private static final int MAX_FRAME_SIZE = 64 << 20;
+}
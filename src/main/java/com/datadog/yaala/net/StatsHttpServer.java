@@ -0,0 +1,111 @@
+package com.datadog.yaala.net;
+
+import com.datadog.yaala.PublishedStats;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Serves the latest {@link PublishedStats} over HTTP, as JSON on <code>/api/stats</code> and in the Prometheus text
+ * format on <code>/metrics</code>.
+ * <br>
+ * Requests are handled by a small pool of daemon threads which only ever read the latest published snapshot (a
+ * volatile reference) and its cached encodings, so any number of scrapers add no contention to ingestion.
+ *
+ * @author Nicolas Estrada.
+ */
+public final class StatsHttpServer implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    @Nullable
+    private volatile PublishedStats stats;
+
+    private StatsHttpServer(HttpServer server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts listening on the arg <i>address</i> (port 0 for any available port).
+     */
+    public static StatsHttpServer listen(InetSocketAddress address) throws IOException {
+        var counter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(HTTP_THREADS, r -> {
+            var t = new Thread(r, "yaala-http-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        var server = HttpServer.create(address, 0);
+        var http = new StatsHttpServer(server, executor);
+        server.createContext(STATS_PATH, ex -> http.serve(ex, STATS_PATH, PublishedStats::json, JSON));
+        server.createContext(METRICS_PATH, ex -> http.serve(ex, METRICS_PATH, PublishedStats::prometheus, PROMETHEUS));
+        server.setExecutor(executor);
+        server.start();
+        return http;
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Replaces the snapshot being served.
+     */
+    public void publish(PublishedStats snapshot) {
+        stats = snapshot;
+    }
+
+    private void serve(HttpExchange exchange,
+                       String path,
+                       Function<PublishedStats, byte[]> encoding,
+                       String contentType) throws IOException {
+        try {
+            var method = exchange.getRequestMethod();
+            boolean head = "HEAD".equals(method);
+            if (!head && !"GET".equals(method)) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            // Contexts match by prefix
+            if (!path.equals(exchange.getRequestURI().getPath())) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            var snapshot = stats;
+            if (snapshot == null) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            var body = encoding.apply(snapshot);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(200, head ? -1 : body.length);
+            if (!head) {
+                exchange.getResponseBody().write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static final int HTTP_THREADS = 2;
+    private static final String STATS_PATH = "/api/stats";
+    private static final String METRICS_PATH = "/metrics";
+    private static final String JSON = "application/json; charset=utf-8";
+    private static final String PROMETHEUS = "text/plain; version=0.0.4; charset=utf-8";
+}
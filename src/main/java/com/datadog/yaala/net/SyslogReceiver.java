@@ -0,0 +1,320 @@
+package com.datadog.yaala.net;
+
+import com.datadog.yaala.util.LineFilter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+import static java.nio.charset.Charset.defaultCharset;
+
+/**
+ * Receives access log lines shipped over syslog (ie. nginx's <code>access_log syslog:server=host:port</code>) on a UDP
+ * port, in order to aggregate the traffic of several web servers without any file in between.
+ * <br>
+ * A daemon thread wakes up whenever datagrams are available and drains them all, packing them back to back (one line
+ * each) into direct buffers taken from a fixed pool. A buffer is handed over to the main loop once it is full, or as
+ * soon as the main loop has consumed everything else (the main loop waking the receiver up when it runs dry), so that
+ * buffers are both large under load and handed over quickly otherwise. When the pool is exhausted (ie. the main loop
+ * falls behind), datagrams are dropped and counted rather than queued without bound.
+ * <br>
+ * Lines are then read by the main loop like with a {@link com.datadog.yaala.util.LineReader}, their syslog header
+ * (either RFC 3164 or RFC 5424) being stripped. Lines without any header are kept as is.
+ *
+ * @author Nicolas Estrada.
+ */
+@SuppressWarnings("MagicCharacter")
+public final class SyslogReceiver implements AutoCloseable {
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final BlockingQueue<ByteBuffer> pool;
+    private final Queue<ByteBuffer> received;
+    // Bytes received but not read yet
+    private final AtomicLong pending;
+
+    // Written by the receiver thread only
+    private volatile long datagrams;
+    private volatile long dropped;
+
+    // Main loop only
+    private ByteBuffer reading;
+    private byte[] line;
+    private int skipped;
+
+    private SyslogReceiver(DatagramChannel channel, Selector selector, int buffers, int bufferBytes) {
+        this.channel = channel;
+        this.selector = selector;
+        this.pool = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            pool.add(ByteBuffer.allocateDirect(bufferBytes));
+        }
+        this.received = new ConcurrentLinkedQueue<>();
+        this.pending = new AtomicLong();
+        this.reading = EMPTY;
+        this.line = new byte[LINE_SIZE];
+    }
+
+    /**
+     * Starts listening on the arg <i>address</i> (port 0 for any available port).
+     */
+    public static SyslogReceiver listen(InetSocketAddress address) throws IOException {
+        return listen(address, BUFFERS, BUFFER_BYTES);
+    }
+
+    static SyslogReceiver listen(InetSocketAddress address, int buffers, int bufferBytes) throws IOException {
+        if (bufferBytes <= MAX_DATAGRAM) {
+            throw new IllegalArgumentException("buffers must be larger than a datagram: " + bufferBytes);
+        }
+        var channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_BYTES);
+        channel.bind(address);
+        channel.configureBlocking(false);
+        var selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        var receiver = new SyslogReceiver(channel, selector, buffers, bufferBytes);
+        var thread = new Thread(receiver::receiveLoop, "yaala-syslog");
+        thread.setDaemon(true);
+        thread.start();
+        return receiver;
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * @return the number of datagrams received so far, dropped ones included.
+     */
+    public long datagrams() {
+        return datagrams;
+    }
+
+    /**
+     * @return the number of datagrams dropped so far because the main loop fell behind.
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    /**
+     * @return the number of buffers waiting to be read.
+     */
+    public int pendingBuffers() {
+        return received.size();
+    }
+
+    /**
+     * @return the number of bytes received but not read yet.
+     */
+    public long lag() {
+        return pending.get();
+    }
+
+    /**
+     * @return a summary of the receiver for the pipeline panel.
+     */
+    public String summary() {
+        return format("%d datagrams, %d dropped", datagrams, dropped);
+    }
+
+    /**
+     * Reads at most <i>n</i> lines, or less if no more were received yet. Only the lines accepted by the arg
+     * <i>filter</i> (evaluated without their syslog header) are decoded, rejected ones being only counted (see
+     * {@link SyslogReceiver#skippedLines()}) and also counting towards <i>n</i>.
+     */
+    public List<String> readLines(int n, LineFilter filter) {
+        List<String> lines = new ArrayList<>(Math.min(n, LINES_CAPACITY));
+        skipped = 0;
+        long consumed = 0;
+        while (lines.size() + skipped < n) {
+            if (!reading.hasRemaining() && !nextBuffer()) {
+                break;
+            }
+            int start = reading.position();
+            int len = 0;
+            while (reading.get(start + len) != '\n') {
+                len++;
+            }
+            if (len > line.length) {
+                line = new byte[Math.max(len, line.length << 1)];
+            }
+            reading.get(line, 0, len);
+            reading.get();
+            consumed += len + 1;
+            int off = payloadOffset(line, 0, len);
+            if (filter.accept(line, off, len - off)) {
+                lines.add(new String(line, off, len - off, defaultCharset()));
+            } else {
+                skipped++;
+            }
+        }
+        pending.addAndGet(-consumed);
+        return lines;
+    }
+
+    /**
+     * @return the number of lines rejected by the filter during the last {@link SyslogReceiver#readLines}.
+     */
+    public int skippedLines() {
+        return skipped;
+    }
+
+    private boolean nextBuffer() {
+        if (reading.isDirect()) {
+            reading.clear();
+            pool.add(reading);
+        }
+        var next = received.poll();
+        if (next == null) {
+            // Makes the receiver hand its partial buffer over, if any
+            selector.wakeup();
+            reading = EMPTY;
+            return false;
+        }
+        reading = next;
+        return true;
+    }
+
+    /**
+     * @return the offset of the message following the syslog header of the line of length <i>len</i> starting at
+     * <i>off</i>, or <i>off</i> if there isn't any header.
+     */
+    static int payloadOffset(byte[] buf, int off, int len) {
+        int end = off + len;
+        if (len == 0 || buf[off] != '<') {
+            return off;
+        }
+        int i = off + 1;
+        while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+            i++;
+        }
+        if (i == off + 1 || i >= end || buf[i] != '>') {
+            return off;
+        }
+        int pri = ++i;
+        if (i + 1 < end && buf[i] >= '1' && buf[i] <= '9' && buf[i + 1] == ' ') {
+            // RFC 5424: <PRI>VERSION TIMESTAMP HOSTNAME APP-NAME PROCID MSGID STRUCTURED-DATA MSG
+            for (int field = 0; field < 6 && i < end; field++) {
+                while (i < end && buf[i] != ' ') {
+                    i++;
+                }
+                i++;
+            }
+            if (i < end && buf[i] == '[') {
+                while (i < end && buf[i] == '[') {
+                    i = elementEnd(buf, i, end);
+                }
+            } else {
+                i++;
+            }
+            i++;
+            // The message may start with a BOM
+            if (i + 2 < end && buf[i] == (byte) 0xEF && buf[i + 1] == (byte) 0xBB && buf[i + 2] == (byte) 0xBF) {
+                i += 3;
+            }
+            return Math.min(i, end);
+        }
+        // RFC 3164: <PRI>Mmm dd hh:mm:ss HOSTNAME TAG: MSG, the timestamp has no ": " unlike the tag
+        for (int j = pri; j + 1 < end; j++) {
+            if (buf[j] == ':' && buf[j + 1] == ' ') {
+                return j + 2;
+            }
+        }
+        return pri;
+    }
+
+    /**
+     * @return the index following the structured data element starting at <i>from</i>, skipping escaped brackets.
+     */
+    private static int elementEnd(byte[] buf, int from, int end) {
+        int i = from + 1;
+        while (i < end && buf[i] != ']') {
+            i += buf[i] == '\\' ? 2 : 1;
+        }
+        return i + 1;
+    }
+
+    private void receiveLoop() {
+        ByteBuffer filling = null;
+        var overflow = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                selector.selectedKeys().clear();
+                while (true) {
+                    if (filling == null) {
+                        filling = pool.poll();
+                    }
+                    var buf = filling != null ? filling : overflow;
+                    int start = buf.position();
+                    if (channel.receive(buf) == null) {
+                        break;
+                    }
+                    //noinspection NonAtomicOperationOnVolatileField
+                    datagrams++;
+                    if (buf == overflow) {
+                        //noinspection NonAtomicOperationOnVolatileField
+                        dropped++;
+                        overflow.clear();
+                        continue;
+                    }
+                    if (buf.position() == start) {
+                        continue;
+                    }
+                    if (buf.get(buf.position() - 1) != '\n') {
+                        buf.put((byte) '\n');
+                    }
+                    pending.addAndGet(buf.position() - start);
+                    if (buf.remaining() < MAX_DATAGRAM) {
+                        hand(filling);
+                        filling = null;
+                    }
+                }
+                // Hands a partial buffer over only if the main loop would be left waiting otherwise
+                if (filling != null && filling.position() > 0 && received.isEmpty()) {
+                    hand(filling);
+                    filling = null;
+                }
+            }
+        } catch (ClosedChannelException | ClosedSelectorException ignored) {
+            // Closed
+        } catch (IOException e) {
+            // Leaves the main loop to read what was received so far
+        }
+    }
+
+    private void hand(ByteBuffer buf) {
+        buf.flip();
+        received.add(buf);
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        channel.close();
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int BUFFERS = 16;
+    private static final int BUFFER_BYTES = 1 << 20;
+    // The maximum UDP payload, and a line feed
+    private static final int MAX_DATAGRAM = 65_508;
+    private static final int SOCKET_BUFFER_BYTES = 4 << 20;
+    private static final int LINE_SIZE = 4 << 10;
+    private static final int LINES_CAPACITY = 1024;
+}
@@ -1,17 +1,24 @@
 package com.datadog.yaala.ui;
 
 import com.datadog.yaala.Config;
+import com.datadog.yaala.util.StepHistory;
+import com.googlecode.lanterna.TextCharacter;
 import com.googlecode.lanterna.TerminalPosition;
 import com.googlecode.lanterna.TerminalSize;
 import com.googlecode.lanterna.graphics.TextGraphics;
 import com.googlecode.lanterna.graphics.TextGraphicsWriter;
+import com.googlecode.lanterna.input.KeyStroke;
 import com.googlecode.lanterna.screen.Screen;
 import com.googlecode.lanterna.screen.TerminalScreen;
 import com.googlecode.lanterna.terminal.DefaultTerminalFactory;
 import com.googlecode.lanterna.terminal.Terminal;
 
+import javax.annotation.Nullable;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.MessageFormat;
+import java.util.List;
 import java.util.Map;
 
 import static com.datadog.yaala.util.Misc.printBandwidth;
@@ -21,12 +28,14 @@ import static com.googlecode.lanterna.Symbols.DOUBLE_LINE_HORIZONTAL;
 import static com.googlecode.lanterna.TextColor.ANSI.BLUE;
 import static com.googlecode.lanterna.TextColor.ANSI.DEFAULT;
 import static com.googlecode.lanterna.TextColor.ANSI.YELLOW;
+import static com.googlecode.lanterna.input.KeyType.Character;
 import static com.googlecode.lanterna.input.KeyType.Escape;
 import static com.googlecode.lanterna.screen.Screen.RefreshType.COMPLETE;
 import static com.googlecode.lanterna.screen.Screen.RefreshType.DELTA;
 import static com.googlecode.lanterna.screen.WrapBehaviour.CLIP;
 import static java.lang.String.format;
 import static java.lang.System.nanoTime;
+import static java.nio.charset.Charset.defaultCharset;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.graalvm.nativeimage.ImageInfo.inImageCode;
 
@@ -34,8 +43,19 @@ import static org.graalvm.nativeimage.ImageInfo.inImageCode;
  * This class is responsable for rendering all the related logs, statistics and alerts into the console.
  * <br>
  * It implements a naive bootstrap-like grid, the screen is divided into {@link ConsoleUI#NUM_PARTS} parts,
- * and all statistics save the <i>route</i> take up 1 part, which leaves 3 other parts for <i>hits</i>, <i>threshold</i>
- * and <i>increase</i>.
+ * and all statistics save the <i>route</i> and <i>history</i> take up 1 part, which leaves 6 other parts for
+ * <i>hits</i>, <i>increase</i>, <i>throughput</i>, <i>visitors/users</i>, <i>errors</i> and <i>latency</i>. The
+ * <i>history</i> is a sparkline of the hits of the last steps, drawn character by character so that it doesn't
+ * allocate anything. Routes deviating from their baselines are highlighted, along with the direction of their
+ * deviation.
+ * <br>
+ * Routes can be sorted by most of these columns by cycling through the {@link SortOrder}s with <code>s</code>, and
+ * filtered by hitting <code>/</code> then typing a route prefix (or a regex prefixed by <code>~</code>). Hitting
+ * <code>q</code> then typing a query of the recent events (ie. <code>sum(bytes) by client where status=404</code>)
+ * displays its results, run again on every refresh, in the bottom half of the screen.
+ * <br>
+ * The bottom half of the screen displays the tailed logs by default, but can be toggled into other {@link Panel}s
+ * by hitting their respective keys.
  * <br>
  * It is very procedural and somewhat naive implementation however it gets the job done and perhaps could use a
  * cosmetic makeover UX wise..
@@ -54,6 +74,21 @@ public final class ConsoleUI implements AutoCloseable {
     private TerminalSize size;
     private long lastUiRefresh = nanoTime();
     private String statsFormat;
+    private String clientsFormat;
+    private String upstreamsFormat;
+    private int historyX;
+    private int historyWidth;
+    private Panel panel = Panel.LOGS;
+    // The first frame is rendered right away rather than after a whole refresh period
+    private boolean forceRefresh = true;
+    private long frames;
+    // Route filter or query being typed, if any
+    @Nullable
+    private Prompt prompt;
+    private final StringBuilder input = new StringBuilder();
+    // Why the last query typed was rejected, if it was
+    @Nullable
+    private String queryError;
 
     private ConsoleUI(Screen screen, long refreshPeriodMs, UIModel model) {
         this.screen = screen;
@@ -67,12 +102,14 @@ public final class ConsoleUI implements AutoCloseable {
     /**
      * Initializes the Console ui.
      *
-     * @param cfg   the config.
-     * @param model the data layer for this UI.
+     * @param cfg      the config.
+     * @param model    the data layer for this UI.
+     * @param ttyInput whether key strokes should be read from <code>/dev/tty</code> since stdin is being read as the
+     *                 log stream.
      * @return the newly created ConsoleUI instance.
      */
-    public static ConsoleUI initConsole(Config cfg, UIModel model) throws IOException {
-        var term = initTerminal();
+    public static ConsoleUI initConsole(Config cfg, UIModel model, boolean ttyInput) throws IOException {
+        var term = ttyInput ? initTerminal(new FileInputStream(TTY), true) : initTerminal(System.in, false);
         var screen = initScreen(term);
         var console = new ConsoleUI(screen, cfg.refreshPeriodMs(), model);
         console.size = screen.getTerminalSize();
@@ -89,15 +126,25 @@ public final class ConsoleUI implements AutoCloseable {
     public void refresh() throws IOException {
         boolean resize = shouldResize();
         long now = nanoTime();
-        if (resize || (now - lastUiRefresh > refreshPeriodNs)) {
+        if (resize || forceRefresh || (now - lastUiRefresh > refreshPeriodNs)) {
             updateTotal();
-            updateLogs();
+            updateStatus();
+            updatePanel();
             updateRouteStats();
             screen.refresh(resize ? COMPLETE : DELTA);
             lastUiRefresh = now;
+            forceRefresh = false;
+            frames++;
         }
     }
 
+    /**
+     * @return the number of frames rendered so far.
+     */
+    public long frames() {
+        return frames;
+    }
+
     /**
      * If a new screen size is detected, trigger a {@code COMPLETE} refresh, otherwise simply refresh the {@code DELTA}.
      */
@@ -113,11 +160,106 @@ public final class ConsoleUI implements AutoCloseable {
     }
 
     /**
+     * Handles any pending key stroke, toggling panels, sorting or filtering routes if requested.
+     *
      * @return {@code true} if the user requests an exit (hitting ESC), {@code false} otherwise.
      */
     public boolean shouldExit() throws IOException {
         var keyStroke = screen.pollInput();
-        return keyStroke != null && keyStroke.getKeyType() == Escape;
+        if (keyStroke == null) {
+            return false;
+        } else if (prompt != null) {
+            editInput(keyStroke);
+            return false;
+        } else if (keyStroke.getKeyType() == Character) {
+            handleKey(keyStroke.getCharacter());
+        }
+        return keyStroke.getKeyType() == Escape;
+    }
+
+    private void handleKey(char key) {
+        switch (key) {
+            case 's':
+                model.setSortOrder(model.getSortOrder().next());
+                forceRefresh = true;
+                break;
+            case '/':
+                openPrompt(Prompt.FILTER, model.getRouteFilter());
+                break;
+            case 'q':
+                openPrompt(Prompt.QUERY, model.getQuery());
+                break;
+            default:
+                togglePanel(key);
+        }
+    }
+
+    private void openPrompt(Prompt p, String value) {
+        prompt = p;
+        input.setLength(0);
+        input.append(value);
+        forceRefresh = true;
+    }
+
+    /**
+     * Edits the route filter or query being typed, which is applied when hitting ENTER or discarded when hitting ESC.
+     * An invalid query is kept being edited.
+     */
+    private void editInput(KeyStroke keyStroke) {
+        assert prompt != null;
+        switch (keyStroke.getKeyType()) {
+            case Enter:
+                if (prompt == Prompt.FILTER) {
+                    model.setRouteFilter(input.toString());
+                    prompt = null;
+                } else {
+                    applyQuery();
+                }
+                break;
+            case Escape:
+                prompt = null;
+                queryError = null;
+                break;
+            case Backspace:
+                if (input.length() > 0) {
+                    input.setLength(input.length() - 1);
+                }
+                break;
+            case Character:
+                input.append(keyStroke.getCharacter());
+                break;
+            default:
+                return;
+        }
+        forceRefresh = true;
+    }
+
+    private void applyQuery() {
+        try {
+            model.setQuery(input.toString());
+            prompt = null;
+            queryError = null;
+            if (panel != Panel.QUERY) {
+                panel = Panel.QUERY;
+                screen.clear();
+            }
+        } catch (IllegalArgumentException e) {
+            queryError = e.getMessage();
+        }
+    }
+
+    /**
+     * Displays the panel bound to the arg <i>key</i>, or goes back to the logs if it is already displayed.
+     */
+    private void togglePanel(char key) {
+        for (var p : Panel.values()) {
+            if (p.key == key) {
+                panel = p == panel ? Panel.LOGS : p;
+                screen.clear();
+                forceRefresh = true;
+                break;
+            }
+        }
     }
 
     private void resizeLogsBuffer() {
@@ -131,18 +273,57 @@ public final class ConsoleUI implements AutoCloseable {
         // Adjust the stats format
         int partSz = (size.getColumns() - 1) / NUM_PARTS;
         // FIXME Super ugly optimization due to hasty attempt to have fast resizable columns
-        statsFormat = MessageFormat.format(" %1$-{0}s%2$-{1}s%3$-{1}s%4$-{1}s%n", partSz << 1, partSz);
+        statsFormat = MessageFormat.format(" %1$-{0}s%2$-{1}s%3$-{1}s%4$-{1}s%5$-{1}s%6$-{1}s%7$-{1}s%8$-{0}s",
+          partSz << 1, partSz);
+        // The sparkline is drawn after the "| " of the last column
+        historyX = 1 + (partSz << 1) + 6 * partSz + 2;
+        historyWidth = Math.max(0, (partSz << 1) - 2);
+        int halfPartSz = partSz >> 1;
+        clientsFormat = MessageFormat.format(" %1$-{0}s%2$-{1}s%3$-{1}s", partSz, halfPartSz);
+        // Half of the screen for each of the services and pods
+        int upstreamPartSz = Math.max(1, (size.getColumns() >> 1) / NUM_PARTS);
+        upstreamsFormat = MessageFormat.format(" %1$-{0}.{0}s%2$-{1}s%3$-{1}s%4$-{1}s%5$-{1}s%6$-{1}s",
+          upstreamPartSz * 3, (upstreamPartSz * 7) / 5);
     }
 
     private void updateTotal() {
         textGraphics.putString(0, START_Y_TOTAL, format("%1$-" + size.getColumns() + "s", " "));
-        var s = format("Http requests per second: %.2f rps (errors=%d)", model.totalRps(), model.parseErrors());
+        var s = format("Http requests per second: %.2f rps (errors=%d, visitors=%d, users=%d)",
+          model.totalRps(), model.parseErrors(), model.uniqueVisitors(), model.uniqueUsers());
+        double samplingRate = model.samplingRate();
+        if (samplingRate < 1.0) {
+            s += format(" [overloaded, sampling %.1f%%]", samplingRate * 100);
+        }
+        int anomalies = model.anomalies();
+        if (anomalies > 0) {
+            s += format(" [%d anomalies]", anomalies);
+        }
+        int slowUpstreams = model.slowUpstreams();
+        if (slowUpstreams > 0) {
+            s += format(" [%d slow upstreams]", slowUpstreams);
+        }
         textGraphics.putString(1, START_Y_TOTAL, s, BOLD);
         model
           .getAlertString()
           .ifPresentOrElse(this::writeAlert, this::clearAlert);
     }
 
+    /**
+     * The sort order and route filter, or the filter or query being typed.
+     */
+    private void updateStatus() {
+        int y = START_Y_TOTAL + 1;
+        textGraphics.putString(0, y, format("%1$-" + size.getColumns() + "s", " "));
+        if (prompt != null) {
+            var line = prompt.label + input + '_';
+            textGraphics.putString(1, y, queryError != null ? line + "  (" + queryError + ')' : line, BOLD);
+        } else {
+            var filter = model.getRouteFilter();
+            textGraphics.putString(1, y, format("sort: %s, filter: %s (s: sort, /: filter, q: query)",
+              model.getSortOrder().getColumn(), filter.isEmpty() ? "none" : filter));
+        }
+    }
+
     private void writeAlert(String msg) {
         textGraphics.setForegroundColor(YELLOW);
         textGraphics.setBackgroundColor(BLUE);
@@ -157,19 +338,73 @@ public final class ConsoleUI implements AutoCloseable {
     }
 
     private void updateRouteStats() {
-        var header = format(statsFormat, "route", "║ hits", "║ increase", "║ throughput");
+        var header = format(statsFormat, "route",
+          columnHeader(SortOrder.HITS),
+          columnHeader(SortOrder.INCREASE),
+          columnHeader(SortOrder.THROUGHPUT),
+          "║ visitors/users",
+          columnHeader(SortOrder.ERROR_RATE),
+          columnHeader(SortOrder.LATENCY),
+          "║ history");
         textGraphics.putString(0, START_Y_STATS, header, BOLD);
         drawLineY(START_Y_STATS + 1);
-        logWriter.setCursorPosition(new TerminalPosition(0, START_Y_STATS + 2));
+        int[] row = {START_Y_STATS + 2};
         model.forEachRoute(stats -> {
+            var anomaly = (Double) stats.get("anomaly");
             var line = format(statsFormat,
-              stats.get("route"),
+              formatRoute(stats.get("route"), anomaly),
               formatHits(stats),
               formatIncrease(stats),
-              formatThroughput(stats)
+              formatThroughput(stats),
+              formatUniques(stats),
+              formatErrors(stats),
+              formatLatency(stats),
+              "| "
             );
-            logWriter.putString(line);
+            if (anomaly != 0.0) {
+                textGraphics.setForegroundColor(YELLOW);
+            }
+            textGraphics.putString(0, row[0], line);
+            textGraphics.setForegroundColor(DEFAULT);
+            drawSparkline((StepHistory) stats.get("history"), row[0]++);
         });
+        // Clear the rows of routes which were filtered out since the last refresh
+        int halfY = size.getRows() >> 1;
+        while (row[0] < halfY) {
+            textGraphics.drawLine(0, row[0], size.getColumns(), row[0], ' ');
+            row[0]++;
+        }
+    }
+
+    /**
+     * Draws the most recent steps of the arg <i>history</i>, scaled to the highest displayed one.
+     */
+    private void drawSparkline(StepHistory history, int y) {
+        int n = Math.min(historyWidth, history.capacity());
+        int from = history.capacity() - n;
+        float max = 0f;
+        for (int i = from; i < history.capacity(); i++) {
+            max = Math.max(max, history.get(i));
+        }
+        for (int i = 0; i < n; i++) {
+            float v = history.get(from + i);
+            int level = v <= 0f ? 0 : Math.min(SPARKS.length - 1, (int) Math.ceil(v / max * (SPARKS.length - 1)));
+            textGraphics.setCharacter(historyX + i, y, SPARKS[level]);
+        }
+    }
+
+    /**
+     * Anomalous routes are flagged by the direction of their deviation.
+     */
+    private static Object formatRoute(Object route, double anomaly) {
+        if (anomaly == 0.0) {
+            return route;
+        }
+        return (anomaly > 0 ? "▲ " : "▼ ") + route;
+    }
+
+    private String columnHeader(SortOrder order) {
+        return "║ " + order.getColumn() + (model.getSortOrder() == order ? " ▼" : "");
     }
 
     private static String formatHits(Map<String, Object> stats) {
@@ -187,13 +422,151 @@ public final class ConsoleUI implements AutoCloseable {
         return throughput == 0.0 ? "| -" : "| " + printBandwidth(throughput);
     }
 
-    private void updateLogs() {
+    private static String formatUniques(Map<String, Object> stats) {
+        return format("| %d/%d", (Long) stats.get("visitors"), (Long) stats.get("users"));
+    }
+
+    private static String formatErrors(Map<String, Object> stats) {
+        var errors = (Double) stats.get("errors");
+        return errors == 0.0 ? "| -" : format("| %.1f%%", errors);
+    }
+
+    private static String formatLatency(Map<String, Object> stats) {
+        var latency = (Double) stats.get("latency");
+        return latency == 0.0 ? "| -" : format("| %.1fms", latency);
+    }
+
+    private void updatePanel() {
         int halfY = size.getRows() >> 1;
         drawLineY(halfY);
-        logWriter.setCursorPosition(new TerminalPosition(0, halfY + 1));
+        switch (panel) {
+            case CLIENTS:
+                updateClients(halfY + 1);
+                break;
+            case PIPELINE:
+                updatePipeline(halfY + 1);
+                break;
+            case UPSTREAMS:
+                updateUpstreams(halfY + 1);
+                break;
+            case QUERY:
+                updateQuery(halfY + 1);
+                break;
+            case LOGS:
+            default:
+                updateLogs(halfY + 1);
+        }
+    }
+
+    private void updateLogs(int y) {
+        logWriter.setCursorPosition(new TerminalPosition(0, y));
         model.getLogs().forEach(logWriter::putString);
     }
 
+    /**
+     * The top clients overall on the left, and the top clients per route on the right.
+     */
+    private void updateClients(int y) {
+        int halfX = size.getColumns() >> 1;
+        textGraphics.putString(0, y, format(clientsFormat, "client", "║ hits", "║ share"), BOLD);
+        textGraphics.putString(halfX, y, "║ route: top clients", BOLD);
+        int[] row = {y + 1};
+        model.forEachClient(client -> {
+            var line = format(clientsFormat,
+              client.get("client"),
+              "| " + client.get("hits"),
+              format("| %.1f%%", (Double) client.get("share")));
+            textGraphics.putString(0, row[0]++, line);
+        });
+        row[0] = y + 1;
+        model.forEachRouteClients(route -> {
+            var sb = new StringBuilder("| ").append(route.get("route")).append(':');
+            @SuppressWarnings("unchecked")
+            var clients = (List<Map<String, Object>>) route.get("clients");
+            for (var client : clients) {
+                sb.append(' ').append(client.get("client")).append(" (").append(client.get("hits")).append(')');
+            }
+            textGraphics.putString(halfX, row[0]++, sb.toString());
+        });
+    }
+
+    /**
+     * The slowest upstream services on the left, and the slowest upstream pods on the right, both over the previous
+     * step. Services slowing down are highlighted.
+     */
+    private void updateUpstreams(int y) {
+        int halfX = size.getColumns() >> 1;
+        textGraphics.putString(0, y, upstreamsHeader("upstream"), BOLD);
+        textGraphics.putString(halfX, y, '║' + upstreamsHeader("pod").substring(1), BOLD);
+        int[] row = {y + 1};
+        model.forEachUpstream(upstream -> {
+            var line = formatUpstream(upstream);
+            if ((Boolean) upstream.get("slow")) {
+                textGraphics.setForegroundColor(YELLOW);
+                textGraphics.putString(0, row[0]++, line);
+                textGraphics.setForegroundColor(DEFAULT);
+            } else {
+                textGraphics.putString(0, row[0]++, line);
+            }
+        });
+        row[0] = y + 1;
+        model.forEachUpstreamPod(pod -> {
+            var line = '|' + formatUpstream(pod).substring(1);
+            textGraphics.putString(halfX, row[0]++, line);
+        });
+    }
+
+    private String upstreamsHeader(String name) {
+        return format(upstreamsFormat, name, "║ hits", "║ p50", "║ p99", "║ 5xx", "║ retries");
+    }
+
+    private String formatUpstream(Map<String, Object> upstream) {
+        return format(upstreamsFormat,
+          upstream.get("upstream"),
+          format("| %.0f", (Double) upstream.get("hits")),
+          format("| %.1fms", (Double) upstream.get("p50")),
+          format("| %.1fms", (Double) upstream.get("p99")),
+          format("| %.1f%%", (Double) upstream.get("errors")),
+          format("| %.0f", (Double) upstream.get("retries")));
+    }
+
+    /**
+     * The results of the current query, a row per group. Rows of groups which dropped out are cleared.
+     */
+    private void updateQuery(int y) {
+        textGraphics.putString(0, y, format("%1$-" + size.getColumns() + "s", " " + model.getQuery()), BOLD);
+        int[] row = {y + 1};
+        model.forEachQueryResult(result -> {
+            var sb = new StringBuilder();
+            for (var value : result.values()) {
+                var s = value instanceof Double ? format("%.2f", (Double) value) : String.valueOf(value);
+                sb.append(format(" %-" + QUERY_COLUMN + "s", s));
+            }
+            textGraphics.putString(0, row[0]++, format("%1$-" + size.getColumns() + "s", sb));
+        });
+        while (row[0] < size.getRows()) {
+            textGraphics.drawLine(0, row[0], size.getColumns(), row[0], ' ');
+            row[0]++;
+        }
+    }
+
+    /**
+     * Self instrumentation metrics, in two columns.
+     */
+    private void updatePipeline(int y) {
+        int halfX = size.getColumns() >> 1;
+        textGraphics.putString(0, y, " yaala pipeline", BOLD);
+        var stats = model.getPipelineStats();
+        int rows = Math.max(1, (stats.size() + 1) >> 1);
+        int i = 0;
+        for (var e : stats.entrySet()) {
+            int x = i < rows ? 0 : halfX;
+            int row = y + 1 + (i % rows);
+            textGraphics.putString(x, row, format(" %-14s %s", e.getKey() + ':', e.getValue()));
+            i++;
+        }
+    }
+
     private void drawLineY(int y) {
         textGraphics.drawLine(0, y, size.getColumns(), y, DOUBLE_LINE_HORIZONTAL);
     }
@@ -206,11 +579,15 @@ public final class ConsoleUI implements AutoCloseable {
     /**
      * @return a {@link Terminal}. If building a Graal native image, it should always create a <i>headless</i> one.
      */
-    private static Terminal initTerminal() throws IOException {
+    @SuppressWarnings("UseOfSystemOutOrSystemErr")
+    private static Terminal initTerminal(InputStream input, boolean forceText) throws IOException {
         if (inImageCode()) {
-            return PatchedUnixTerminal.createTerminal();
+            return PatchedUnixTerminal.createTerminal(input);
         } else {
-            return new DefaultTerminalFactory().createTerminal();
+            // Without a console (ie. stdin is piped), lanterna would rather open a terminal emulator window
+            return new DefaultTerminalFactory(System.out, input, defaultCharset())
+              .setForceTextTerminal(forceText)
+              .createTerminal();
         }
     }
 
@@ -221,7 +598,52 @@ public final class ConsoleUI implements AutoCloseable {
         return screen;
     }
 
-    private static final int NUM_PARTS = 5;
+    private static TextCharacter[] sparks(String chars) {
+        var sparks = new TextCharacter[chars.length()];
+        for (int i = 0; i < sparks.length; i++) {
+            sparks[i] = TextCharacter.fromCharacter(chars.charAt(i))[0];
+        }
+        return sparks;
+    }
+
+    /**
+     * All panels which can be displayed in the bottom half of the screen, with the key toggling them.
+     */
+    private enum Panel {
+
+        LOGS('l'),
+        CLIENTS('c'),
+        PIPELINE('p'),
+        UPSTREAMS('u'),
+        // Displayed once a query is applied
+        QUERY('\0');
+
+        private final char key;
+
+        Panel(char key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * What is being typed on the status line.
+     */
+    private enum Prompt {
+
+        FILTER("filter> "),
+        QUERY("query> ");
+
+        private final String label;
+
+        Prompt(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final int NUM_PARTS = 10;
+    private static final int QUERY_COLUMN = 40;
+    private static final String TTY = "/dev/tty";
+    private static final TextCharacter[] SPARKS = sparks(" ▁▂▃▄▅▆▇█");
     private static final int START_Y_TOTAL = 1;
     private static final int START_Y_STATS = START_Y_TOTAL + 3;
 }
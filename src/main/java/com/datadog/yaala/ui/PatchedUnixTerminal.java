@@ -1,38 +1,59 @@
 package com.datadog.yaala.ui;
 
+import com.googlecode.lanterna.TerminalSize;
 import com.googlecode.lanterna.terminal.ansi.UnixTerminal;
 import sun.misc.Signal;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
 
-import static java.lang.System.in;
 import static java.lang.System.out;
 import static java.nio.charset.Charset.defaultCharset;
 import static sun.misc.Signal.handle;
 
 /**
  * Patched implementation of {@link UnixTerminal} where resizing was not working during Graal native execution.
+ * <br>
+ * The size of the terminal is also only queried again once resized: every query is a round trip to the terminal
+ * (a cursor position report), and the screen queries it twice when starting, which delays the first frame.
  *
  * @author Nicolas Estrada.
  */
 public final class PatchedUnixTerminal extends UnixTerminal {
 
+    // Forgotten when resized
+    @Nullable
+    private volatile TerminalSize size;
+
     private PatchedUnixTerminal(InputStream terminalInput, OutputStream terminalOutput, Charset terminalCharset)
       throws IOException {
         super(terminalInput, terminalOutput, terminalCharset);
     }
 
     @SuppressWarnings("UseOfSystemOutOrSystemErr")
-    static UnixTerminal createTerminal() throws IOException {
-        return new PatchedUnixTerminal(in, out, defaultCharset());
+    static UnixTerminal createTerminal(InputStream input) throws IOException {
+        return new PatchedUnixTerminal(input, out, defaultCharset());
     }
 
     @Override
     protected void registerTerminalResizeListener(Runnable onResize) {
         //noinspection UseOfSunClasses
-        handle(new Signal("WINCH"), sig -> onResize.run());
+        handle(new Signal("WINCH"), sig -> {
+            size = null;
+            onResize.run();
+        });
+    }
+
+    @Override
+    protected TerminalSize findTerminalSize() throws IOException {
+        var known = size;
+        if (known == null) {
+            known = super.findTerminalSize();
+            size = known;
+        }
+        return known;
     }
 }
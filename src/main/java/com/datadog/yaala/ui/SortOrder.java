@@ -0,0 +1,36 @@
+package com.datadog.yaala.ui;
+
+/**
+ * All the criteria by which routes can be sorted in the {@link ConsoleUI}, in descending order.
+ *
+ * @author Nicolas Estrada.
+ */
+public enum SortOrder {
+
+    HITS("hits"),
+    INCREASE("increase"),
+    THROUGHPUT("throughput"),
+    ERROR_RATE("errors"),
+    LATENCY("latency");
+
+    private final String column;
+
+    SortOrder(String column) {
+        this.column = column;
+    }
+
+    /**
+     * @return the name of the sorted column.
+     */
+    public String getColumn() {
+        return column;
+    }
+
+    /**
+     * @return the next sort order, cycling back to the first one.
+     */
+    public SortOrder next() {
+        var values = values();
+        return values[(ordinal() + 1) % values.length];
+    }
+}
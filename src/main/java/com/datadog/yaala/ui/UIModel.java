@@ -17,10 +17,52 @@ public interface UIModel {
     Iterable<String> getLogs();
 
     /**
-     * Iterates over as many as routes as the buffer allows.
+     * Iterates over as many as routes as the buffer allows, sorted by the current {@link SortOrder} and only
+     * those matching the current route filter.
      */
     void forEachRoute(Consumer<Map<String, Object>> action);
 
+    /**
+     * @return the order in which routes are sorted.
+     */
+    SortOrder getSortOrder();
+
+    /**
+     * Sets the order in which routes are sorted.
+     */
+    void setSortOrder(SortOrder order);
+
+    /**
+     * @return the current route filter, empty if all routes are displayed.
+     */
+    String getRouteFilter();
+
+    /**
+     * Sets the route filter, either a route prefix or a regex if it starts with a <code>~</code>.
+     * An empty filter displays all routes.
+     */
+    void setRouteFilter(String filter);
+
+    /**
+     * Iterates over as many of the most frequent clients as the log buffer allows.
+     */
+    void forEachClient(Consumer<Map<String, Object>> action);
+
+    /**
+     * Iterates over the most frequent clients of as many routes as the buffer allows.
+     */
+    void forEachRouteClients(Consumer<Map<String, Object>> action);
+
+    /**
+     * Iterates over as many of the slowest upstream services as the log buffer allows.
+     */
+    void forEachUpstream(Consumer<Map<String, Object>> action);
+
+    /**
+     * Iterates over as many of the slowest upstream pods as the log buffer allows.
+     */
+    void forEachUpstreamPod(Consumer<Map<String, Object>> action);
+
     /**
      * @return the size of possible logs to display.
      */
@@ -36,16 +78,63 @@ public interface UIModel {
      */
     void setStatsBufferSize(int size);
 
+    /**
+     * @return the current query of the recent events, empty if none.
+     */
+    String getQuery();
+
+    /**
+     * Sets the query of the recent events, whose results are iterated over from now on.
+     *
+     * @throws IllegalArgumentException if the query is invalid, or no recent events are kept.
+     */
+    void setQuery(String query);
+
+    /**
+     * Iterates over as many of the results of the current query as the log buffer allows, running it again.
+     */
+    void forEachQueryResult(Consumer<Map<String, Object>> action);
+
     /**
      * @return the total displayable requests per second.
      */
     double totalRps();
 
+    /**
+     * @return the estimated number of distinct clients over the current window.
+     */
+    long uniqueVisitors();
+
+    /**
+     * @return the estimated number of distinct remote users over the current window.
+     */
+    long uniqueUsers();
+
+    /**
+     * @return the rate at which lines are sampled, lower than 1 when shedding load.
+     */
+    double samplingRate();
+
+    /**
+     * @return the number of anomalous route metrics over the previous step.
+     */
+    int anomalies();
+
+    /**
+     * @return the number of upstream services flagged as slow over the previous step.
+     */
+    int slowUpstreams();
+
     /**
      * @return the number of lines that couldn't be parsed.
      */
     long parseErrors();
 
+    /**
+     * @return the self instrumentation metrics of the ingest pipeline, by displayable name.
+     */
+    Map<String, String> getPipelineStats();
+
     /**
      * @return the alert string to display.
      */
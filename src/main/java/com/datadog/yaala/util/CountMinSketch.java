@@ -0,0 +1,83 @@
+package com.datadog.yaala.util;
+
+import static java.lang.Integer.numberOfLeadingZeros;
+
+/**
+ * A <a href="https://en.wikipedia.org/wiki/Count%E2%80%93min_sketch">Count-Min sketch</a> estimating the frequency
+ * of hashed keys in fixed memory ({@code depth * width} ints), never under-estimating them.
+ * <br>
+ * Updates are <i>conservative</i> (only the minimal counters are incremented) which greatly reduces over-estimation
+ * for skewed distributions such as client IPs. It is a naive, non-thread safe implementation.
+ *
+ * @author Nicolas Estrada.
+ */
+public class CountMinSketch {
+
+    private final int depth;
+    private final int mask;
+    private final int[] counters;
+
+    /**
+     * @param depth the number of hash functions (rows).
+     * @param width the number of counters per row, rounded up to the next power of 2.
+     */
+    public CountMinSketch(int depth, int width) {
+        this.depth = depth;
+        int w = width <= 1 ? 1 : 1 << (32 - numberOfLeadingZeros(width - 1));
+        this.mask = w - 1;
+        this.counters = new int[depth * w];
+    }
+
+    /**
+     * Adds <i>count</i> occurrences of the key whose 64bit hash is <i>hash</i>.
+     *
+     * @return the new estimated frequency of the key.
+     */
+    public int add(long hash, int count) {
+        int est = estimate(hash);
+        int target = est + count;
+        for (int i = 0; i < depth; i++) {
+            int ix = index(hash, i);
+            if (counters[ix] < target) {
+                counters[ix] = target;
+            }
+        }
+        return target;
+    }
+
+    /**
+     * @return the estimated frequency of the key whose 64bit hash is <i>hash</i>.
+     */
+    public int estimate(long hash) {
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            min = Math.min(min, counters[index(hash, i)]);
+        }
+        return min;
+    }
+
+    /**
+     * Halves all counters in order for older occurrences to fade away.
+     */
+    public void decay() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] >>>= 1;
+        }
+    }
+
+    /**
+     * @return the number of bytes used by the counters.
+     */
+    public int sizeInBytes() {
+        return counters.length * Integer.BYTES;
+    }
+
+    /**
+     * Double hashing (Kirsch-Mitzenmacher) derives all rows from both halves of the 64bit hash.
+     */
+    private int index(long hash, int row) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        return row * (mask + 1) + ((h1 + row * h2) & mask);
+    }
+}
@@ -0,0 +1,152 @@
+package com.datadog.yaala.util;
+
+import io.micrometer.core.instrument.Clock;
+
+import static java.lang.Math.floorDiv;
+import static java.lang.Math.max;
+
+/**
+ * Sums amounts into fixed width <i>event-time</i> buckets, ie. by the time events were logged rather than the time
+ * they were read, so that bursty reads, late flushed buffers and interleaved sources don't distort rates.
+ * <br>
+ * A watermark trails the latest event time by the allowed <i>lateness</i>: buckets ending before it are finalized,
+ * handed over to a {@link BucketListener} in order, then recycled. Events falling into an already finalized bucket
+ * are dropped and counted as late. The buckets are a preallocated ring covering the lateness, hence an event too far
+ * ahead of the oldest open bucket finalizes the latter early.
+ * <br>
+ * Since no event means no progress, the latest event time is assumed to keep up with the clock once the input is
+ * idle, so that buckets keep being finalized (empty) when the traffic stops.
+ * <br>
+ * It is a naive, non-thread safe implementation.
+ *
+ * @author Nicolas Estrada.
+ */
+public final class EventTimeWindows {
+
+    private final long width;
+    private final long lateness;
+    private final Clock clock;
+    private final BucketListener listener;
+    private final double[] buckets;
+    // Index (start time / width) of the oldest open bucket
+    private long firstOpen = Long.MIN_VALUE;
+    private long maxEventTime = Long.MIN_VALUE;
+    // Clock time at which the latest event time was last raised
+    private long lastProgress;
+    private long late;
+
+    /**
+     * @param width    the width of the buckets, in milliseconds.
+     * @param lateness the allowed lateness of events, in milliseconds.
+     * @param listener the listener of finalized buckets.
+     */
+    public EventTimeWindows(long width, long lateness, Clock clock, BucketListener listener) {
+        if (width <= 0 || lateness < 0) {
+            throw new IllegalArgumentException("invalid width or lateness: " + width + ", " + lateness);
+        }
+        this.width = width;
+        this.lateness = lateness;
+        this.clock = clock;
+        this.listener = listener;
+        this.buckets = new double[(int) ((lateness + width - 1) / width) + 2];
+    }
+
+    /**
+     * Adds the arg <i>amount</i> to the bucket of the arg <i>time</i>, unless it was already finalized.
+     *
+     * @return {@code false} if the event was late, hence dropped.
+     */
+    public boolean add(long time, double amount) {
+        if (time > maxEventTime) {
+            maxEventTime = time;
+            lastProgress = clock.wallTime();
+        }
+        long bucket = floorDiv(time, width);
+        if (firstOpen == Long.MIN_VALUE) {
+            firstOpen = floorDiv(time - lateness, width);
+        }
+        if (bucket < firstOpen) {
+            late++;
+            return false;
+        }
+        if (bucket >= firstOpen + buckets.length) {
+            finalizeUntil(bucket - buckets.length + 1);
+        }
+        buckets[index(bucket)] += amount;
+        advance();
+        return true;
+    }
+
+    /**
+     * Finalizes all buckets ending before the watermark.
+     */
+    public void advance() {
+        if (firstOpen != Long.MIN_VALUE) {
+            finalizeUntil(floorDiv(watermark(), width));
+        }
+    }
+
+    /**
+     * @return the time before which events are late, or {@link Long#MIN_VALUE} until the first event.
+     */
+    public long watermark() {
+        if (maxEventTime == Long.MIN_VALUE) {
+            return Long.MIN_VALUE;
+        }
+        long idle = max(0, clock.wallTime() - lastProgress - lateness);
+        return maxEventTime + idle - lateness;
+    }
+
+    /**
+     * @return the number of events dropped so far for being late.
+     */
+    public long late() {
+        return late;
+    }
+
+    public long width() {
+        return width;
+    }
+
+    /**
+     * Finalizes all open buckets before the arg <i>bucket</i>, skipping over the empty ones of a gap wider than the
+     * ring but the last.
+     */
+    private void finalizeUntil(long bucket) {
+        if (bucket - firstOpen > buckets.length) {
+            long end = firstOpen + buckets.length;
+            while (firstOpen < end) {
+                finalizeFirst();
+            }
+            firstOpen = bucket - 1;
+        }
+        while (firstOpen < bucket) {
+            finalizeFirst();
+        }
+    }
+
+    private void finalizeFirst() {
+        int i = index(firstOpen);
+        double total = buckets[i];
+        buckets[i] = 0.0;
+        listener.onBucket(firstOpen * width, total);
+        firstOpen++;
+    }
+
+    private int index(long bucket) {
+        return (int) Math.floorMod(bucket, (long) buckets.length);
+    }
+
+    /**
+     * Listens to finalized buckets.
+     */
+    @FunctionalInterface
+    public interface BucketListener {
+
+        /**
+         * @param start the start time of the bucket, in milliseconds.
+         * @param total the sum of all amounts added to the bucket.
+         */
+        void onBucket(long start, double total);
+    }
+}
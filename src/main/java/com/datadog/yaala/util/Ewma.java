@@ -0,0 +1,70 @@
+package com.datadog.yaala.util;
+
+import static java.lang.Math.max;
+import static java.lang.Math.sqrt;
+
+/**
+ * A streaming baseline tracking the exponentially weighted moving mean and variance of a series, in order to
+ * compute the z-score (number of standard deviations away from the mean) of every new value in constant time.
+ * <br>
+ * Each value is scored against the baseline <i>before</i> being folded into it, and the standard deviation is
+ * floored by <i>minStdDev</i> so that a perfectly flat series doesn't turn the slightest change into an anomaly.
+ *
+ * @author Nicolas Estrada.
+ */
+public final class Ewma {
+
+    private final double alpha;
+    private final double minStdDev;
+    private double mean;
+    private double variance;
+    private long count;
+
+    /**
+     * @param alpha     the weight of every new value, in ]0, 1].
+     * @param minStdDev the lowest standard deviation used when scoring values.
+     */
+    public Ewma(double alpha, double minStdDev) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("alpha must be in ]0, 1]: " + alpha);
+        }
+        this.alpha = alpha;
+        this.minStdDev = minStdDev;
+    }
+
+    /**
+     * Scores the arg <i>value</i> then updates the baseline with it.
+     *
+     * @return the z-score of the value, 0 for the very first one.
+     */
+    public double update(double value) {
+        double z = count == 0 ? 0.0 : (value - mean) / stdDev();
+        if (count == 0) {
+            mean = value;
+        } else {
+            double diff = value - mean;
+            mean += alpha * diff;
+            variance = (1 - alpha) * (variance + alpha * diff * diff);
+        }
+        count++;
+        return z;
+    }
+
+    public double mean() {
+        return mean;
+    }
+
+    /**
+     * @return the (floored) standard deviation.
+     */
+    public double stdDev() {
+        return max(sqrt(variance), minStdDev);
+    }
+
+    /**
+     * @return the number of values folded into the baseline.
+     */
+    public long count() {
+        return count;
+    }
+}
@@ -0,0 +1,140 @@
+package com.datadog.yaala.util;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.datadog.yaala.util.Misc.hash64;
+import static java.util.Comparator.comparingLong;
+
+/**
+ * Tracks the <i>top-k</i> most frequent keys of a stream in fixed memory using the
+ * <a href="https://www.cs.ucsb.edu/sites/default/files/documents/2005-23.pdf">Space-Saving</a> algorithm: at most
+ * <i>capacity</i> keys are monitored, and a new key replaces the least frequent one.
+ * <br>
+ * If a {@link CountMinSketch} is supplied, a new key only replaces the least frequent one once its estimated
+ * frequency exceeds the latter, which prevents the long tail of keys from constantly churning the monitored ones.
+ * It is a naive, non-thread safe implementation.
+ *
+ * @author Nicolas Estrada.
+ */
+public class HeavyHitters {
+
+    private final int capacity;
+    @Nullable
+    private final CountMinSketch sketch;
+    private final Map<String, Counter> monitored;
+    private long total;
+
+    public HeavyHitters(int capacity) {
+        this(capacity, null);
+    }
+
+    public HeavyHitters(int capacity, @Nullable CountMinSketch sketch) {
+        this.capacity = capacity;
+        this.sketch = sketch;
+        this.monitored = new HashMap<>(capacity << 1);
+    }
+
+    /**
+     * Records one occurrence of the arg <i>key</i>.
+     */
+    public void offer(String key) {
+        offer(key, 1);
+    }
+
+    /**
+     * Records <i>n</i> occurrences of the arg <i>key</i> at once (ie. a sampled event standing for <i>n</i> events).
+     */
+    public void offer(String key, int n) {
+        total += n;
+        int estimate = sketch != null ? sketch.add(hash64(key), n) : 0;
+        var counter = monitored.get(key);
+        if (counter != null) {
+            counter.count += n;
+        } else if (monitored.size() < capacity) {
+            monitored.put(key, new Counter(key, Math.max(n, estimate), 0));
+        } else {
+            var min = min();
+            if (sketch == null) {
+                replace(min, new Counter(key, min.count + n, min.count));
+            } else if (estimate > min.count) {
+                replace(min, new Counter(key, estimate, estimate - n));
+            }
+        }
+    }
+
+    private void replace(Counter evicted, Counter counter) {
+        monitored.remove(evicted.key);
+        monitored.put(counter.key, counter);
+    }
+
+    /**
+     * Linear scan, but the capacity is expected to be small and this only happens for unmonitored keys.
+     */
+    private Counter min() {
+        Counter min = null;
+        for (var c : monitored.values()) {
+            if (min == null || c.count < min.count) {
+                min = c;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Halves all frequencies in order to favour recent occurrences.
+     */
+    public void decay() {
+        total >>>= 1;
+        for (var it = monitored.values().iterator(); it.hasNext(); ) {
+            var c = it.next();
+            c.count >>>= 1;
+            c.error >>>= 1;
+            if (c.count == 0) {
+                it.remove();
+            }
+        }
+        if (sketch != null) {
+            sketch.decay();
+        }
+    }
+
+    /**
+     * @return the total number of (decayed) occurrences.
+     */
+    public long total() {
+        return total;
+    }
+
+    /**
+     * @return at most <i>n</i> heavy hitters by descending frequency, as <i>key</i>, <i>count</i> and
+     * <i>error</i> (the maximum over-estimation of the count) maps.
+     */
+    public List<Map<String, Object>> top(int n) {
+        var counters = new ArrayList<>(monitored.values());
+        counters.sort(comparingLong((Counter c) -> c.count).reversed());
+        List<Map<String, Object>> top = new ArrayList<>(Math.min(n, counters.size()));
+        for (int i = 0; i < n && i < counters.size(); i++) {
+            var c = counters.get(i);
+            top.add(Map.of("key", c.key, "count", c.count, "error", c.error));
+        }
+        return top;
+    }
+
+    @SuppressWarnings("PackageVisibleField")
+    private static final class Counter {
+
+        final String key;
+        long count;
+        long error;
+
+        private Counter(String key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+    }
+}
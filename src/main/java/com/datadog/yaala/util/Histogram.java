@@ -0,0 +1,116 @@
+package com.datadog.yaala.util;
+
+import java.util.Arrays;
+
+import static java.lang.Long.numberOfLeadingZeros;
+
+/**
+ * A fixed size (2KB), log-linear histogram of positive long values (ie. latencies in nanos or micros).
+ * <br>
+ * Values below 4 are recorded exactly, and every power of 2 above is divided into 4 sub-buckets, which bounds the
+ * relative error of any percentile to 25% while recording is a mere array increment. Histograms can be merged,
+ * ie. across routes, threads or time buckets.
+ * <br>
+ * It is a naive, non-thread safe implementation.
+ *
+ * @author Nicolas Estrada.
+ */
+public class Histogram {
+
+    private final long[] buckets;
+    private long count;
+    private long sum;
+    private long max;
+
+    public Histogram() {
+        this.buckets = new long[NUM_BUCKETS];
+    }
+
+    /**
+     * Records the arg <i>value</i>, negative values being recorded as 0.
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        buckets[index(v)]++;
+        count++;
+        sum += v;
+        if (v > max) {
+            max = v;
+        }
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param quantile between 0 and 1 (ie. 0.99 for the 99th percentile).
+     * @return the upper bound of the bucket containing the <i>quantile</i>, or 0 if nothing was recorded.
+     */
+    public long percentile(double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Merges the arg <i>other</i> histogram into this one.
+     */
+    public void merge(Histogram other) {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] += other.buckets[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    public void clear() {
+        Arrays.fill(buckets, 0L);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    static int index(long v) {
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int exp = 63 - numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exp = index / SUB_BUCKETS + 1;
+        long sub = index % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << (exp - SUB_BITS);
+        return lower + (1L << (exp - SUB_BITS)) - 1;
+    }
+
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int NUM_BUCKETS = 64 * SUB_BUCKETS;
+    // The buckets of a histogram
+    public static final int MEMORY_BYTES = NUM_BUCKETS * Long.BYTES;
+}
@@ -0,0 +1,117 @@
+package com.datadog.yaala.util;
+
+import java.util.Arrays;
+
+import static java.lang.Long.numberOfLeadingZeros;
+import static java.lang.Math.log;
+import static java.lang.Math.round;
+
+/**
+ * A <a href="http://algo.inria.fr/flajolet/Publications/FlFuGaMe07.pdf">HyperLogLog</a> sketch estimating the
+ * number of distinct hashed keys in fixed memory ({@code 2^precision} bytes) with a standard error of
+ * {@code 1.04 / sqrt(2^precision)}.
+ * <br>
+ * Sketches of the same precision can be merged, which allows building them on separate threads or time buckets.
+ * It is a naive, non-thread safe implementation.
+ *
+ * @author Nicolas Estrada.
+ */
+public class HyperLogLog {
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("precision must be between 4 and 18: " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Adds a key whose 64bit hash is <i>hash</i>.
+     */
+    public void add(long hash) {
+        int ix = (int) (hash >>> (64 - precision));
+        // Position of the leftmost 1-bit of the remaining bits, capped in case they are all 0
+        byte rank = (byte) (Math.min(numberOfLeadingZeros(hash << precision), 64 - precision) + 1);
+        if (registers[ix] < rank) {
+            registers[ix] = rank;
+        }
+    }
+
+    /**
+     * Merges the arg <i>other</i> sketch into this one, as if all its keys were added to it.
+     */
+    public void merge(HyperLogLog other) {
+        mergeRegisters(other.registers);
+    }
+
+    /**
+     * Same as above but with raw <i>registers</i> (ie. received from a snapshot).
+     */
+    public void mergeRegisters(byte[] other) {
+        if (other.length != registers.length) {
+            throw new IllegalArgumentException("cannot merge sketches of different precisions");
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] < other[i]) {
+                registers[i] = other[i];
+            }
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct keys.
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double est = alpha(m) * m * m / sum;
+        // Small range correction (linear counting)
+        if (est <= 2.5 * m && zeros > 0) {
+            est = m * log((double) m / zeros);
+        }
+        return round(est);
+    }
+
+    public void clear() {
+        Arrays.fill(registers, (byte) 0);
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * @return the underlying registers (not a copy).
+     */
+    public byte[] registers() {
+        return registers;
+    }
+
+    public int sizeInBytes() {
+        return registers.length;
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+}
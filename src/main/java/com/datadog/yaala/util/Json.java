@@ -0,0 +1,102 @@
+package com.datadog.yaala.util;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+
+/**
+ * A minimal JSON encoder for the few types yaala exposes (maps, iterables, strings, numbers and booleans), since
+ * pulling a JSON library for a handful of read-only endpoints isn't worth it.
+ *
+ * @author Nicolas Estrada.
+ */
+@SuppressWarnings("MagicCharacter")
+public final class Json {
+
+    private Json() {
+    }
+
+    /**
+     * @return the JSON representation of the arg <i>value</i>.
+     */
+    public static String encode(@Nullable Object value) {
+        var sb = new StringBuilder(256);
+        write(sb, value);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the JSON representation of the arg <i>value</i> into <i>sb</i>. Non finite numbers are encoded as
+     * {@code null} and any other unknown type as a string.
+     */
+    public static void write(StringBuilder sb, @Nullable Object value) {
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof Map) {
+            sb.append('{');
+            boolean first = true;
+            for (var e : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                writeString(sb, String.valueOf(e.getKey()));
+                sb.append(':');
+                write(sb, e.getValue());
+                first = false;
+            }
+            sb.append('}');
+        } else if (value instanceof Iterable) {
+            sb.append('[');
+            boolean first = true;
+            for (var v : (Iterable<?>) value) {
+                if (!first) {
+                    sb.append(',');
+                }
+                write(sb, v);
+                first = false;
+            }
+            sb.append(']');
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isFinite(d)) {
+                sb.append(d);
+            } else {
+                sb.append("null");
+            }
+        } else if (value instanceof Number || value instanceof Boolean) {
+            sb.append(value);
+        } else {
+            writeString(sb, value.toString());
+        }
+    }
+
+    private static void writeString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,18 @@
+package com.datadog.yaala.util;
+
+/**
+ * A predicate evaluated on the raw bytes of a line (without its line feed) before it is even decoded, in order to
+ * discard lines as cheaply as possible.
+ *
+ * @author Nicolas Estrada.
+ */
+@FunctionalInterface
+public interface LineFilter {
+
+    LineFilter ACCEPT_ALL = (buf, off, len) -> true;
+
+    /**
+     * @return {@code true} if the line starting at <i>off</i> in <i>buf</i> of length <i>len</i> should be kept.
+     */
+    boolean accept(byte[] buf, int off, int len);
+}
@@ -0,0 +1,267 @@
+package com.datadog.yaala.util;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static java.nio.charset.Charset.defaultCharset;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Reads lines from a growing file (ie. tailing) in large byte batches, and keeps track of how many bytes were
+ * consumed so the {@link LineReader#lag()} behind the end of the file is always known.
+ * <br>
+ * Unlike a {@link java.io.BufferedReader}, an incomplete last line is never returned until its line feed has
+ * been written, unless it ends a closed stream. It is a naive, non-thread safe implementation.
+ * <br>
+ * Streams (stdin as <code>-</code>, named pipes...) can't be read without blocking, hence they are pumped by a
+ * daemon thread into a {@link Pipe} whose source is read in non-blocking mode, in the same large byte batches as
+ * files. Their lag is the number of bytes pumped but not consumed yet.
+ *
+ * @author Nicolas Estrada.
+ */
+public final class LineReader implements Closeable {
+
+    private final ReadableByteChannel channel;
+    // When tailing a regular file
+    @Nullable
+    private final FileChannel file;
+    // When reading a stream
+    @Nullable
+    private final Pump pump;
+    private final Charset charset;
+    private ByteBuffer buf;
+    // Offset in the file of the first byte of the buffer
+    private long bufOffset;
+    private int skipped;
+    private boolean ended;
+
+    private LineReader(ReadableByteChannel channel, @Nullable FileChannel file, @Nullable Pump pump, Charset charset) {
+        this.channel = channel;
+        this.file = file;
+        this.pump = pump;
+        this.charset = charset;
+        this.buf = ByteBuffer.allocate(BUFFER_SIZE);
+        buf.flip();
+    }
+
+    /**
+     * Opens the arg <i>path</i>, which is read as a stream if it is <code>-</code> (stdin) or not a regular file
+     * (ie. a named pipe).
+     */
+    public static LineReader open(Path path) throws IOException {
+        if (STDIN.equals(path.toString())) {
+            return stream(() -> new FileInputStream(FileDescriptor.in).getChannel());
+        } else if (Files.exists(path) && !Files.isRegularFile(path)) {
+            // Opening a named pipe blocks until it has a writer
+            return stream(() -> FileChannel.open(path, READ));
+        }
+        var file = FileChannel.open(path, READ);
+        return new LineReader(file, file, null, defaultCharset());
+    }
+
+    /**
+     * Reads the arg <i>in</i> channel as a stream, until it is closed.
+     */
+    public static LineReader stream(ReadableByteChannel in) throws IOException {
+        return stream(() -> in);
+    }
+
+    private static LineReader stream(Callable<ReadableByteChannel> in) throws IOException {
+        var pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        var pump = new Pump(in, pipe.sink());
+        var thread = new Thread(pump, "yaala-input");
+        thread.setDaemon(true);
+        thread.start();
+        return new LineReader(pipe.source(), null, pump, defaultCharset());
+    }
+
+    /**
+     * Reads at most <i>n</i> complete lines, or less if no more are available yet.
+     */
+    public List<String> readLines(int n) throws IOException {
+        return readLines(n, LineFilter.ACCEPT_ALL);
+    }
+
+    /**
+     * Same as above, but only decodes the lines accepted by the arg <i>filter</i>. Rejected lines are only
+     * counted (see {@link LineReader#skippedLines()}), and also count towards <i>n</i>.
+     */
+    public List<String> readLines(int n, LineFilter filter) throws IOException {
+        List<String> lines = new ArrayList<>(n);
+        skipped = 0;
+        while (lines.size() + skipped < n) {
+            int nl = indexOfNewLine();
+            if (nl < 0) {
+                if (fill() > 0) {
+                    continue;
+                } else if (file != null || !ended || !buf.hasRemaining()) {
+                    break;
+                }
+                // The unterminated last line of a closed stream, which won't ever be completed
+                nl = buf.limit();
+            }
+            if (filter.accept(buf.array(), buf.position(), lineLength(nl))) {
+                lines.add(decodeLine(nl));
+            } else {
+                skipLine(nl);
+                skipped++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @return the number of lines rejected by the filter during the last {@link LineReader#readLines(int)}.
+     */
+    public int skippedLines() {
+        return skipped;
+    }
+
+    /**
+     * @return the offset in the file of the next line to be read.
+     */
+    public long position() {
+        return bufOffset + buf.position();
+    }
+
+    /**
+     * @return {@code true} if a regular file is read, which can be seeked.
+     */
+    public boolean seekable() {
+        return file != null;
+    }
+
+    /**
+     * Moves to the arg <i>offset</i> in the file, which should be the start of a line.
+     */
+    public void seek(long offset) throws IOException {
+        if (file == null) {
+            throw new IllegalStateException("streams can't be seeked");
+        }
+        file.position(offset);
+        bufOffset = offset;
+        buf.clear().flip();
+    }
+
+    /**
+     * @return the number of bytes written to the file (or pumped from the stream) which haven't been read yet.
+     */
+    public long lag() throws IOException {
+        long available = file != null ? file.size() : pump != null ? pump.pumped : 0;
+        return Math.max(0, available - position());
+    }
+
+    /**
+     * @return {@code true} if there is nothing left to read for now, ie. the end of the file was reached (it may
+     * still grow) or the stream was closed.
+     */
+    public boolean exhausted() throws IOException {
+        return file != null ? lag() == 0 : ended && !buf.hasRemaining();
+    }
+
+    private int indexOfNewLine() {
+        var array = buf.array();
+        for (int i = buf.position(); i < buf.limit(); i++) {
+            if (array[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the length of the line ending at <i>nl</i>, without any carriage return.
+     */
+    private int lineLength(int nl) {
+        int start = buf.position();
+        int end = nl > start && buf.array()[nl - 1] == '\r' ? nl - 1 : nl;
+        return end - start;
+    }
+
+    private String decodeLine(int nl) {
+        var line = new String(buf.array(), buf.position(), lineLength(nl), charset);
+        skipLine(nl);
+        return line;
+    }
+
+    private void skipLine(int nl) {
+        buf.position(Math.min(nl + 1, buf.limit()));
+    }
+
+    /**
+     * Compacts the buffer, growing it if a single line doesn't fit, then reads as much as possible into it.
+     *
+     * @return the number of bytes read, 0 or -1 if nothing is available.
+     */
+    private int fill() throws IOException {
+        bufOffset += buf.position();
+        if (buf.position() == 0 && buf.limit() == buf.capacity()) {
+            var bigger = ByteBuffer.allocate(buf.capacity() << 1);
+            bigger.put(buf);
+            buf = bigger;
+        } else {
+            buf.compact();
+        }
+        int read = channel.read(buf);
+        buf.flip();
+        if (read < 0) {
+            ended = true;
+        }
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public static final String STDIN = "-";
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    /**
+     * Copies a blocking stream into a pipe, until the end of the stream.
+     */
+    private static final class Pump implements Runnable {
+
+        private final Callable<ReadableByteChannel> in;
+        private final Pipe.SinkChannel sink;
+        // Written by the pump thread only
+        private volatile long pumped;
+
+        private Pump(Callable<ReadableByteChannel> in, Pipe.SinkChannel sink) {
+            this.in = in;
+            this.sink = sink;
+        }
+
+        @Override
+        public void run() {
+            var batch = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            try (var src = in.call(); sink) {
+                while (src.read(batch) >= 0) {
+                    batch.flip();
+                    while (batch.hasRemaining()) {
+                        //noinspection NonAtomicOperationOnVolatileField
+                        pumped += sink.write(batch);
+                    }
+                    batch.clear();
+                }
+            } catch (Exception ignored) {
+                // The stream failed or the reader was closed, either way closing the sink ends the stream
+            }
+        }
+    }
+}
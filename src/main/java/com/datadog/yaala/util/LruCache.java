@@ -0,0 +1,42 @@
+package com.datadog.yaala.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A naive, non-thread safe <i>least recently used</i> cache bound by <i>capacity</i>. Once the size
+ * exceeds the latter, the least recently accessed entry is evicted.
+ *
+ * @author Nicolas Estrada.
+ */
+public class LruCache<K, V> extends LinkedHashMap<K, V> {
+
+    private static final long serialVersionUID = 1L;
+    private int capacity;
+
+    public LruCache(int capacity) {
+        super(16, 0.75f, true);
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets the capacity of the cache, evicting the least recently accessed entries beyond it right away.
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+        var it = values().iterator();
+        while (size() > capacity) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > capacity;
+    }
+}
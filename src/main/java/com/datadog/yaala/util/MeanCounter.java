@@ -44,6 +44,13 @@ public class MeanCounter implements Counter {
         return delegate.count();
     }
 
+    /**
+     * Folds the accumulated count of the arg <i>other</i> counter into this one, without affecting the rolling mean.
+     */
+    public void absorb(MeanCounter other) {
+        delegate.increment(other.count());
+    }
+
     /**
      * @return the increase of events which occurred within the given step.
      */
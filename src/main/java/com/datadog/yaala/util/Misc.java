@@ -1,13 +1,7 @@
 package com.datadog.yaala.util;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
-import java.nio.file.Path;
-
 import static java.lang.Math.round;
 import static java.lang.String.format;
-import static java.nio.charset.Charset.defaultCharset;
 
 /**
  * Some useful functions that don't have a home yet. :P
@@ -20,10 +14,21 @@ public final class Misc {
     }
 
     /**
-     * Convenience method for creating a {@link BufferedReader}.
+     * @return a well distributed 64bit hash of the arg <i>s</i> (FNV-1a followed by the murmur3 finalizer),
+     * suitable for probabilistic data structures unlike {@link String#hashCode()}.
      */
-    public static BufferedReader newReader(Path path) throws IOException {
-        return new BufferedReader(new FileReader(path.toFile(), defaultCharset()));
+    public static long hash64(CharSequence s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
     }
 
     /**
@@ -0,0 +1,322 @@
+package com.datadog.yaala.util;
+
+import java.nio.ByteBuffer;
+import java.util.function.IntConsumer;
+
+import static com.datadog.yaala.util.Misc.hash64;
+import static java.nio.ByteOrder.nativeOrder;
+
+/**
+ * An off-heap, open-addressing (linear probing) hash table of fixed-width <code>long</code> counters keyed by
+ * strings, in order to count by high cardinality keys (ie. client IPs) within a predictable memory budget and
+ * without any GC pressure: neither lookups nor updates allocate anything.
+ * <br>
+ * Keys are appended to a byte arena (1 byte per char when ASCII, 2 otherwise) and every slot of the table is laid
+ * out in a direct {@link ByteBuffer} as follows:
+ * <pre>
+ * hash:long keyOffset:int keyMeta:int counter:long*
+ * </pre>
+ * where <i>keyMeta</i> holds the key length plus one (0 being an empty slot) and whether the key is wide in its
+ * highest bit. Once <i>maxKeys</i> keys are tracked or the arena is full, new keys are rejected (and counted).
+ * Keys are never removed. It is not thread safe, but {@link OffHeapTable#snapshot()} copies can be handed over to
+ * other threads.
+ *
+ * @author Nicolas Estrada.
+ */
+public final class OffHeapTable {
+
+    private final int maxKeys;
+    private final int counters;
+    private final int slotSize;
+    private final int mask;
+    private final ByteBuffer slots;
+    private final ByteBuffer arena;
+    private int size;
+    private int arenaUsed;
+    private long rejected;
+
+    /**
+     * @param maxKeys    the maximum number of keys.
+     * @param arenaBytes the size of the key arena in bytes.
+     * @param counters   the number of counters per key.
+     */
+    public OffHeapTable(int maxKeys, int arenaBytes, int counters) {
+        if (maxKeys < 1 || counters < 1 || arenaBytes < 0) {
+            throw new IllegalArgumentException("invalid table dimensions");
+        }
+        int capacity = capacityOf(maxKeys);
+        long slotsBytes = (long) capacity * (SLOT_HEADER + (counters << 3));
+        if (capacity <= 0 || slotsBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many keys: " + maxKeys);
+        }
+        this.maxKeys = maxKeys;
+        this.counters = counters;
+        this.slotSize = SLOT_HEADER + (counters << 3);
+        this.mask = capacity - 1;
+        this.slots = ByteBuffer.allocateDirect((int) slotsBytes).order(nativeOrder());
+        this.arena = ByteBuffer.allocateDirect(arenaBytes).order(nativeOrder());
+    }
+
+    private OffHeapTable(OffHeapTable other) {
+        this.maxKeys = other.maxKeys;
+        this.counters = other.counters;
+        this.slotSize = other.slotSize;
+        this.mask = other.mask;
+        this.slots = copy(other.slots, other.slots.capacity());
+        this.arena = copy(other.arena, other.arenaUsed);
+        this.size = other.size;
+        this.arenaUsed = other.arenaUsed;
+        this.rejected = other.rejected;
+    }
+
+    /**
+     * @return the slot of the arg <i>key</i>, inserting it if necessary, or -1 if the table is full.
+     */
+    public int slot(CharSequence key) {
+        long hash = hash64(key);
+        int ix = (int) hash & mask;
+        while (true) {
+            int pos = ix * slotSize;
+            int meta = slots.getInt(pos + META);
+            if (meta == 0) {
+                return insert(ix, hash, key);
+            } else if (slots.getLong(pos) == hash && keyEquals(pos, meta, key)) {
+                return ix;
+            }
+            ix = (ix + 1) & mask;
+        }
+    }
+
+    /**
+     * @return the slot of the arg <i>key</i>, or -1 if it isn't tracked.
+     */
+    public int find(CharSequence key) {
+        long hash = hash64(key);
+        int ix = (int) hash & mask;
+        while (true) {
+            int pos = ix * slotSize;
+            int meta = slots.getInt(pos + META);
+            if (meta == 0) {
+                return -1;
+            } else if (slots.getLong(pos) == hash && keyEquals(pos, meta, key)) {
+                return ix;
+            }
+            ix = (ix + 1) & mask;
+        }
+    }
+
+    private int insert(int ix, long hash, CharSequence key) {
+        int len = key.length();
+        boolean wide = false;
+        for (int i = 0; i < len && !wide; i++) {
+            wide = key.charAt(i) >= 0x80;
+        }
+        int bytes = wide ? len << 1 : len;
+        if (size >= maxKeys || arenaUsed + bytes > arena.capacity()) {
+            rejected++;
+            return -1;
+        }
+        for (int i = 0; i < len; i++) {
+            if (wide) {
+                arena.putChar(arenaUsed + (i << 1), key.charAt(i));
+            } else {
+                arena.put(arenaUsed + i, (byte) key.charAt(i));
+            }
+        }
+        int pos = ix * slotSize;
+        slots.putLong(pos, hash);
+        slots.putInt(pos + OFFSET, arenaUsed);
+        slots.putInt(pos + META, (len + 1) | (wide ? WIDE : 0));
+        arenaUsed += bytes;
+        size++;
+        return ix;
+    }
+
+    private boolean keyEquals(int pos, int meta, CharSequence key) {
+        int len = (meta & ~WIDE) - 1;
+        if (len != key.length()) {
+            return false;
+        }
+        int offset = slots.getInt(pos + OFFSET);
+        boolean wide = (meta & WIDE) != 0;
+        for (int i = 0; i < len; i++) {
+            char c = wide ? arena.getChar(offset + (i << 1)) : (char) (arena.get(offset + i) & 0xFF);
+            if (c != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the arg <i>delta</i> to the <i>counter</i>th counter of the arg <i>slot</i>.
+     */
+    public void add(int slot, int counter, long delta) {
+        int pos = counterPos(slot, counter);
+        slots.putLong(pos, slots.getLong(pos) + delta);
+    }
+
+    public long get(int slot, int counter) {
+        return slots.getLong(counterPos(slot, counter));
+    }
+
+    private int counterPos(int slot, int counter) {
+        if (counter < 0 || counter >= counters) {
+            throw new IndexOutOfBoundsException("counter " + counter);
+        }
+        return slot * slotSize + SLOT_HEADER + (counter << 3);
+    }
+
+    /**
+     * @return the key of the arg <i>slot</i> (allocated).
+     */
+    public String key(int slot) {
+        int pos = slot * slotSize;
+        int meta = slots.getInt(pos + META);
+        int len = (meta & ~WIDE) - 1;
+        int offset = slots.getInt(pos + OFFSET);
+        boolean wide = (meta & WIDE) != 0;
+        var chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            chars[i] = wide ? arena.getChar(offset + (i << 1)) : (char) (arena.get(offset + i) & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Iterates over all the occupied slots.
+     */
+    public void forEachSlot(IntConsumer action) {
+        for (int ix = 0; ix <= mask; ix++) {
+            if (slots.getInt(ix * slotSize + META) != 0) {
+                action.accept(ix);
+            }
+        }
+    }
+
+    /**
+     * @return the slots of the (at most) <i>n</i> keys with the highest <i>counter</i>, in decreasing order.
+     */
+    public int[] top(int n, int counter) {
+        if (n <= 0) {
+            return new int[0];
+        }
+        // Min heap of the top slots, by counter value
+        var heap = new int[Math.min(n, size)];
+        var values = new long[heap.length];
+        int[] count = {0};
+        forEachSlot(slot -> {
+            long v = get(slot, counter);
+            if (count[0] < heap.length) {
+                heap[count[0]] = slot;
+                values[count[0]] = v;
+                siftUp(heap, values, count[0]++);
+            } else if (v > values[0]) {
+                heap[0] = slot;
+                values[0] = v;
+                siftDown(heap, values, heap.length);
+            }
+        });
+        // Pop the heap from the smallest up, filling the result from its end
+        var top = new int[count[0]];
+        for (int n2 = count[0]; n2 > 0; n2--) {
+            top[n2 - 1] = heap[0];
+            heap[0] = heap[n2 - 1];
+            values[0] = values[n2 - 1];
+            siftDown(heap, values, n2 - 1);
+        }
+        return top;
+    }
+
+    private static void siftUp(int[] heap, long[] values, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (values[parent] <= values[i]) {
+                break;
+            }
+            swap(heap, values, i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, long[] values, int n) {
+        int i = 0;
+        while (true) {
+            int l = (i << 1) + 1;
+            int r = l + 1;
+            int min = i;
+            if (l < n && values[l] < values[min]) {
+                min = l;
+            }
+            if (r < n && values[r] < values[min]) {
+                min = r;
+            }
+            if (min == i) {
+                return;
+            }
+            swap(heap, values, i, min);
+            i = min;
+        }
+    }
+
+    private static void swap(int[] heap, long[] values, int i, int j) {
+        int s = heap[i];
+        heap[i] = heap[j];
+        heap[j] = s;
+        long v = values[i];
+        values[i] = values[j];
+        values[j] = v;
+    }
+
+    /**
+     * @return a copy of the table, which can be safely read by another thread.
+     */
+    public OffHeapTable snapshot() {
+        return new OffHeapTable(this);
+    }
+
+    /**
+     * @return the number of tracked keys.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of times a new key was rejected since the table was full.
+     */
+    public long rejected() {
+        return rejected;
+    }
+
+    /**
+     * @return the off-heap memory reserved by the table in bytes, which never changes.
+     */
+    public long memoryBytes() {
+        return (long) slots.capacity() + arena.capacity();
+    }
+
+    /**
+     * @return the off-heap memory a table of the arg dimensions would reserve in bytes, see the constructor.
+     */
+    public static long memoryBytes(int maxKeys, int arenaBytes, int counters) {
+        return (long) capacityOf(maxKeys) * (SLOT_HEADER + (counters << 3)) + arenaBytes;
+    }
+
+    private static int capacityOf(int maxKeys) {
+        // Keep the load factor under 0.75, and always leave an empty slot for probes to end on
+        return Integer.highestOneBit(maxKeys + (maxKeys / 3)) << 1;
+    }
+
+    private static ByteBuffer copy(ByteBuffer src, int length) {
+        var dst = ByteBuffer.allocateDirect(src.capacity()).order(nativeOrder());
+        dst.put(src.duplicate().position(0).limit(length));
+        dst.clear();
+        return dst;
+    }
+
+    private static final int OFFSET = 8;
+    private static final int META = 12;
+    private static final int SLOT_HEADER = 16;
+    private static final int WIDE = 1 << 31;
+}
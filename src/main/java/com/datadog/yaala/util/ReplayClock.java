@@ -0,0 +1,41 @@
+package com.datadog.yaala.util;
+
+import io.micrometer.core.instrument.Clock;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * A simulated {@link Clock} driven by the timestamps of the events being replayed rather than by the system, so
+ * that rates, steps and alert delays behave as they did when the events were logged, however fast they are read.
+ * <br>
+ * Time only ever moves forward: out of order events don't rewind it.
+ *
+ * @author Nicolas Estrada.
+ */
+public final class ReplayClock implements Clock {
+
+    private volatile long wallTime;
+
+    /**
+     * Advances the clock to the arg <i>wallTime</i> (in milliseconds since the epoch), if it is ahead.
+     *
+     * @return {@code true} if the clock was advanced.
+     */
+    public boolean advance(long wallTime) {
+        if (wallTime <= this.wallTime) {
+            return false;
+        }
+        this.wallTime = wallTime;
+        return true;
+    }
+
+    @Override
+    public long wallTime() {
+        return wallTime;
+    }
+
+    @Override
+    public long monotonicTime() {
+        return MILLISECONDS.toNanos(wallTime);
+    }
+}
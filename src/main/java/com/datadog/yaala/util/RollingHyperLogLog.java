@@ -0,0 +1,101 @@
+package com.datadog.yaala.util;
+
+import io.micrometer.core.instrument.Clock;
+
+/**
+ * Estimates the number of distinct keys over a rolling window of <i>buckets</i> steps, by keeping one
+ * {@link HyperLogLog} per step and merging them on read. Older steps are cleared as the clock moves on, and the
+ * window estimate is rebuilt from the per-step sketches.
+ * <br>
+ * It is a naive, non-thread safe implementation.
+ *
+ * @author Nicolas Estrada.
+ */
+public class RollingHyperLogLog {
+
+    private final Clock clock;
+    private final long stepMillis;
+    private final HyperLogLog[] buckets;
+    private final HyperLogLog merged;
+    private long lastStep;
+
+    public RollingHyperLogLog(int precision, int buckets, Clock clock, long stepMillis) {
+        this.clock = clock;
+        this.stepMillis = stepMillis;
+        this.buckets = new HyperLogLog[buckets];
+        for (int i = 0; i < buckets; i++) {
+            this.buckets[i] = new HyperLogLog(precision);
+        }
+        this.merged = new HyperLogLog(precision);
+        this.lastStep = clock.wallTime() / stepMillis;
+    }
+
+    /**
+     * Adds a key whose 64bit hash is <i>hash</i> to the current step.
+     */
+    public void add(long hash) {
+        current().add(hash);
+    }
+
+    /**
+     * Merges the arg <i>sketch</i> (ie. built by another thread or agent) into the current step.
+     */
+    public void merge(HyperLogLog sketch) {
+        current().merge(sketch);
+    }
+
+    /**
+     * @return the estimated number of distinct keys over the whole window.
+     */
+    public long estimate() {
+        return window().estimate();
+    }
+
+    /**
+     * @return a sketch of all the distinct keys over the whole window (reused between calls).
+     */
+    public HyperLogLog window() {
+        rollover();
+        merged.clear();
+        for (var bucket : buckets) {
+            merged.merge(bucket);
+        }
+        return merged;
+    }
+
+    public int sizeInBytes() {
+        return (buckets.length + 1) * merged.sizeInBytes();
+    }
+
+    public int getPrecision() {
+        return merged.getPrecision();
+    }
+
+    /**
+     * @return the sketch of the current step.
+     */
+    public HyperLogLog current() {
+        rollover();
+        return buckets[(int) (lastStep % buckets.length)];
+    }
+
+    /**
+     * @return the current step (ie. the wall time divided by the step size).
+     */
+    public long currentStep() {
+        rollover();
+        return lastStep;
+    }
+
+    /**
+     * Clears all the buckets of the steps which have elapsed since the last rollover.
+     */
+    private void rollover() {
+        long step = clock.wallTime() / stepMillis;
+        long elapsed = Math.min(step - lastStep, buckets.length);
+        for (long i = 1; i <= elapsed; i++) {
+            buckets[(int) ((lastStep + i) % buckets.length)].clear();
+        }
+        lastStep = Math.max(lastStep, step);
+    }
+}
@@ -0,0 +1,128 @@
+package com.datadog.yaala.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A bounded, lock-free, single producer single consumer queue backed by a ring buffer.
+ * <br>
+ * The consumer (head) and producer (tail) indexes live on their own cache lines, each side caching the last index
+ * it read from the other one, so that in the common case neither side touches the other's cache line. Elements are
+ * published by a release store of the tail and retired by a release store of the head.
+ *
+ * @author Nicolas Estrada.
+ */
+public final class SpscQueue<E> extends SpscQueueTail {
+
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+
+    static {
+        try {
+            var lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(SpscQueueHead.class, "head", long.class);
+            TAIL = lookup.findVarHandle(SpscQueueTail.class, "tail", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Object[] buffer;
+    private final int mask;
+    @SuppressWarnings("unused")
+    private long p20, p21, p22, p23, p24, p25, p26, p27;
+
+    /**
+     * @param capacity the maximum number of elements, rounded up to the next power of 2.
+     */
+    public SpscQueue(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.buffer = new Object[Math.max(2, size)];
+        this.mask = buffer.length - 1;
+    }
+
+    /**
+     * Producer side only.
+     *
+     * @return {@code false} if the queue is full.
+     */
+    public boolean offer(E e) {
+        long t = tail;
+        if (t - headCache >= buffer.length) {
+            headCache = (long) HEAD.getAcquire(this);
+            if (t - headCache >= buffer.length) {
+                return false;
+            }
+        }
+        buffer[(int) t & mask] = e;
+        TAIL.setRelease(this, t + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side only.
+     *
+     * @return the oldest element, or {@code null} if the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head;
+        if (h >= tailCache) {
+            tailCache = (long) TAIL.getAcquire(this);
+            if (h >= tailCache) {
+                return null;
+            }
+        }
+        int ix = (int) h & mask;
+        var e = (E) buffer[ix];
+        buffer[ix] = null;
+        HEAD.setRelease(this, h + 1);
+        return e;
+    }
+
+    /**
+     * @return the (approximate) number of elements, from any thread.
+     */
+    public int size() {
+        long h = (long) HEAD.getVolatile(this);
+        long t = (long) TAIL.getVolatile(this);
+        return (int) Math.max(0, t - h);
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+}
+
+/*
+ * Cache line padding through inheritance, since the JVM may reorder the fields of a single class.
+ */
+
+@SuppressWarnings("unused")
+abstract class SpscQueuePad0 {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+}
+
+/**
+ * Consumer side.
+ */
+abstract class SpscQueueHead extends SpscQueuePad0 {
+    volatile long head;
+    long tailCache;
+}
+
+@SuppressWarnings("unused")
+abstract class SpscQueuePad1 extends SpscQueueHead {
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+/**
+ * Producer side.
+ */
+abstract class SpscQueueTail extends SpscQueuePad1 {
+    volatile long tail;
+    long headCache;
+}
@@ -0,0 +1,125 @@
+package com.datadog.yaala.util;
+
+/**
+ * A fixed-size history of per-step values (ie. hits), backed by a primitive ring buffer.
+ * <br>
+ * Recording only adds to the current bucket, the ring being advanced once per step by its owner, which zeroes
+ * the buckets of any step without data. Reading never allocates so that rendering sparklines is free.
+ * <br>
+ * In order to save memory, its resolution may be lowered by {@link #coarsen() coarsening} it: every point then
+ * spans twice as many steps, halving the number of points but not the time they cover. Points are read as means per
+ * step regardless.
+ * It is not thread safe.
+ *
+ * @author Nicolas Estrada.
+ */
+public final class StepHistory {
+
+    private float[] points;
+    private int stepsPerPoint;
+    private int head;
+    private long step = -1;
+
+    public StepHistory(int capacity) {
+        this(capacity, 1);
+    }
+
+    public StepHistory(int capacity, int stepsPerPoint) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (stepsPerPoint < 1) {
+            throw new IllegalArgumentException("steps per point must be positive: " + stepsPerPoint);
+        }
+        this.points = new float[capacity];
+        this.stepsPerPoint = stepsPerPoint;
+    }
+
+    /**
+     * Adds the arg <i>amount</i> to the current step.
+     */
+    public void add(double amount) {
+        points[head] += (float) amount;
+    }
+
+    /**
+     * Moves the current bucket to the arg <i>newStep</i>, zeroing all steps in between.
+     */
+    public void advance(long newStep) {
+        if (step < 0) {
+            step = newStep;
+            return;
+        }
+        long n = Math.min(newStep / stepsPerPoint - step / stepsPerPoint, points.length);
+        for (long i = 0; i < n; i++) {
+            head = head + 1 == points.length ? 0 : head + 1;
+            points[head] = 0f;
+        }
+        if (newStep > step) {
+            step = newStep;
+        }
+    }
+
+    /**
+     * Adds all of the arg <i>other</i> points into this history, aligned on their current step.
+     *
+     * @throws IllegalArgumentException if both histories don't have the same resolution.
+     */
+    public void absorb(StepHistory other) {
+        if (other.stepsPerPoint != stepsPerPoint) {
+            throw new IllegalArgumentException("cannot absorb a history of a different resolution");
+        }
+        int n = Math.min(points.length, other.points.length);
+        for (int i = 1; i <= n; i++) {
+            points[index(points.length - i)] += other.points[other.index(other.points.length - i)];
+        }
+    }
+
+    /**
+     * Halves the number of points, every point spanning twice as many steps from now on. Pairs of points are summed
+     * following the alignment of their steps, ie. the current point stays on its own if it starts a new pair.
+     */
+    public void coarsen() {
+        int n = Math.max(1, points.length >> 1);
+        var coarse = new float[n];
+        long current = Math.max(0L, step) / stepsPerPoint;
+        for (int i = points.length - 1; i >= 0; i--) {
+            long point = current - (points.length - 1 - i);
+            long j = n - 1 - ((current >> 1) - (point >> 1));
+            if (j < 0) {
+                break;
+            }
+            coarse[(int) j] += points[index(i)];
+        }
+        points = coarse;
+        head = n - 1;
+        stepsPerPoint <<= 1;
+    }
+
+    /**
+     * @return the number of steps every point spans.
+     */
+    public int stepsPerPoint() {
+        return stepsPerPoint;
+    }
+
+    /**
+     * @return the number of points in the history.
+     */
+    public int capacity() {
+        return points.length;
+    }
+
+    /**
+     * @return the value of the <i>i</i>th point, from the oldest (0) to the current one ({@code capacity() - 1}),
+     * per step.
+     */
+    public float get(int i) {
+        return stepsPerPoint == 1 ? points[index(i)] : points[index(i)] / stepsPerPoint;
+    }
+
+    private int index(int i) {
+        int ix = head + 1 + i;
+        return ix >= points.length ? ix - points.length : ix;
+    }
+}
@@ -0,0 +1,109 @@
+package com.datadog.yaala
+
+import com.datadog.yaala.util.ReplayClock
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.time.ZonedDateTime
+
+import static java.time.Duration.ofSeconds
+import static java.time.ZoneId.systemDefault as defaultTz
+
+/**
+ * @author Nicolas Estrada.
+ */
+class DefaultUIModelSpec extends Specification {
+
+    def clock = new ReplayClock()
+    def cfg = [
+      clock         : { clock },
+      step          : { ofSeconds(1) },
+      alertThreshold: { 1 },
+      alertDelay    : { ofSeconds(10) },
+      alertCooldown : { ofSeconds(5) }
+    ] as Config
+
+    def 'replayed logs should drive the clock and the alerts by their timestamps'() {
+
+        given: '30 seconds of logs at 2 rps'
+        def start = ZonedDateTime.parse('2018-05-09T16:00:00Z')
+        def lines = (0..<60).collect {
+            def time = start.plusSeconds(it.intdiv(2)).format(LogEvent.CLF_DT_FORMAT)
+            "127.0.0.1 - bob [$time] \"GET /report HTTP/1.0\" 200 10" as String
+        }
+        def model = new DefaultUIModel(cfg)
+
+        when: 'read at once'
+        model.processLines lines
+
+        then: 'the alert was triggered 10s after the first full step above the threshold'
+        clock.wallTime() == start.plusSeconds(29).toInstant().toEpochMilli()
+        model.alertString.get().startsWith('High traffic generated an alert: rps=2.00, triggered at ' +
+          start.plusSeconds(1).withZoneSameInstant(defaultTz()).toLocalDateTime())
+
+        when: 'the clock never moves backwards'
+        model.processLines([lines[0]])
+
+        then:
+        clock.wallTime() == start.plusSeconds(29).toInstant().toEpochMilli()
+    }
+
+    def 'a batch should be weighted by the sampling rate it was read with'() {
+
+        given:
+        def line = '127.0.0.1 - bob [09/May/2018:16:00:00 +0000] "GET /report HTTP/1.0" 200 10'
+        def model = new DefaultUIModel([
+          clock        : { clock },
+          step         : { ofSeconds(1) },
+          shedLag      : { 1L },
+          minSampleRate: { 0.25D }
+        ] as Config)
+        model.statsBufferSize = 10
+        def hits = { -> def h = 0.0D; model.forEachRoute { h += it.hits as double }; h }
+        sleep 1100
+
+        when: 'the rate is halved once the batch was read at full rate'
+        model.processSkipped 0, 100L
+        model.processLines([line])
+
+        then:
+        model.samplingRate() == 0.5D
+        hits() == 1.0D
+
+        when: 'the next batch was read at half the rate'
+        model.processSkipped 0, 100L
+        model.processLines([line])
+
+        then:
+        hits() == 3.0D
+    }
+
+    def 'the statistics of the shards should only be merged when read'() {
+
+        given:
+        def line = '127.0.0.1 - bob [09/May/2018:16:00:00 +0000] "GET /report HTTP/1.0" 200 10'
+        def model = new DefaultUIModel([
+          clock : { clock },
+          step  : { ofSeconds(1) },
+          shards: { 2 }
+        ] as Config)
+        model.statsBufferSize = 10
+        def hits = { -> def h = 0.0D; model.forEachRoute { h += it.hits as double }; h }
+
+        when:
+        10.times { model.processLines([line]) }
+        sleep 100
+        10.times { model.processLines([]) }
+
+        then:
+        model.statistics.routeStatistics.empty
+
+        and: 'shards report asynchronously once asked'
+        new PollingConditions(timeout: 5).eventually {
+            assert hits() == 10.0D
+        }
+
+        cleanup:
+        model.close()
+    }
+}
@@ -0,0 +1,122 @@
+package com.datadog.yaala
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.time.Instant
+import java.time.ZoneOffset
+
+/**
+ * @author Nicolas Estrada.
+ */
+class EventQuerySpec extends Specification {
+
+    static final long NOW = 1_525_881_600_000L
+
+    def events = new RecentEvents(100)
+
+    void setup() {
+        // 10 clients, 10 events each, a 404 every 5 events, a minute apart
+        (0..<100).each { i ->
+            add(NOW - (99 - i) * 60_000L, "10.0.0.${i % 10}", i % 5 == 0 ? 404 : 200, i,
+              i % 2 == 0 ? 'GET' : 'POST', i % 3 == 0 ? Double.NaN : i / 1000.0)
+        }
+    }
+
+    @Unroll
+    def '#query should be #expected'() {
+
+        expect:
+        EventQuery.parse(query).execute(events, NOW) == expected
+
+        where:
+        query                                                    || expected
+        'count'                                                  || [[count: 100L]]
+        'count by status'                                        || [[status: 200, count: 80L], [status: 404, count: 20L]]
+        'sum(bytes) by client where status=404 top 2'            || [['client': '10.0.0.5', 'sum(bytes)': 500L], ['client': '10.0.0.0', 'sum(bytes)': 450L]]
+        'sum(bytes) by client where status = 404 last 10m'       || [['client': '10.0.0.5', 'sum(bytes)': 95L], ['client': '10.0.0.0', 'sum(bytes)': 90L]]
+        'max(bytes) by method where status!=4xx and bytes<50'    || [['method': 'POST', 'max(bytes)': 49L], ['method': 'GET', 'max(bytes)': 48L]]
+        'count where method=PO* && client=10.0.0.1,10.0.0.3'     || [[count: 20L]]
+        'count where route=/api'                                 || [[count: 100L]]
+        'count where user!=-'                                    || [[count: 0L]]
+        'avg(latency) where latency>=90'                         || [['avg(latency)': 94.5D]]
+        'count where latency<2'                                  || [[count: 1L]]
+    }
+
+    def 'only the most recent events should be kept, and their strings'() {
+
+        given:
+        def small = new RecentEvents(4)
+
+        when:
+        (0..<100).each { i -> add(small, NOW + i, "10.0.${i}.1", 200, 1, 'GET', 0.1) }
+
+        then:
+        small.size() == 4
+        EventQuery.parse('count by client').execute(small, NOW + 100)*.client.sort() ==
+          ['10.0.96.1', '10.0.97.1', '10.0.98.1', '10.0.99.1']
+        small.dictionary(RecentEvents.Dimension.CLIENT).size() <= 8
+    }
+
+    def 'shrunk buffers should keep their most recent events'() {
+
+        given:
+        def shrinking = new RecentEvents(2048)
+        (0..<3000).each { i -> add(shrinking, NOW + i, "10.0.${i % 8}.1", 200, i, 'GET', 0.1) }
+
+        expect:
+        shrinking.shrink()
+        shrinking.capacity() == 1024
+        EventQuery.parse('count').execute(shrinking, NOW + 3000) == [[count: 1024L]]
+        EventQuery.parse('count where bytes<1976').execute(shrinking, NOW + 3000) == [[count: 0L]]
+        shrinking.dictionary(RecentEvents.Dimension.CLIENT).size() == 8
+
+        when:
+        add(shrinking, NOW + 3000, '10.0.9.1', 200, 3000, 'GET', 0.1)
+
+        then:
+        EventQuery.parse('count where bytes<1977').execute(shrinking, NOW + 3000) == [[count: 0L]]
+        EventQuery.parse('max(bytes) where client=10.0.9.1').execute(shrinking, NOW + 3000) == [['max(bytes)': 3000L]]
+        !new RecentEvents(1024).shrink()
+    }
+
+    def 'large buffers should be scanned in parallel with the same results'() {
+
+        given:
+        def large = new RecentEvents(3_000_000)
+        def evt = new LogEvent('10.0.0.1', '-', Instant.ofEpochMilli(NOW).atZone(ZoneOffset.UTC), 'GET', '/api',
+          'HTTP/1.1', 200, 10, 0.5D)
+
+        when:
+        (0..<3_000_000).each { i -> large.add(evt, NOW, i % 3 == 0 ? '/a' : '/b') }
+
+        then:
+        EventQuery.parse('sum(bytes) by route').execute(large, NOW) ==
+          [[route: '/b', 'sum(bytes)': 20_000_000L], [route: '/a', 'sum(bytes)': 10_000_000L]]
+    }
+
+    @Unroll
+    def '#query should not parse'() {
+
+        when:
+        EventQuery.parse(query)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        query << ['', 'hits', 'sum(status)', 'count(bytes)', 'count by bytes', 'count by', 'count where route>/a',
+                  'count where status>4xx,5xx', 'count last 5y', 'count top 0', 'count where foo=1', 'count order']
+    }
+
+    void add(long time, String client, int status, int bytes, String method, double requestTime) {
+        add(events, time, client, status, bytes, method, requestTime)
+    }
+
+    static void add(RecentEvents events, long time, String client, int status, int bytes, String method,
+                    double requestTime) {
+        def evt = new LogEvent(client, '-', Instant.ofEpochMilli(time).atZone(ZoneOffset.UTC), method, '/api/x',
+          'HTTP/1.1', status, bytes, requestTime)
+        events.add(evt, time, '/api')
+    }
+}
@@ -0,0 +1,97 @@
+package com.datadog.yaala
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static com.datadog.yaala.LogFormat.AUTO
+import static com.datadog.yaala.LogFormat.CLF
+import static com.datadog.yaala.LogFormat.INGRESS_NGINX
+import static io.micrometer.core.instrument.Metrics.globalRegistry
+
+/**
+ * @author Nicolas Estrada.
+ */
+class FormatDetectorSpec extends Specification {
+
+    static final String CLF_LINE = '127.0.0.1 - james [09/May/2018:16:00:39 +0000] "GET /report HTTP/1.0" 200 123'
+    static final String NGINX_LINE = '10.0.0.1 - [10.0.0.1] - - [09/May/2018:16:00:39 +0000] "GET /api HTTP/1.1" ' +
+      '200 12 "-" "curl/7.58.0" 80 0.005 [default-api-80] 10.1.0.4:8080 12 0.004 200 abc'
+    static final String KLOG_LINE = 'I0609 12:00:00.000000       7 controller.go:168] Configuration changes detected'
+
+    // The line counters are global, hence only counted once a registry is added
+    def reg = new SimpleMeterRegistry()
+
+    def setup() {
+        globalRegistry.add reg
+    }
+
+    def cleanup() {
+        globalRegistry.remove reg
+    }
+
+    @Unroll
+    def '"#line" should be shaped like #format'() {
+
+        expect:
+        FormatDetector.shapeOf(line) == format
+
+        where:
+        line                                 || format
+        CLF_LINE                             || CLF
+        NGINX_LINE                           || INGRESS_NGINX
+        '::1 - - [09/May/2018:16:00:39 +0000' || CLF
+        KLOG_LINE                            || null
+        ''                                   || null
+        ' - james'                           || null
+        '127.0.0.1 -'                        || null
+        '127.0.0.1 - '                       || null
+        'W0609 - -'                          || CLF
+    }
+
+    def 'mixed lines should be dispatched to their own format, and noise counted apart'() {
+
+        given:
+        def detector = new FormatDetector()
+
+        when:
+        def formats = (0..<10).collect { i -> detector.dispatch(i % 5 == 0 ? KLOG_LINE : i % 2 ? NGINX_LINE : CLF_LINE) }
+
+        then:
+        formats.count { it == CLF } == 4
+        formats.count { it == INGRESS_NGINX } == 4
+        detector.noise() == 2
+        reg.counter('line.noise').count() == 2
+        reg.counter('line.errors').count() == 0
+        detector.detected().get() in [CLF, INGRESS_NGINX]
+        detector.summary() == 'CLF 40%, INGRESS_NGINX 40%, noise 20%, 10 sampled, 2 noise'
+    }
+
+    def 'only the first lines should be sampled'() {
+
+        given:
+        def detector = new FormatDetector()
+
+        when:
+        (0..<FormatDetector.SAMPLE_LINES).each { detector.dispatch(CLF_LINE) }
+        (0..<FormatDetector.SAMPLE_LINES).each { detector.dispatch(NGINX_LINE) }
+        detector.dispatch(KLOG_LINE)
+
+        then:
+        detector.detected().get() == CLF
+        detector.noise() == 1
+        detector.summary() == 'CLF 100%, 1000 sampled, 1 noise'
+    }
+
+    def 'auto should parse either format, and reject noise without a parse error'() {
+
+        expect:
+        AUTO.parse(CLF_LINE).get().remoteUser == 'james'
+        AUTO.parse(NGINX_LINE).get().requestTime == 0.005D
+        !AUTO.parse(KLOG_LINE).present
+        AUTO.parseTime(NGINX_LINE) == CLF.parseTime(CLF_LINE)
+        AUTO.parseTime(KLOG_LINE) < 0
+        reg.counter('line.noise').count() == 1
+        reg.counter('line.errors').count() == 0
+    }
+}
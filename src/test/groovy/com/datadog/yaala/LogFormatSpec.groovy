@@ -73,13 +73,14 @@ class LogFormatSpec extends Specification {
             evt.protocol == protocol
             evt.status == status
             evt.bytesSent == bytesSent
+            evt.requestTime == requestTime
         }
 
         where:
-        clientIP         | remoteUser | localTime              | method | route                                                                                                                                                                              | protocol   | status | bytesSent
-        '213.218.143.17' | null       | '2020-05-31T14:57:26Z' | 'POST' | '/api/curiosity/v1/article-availabilities'                                                                                                                                         | 'HTTP/1.1' | 200    | 83
-        '213.218.143.21' | null       | '2020-06-04T16:09:14Z' | 'GET'  | '/api/datasources/proxy/1/api/v1/query_range?query=sum%20by%20(wid)%20(rate(incoming_messages_total%7Bwid%3D%221%22%7D%5B5m%5D)%20*%2060)&start=1591286655&end=1591286955&step=15' | 'HTTP/2.0' | 200    | 229
-        '5.188.210.101'  | null       | '2020-06-05T07:42:52Z' | 'GET'  | '/echo.php'                                                                                                                                                                        | 'HTTP/1.1' | 400    | 658
+        clientIP         | remoteUser | localTime              | method | route                                                                                                                                                                              | protocol   | status | bytesSent | requestTime
+        '213.218.143.17' | null       | '2020-05-31T14:57:26Z' | 'POST' | '/api/curiosity/v1/article-availabilities'                                                                                                                                         | 'HTTP/1.1' | 200    | 83        | 0.007D
+        '213.218.143.21' | null       | '2020-06-04T16:09:14Z' | 'GET'  | '/api/datasources/proxy/1/api/v1/query_range?query=sum%20by%20(wid)%20(rate(incoming_messages_total%7Bwid%3D%221%22%7D%5B5m%5D)%20*%2060)&start=1591286655&end=1591286955&step=15' | 'HTTP/2.0' | 200    | 229       | 0.005D
+        '5.188.210.101'  | null       | '2020-06-05T07:42:52Z' | 'GET'  | '/echo.php'                                                                                                                                                                        | 'HTTP/1.1' | 400    | 658       | 0.0D
 
         line << [
           '213.218.143.17 - [213.218.143.17] - - [31/May/2020:14:57:26 +0000] "POST /api/curiosity/v1/article-availabilities HTTP/1.1" 200 83 "-" "Apache-HttpAsyncClient/4.1.4 (Java/11.0.3)" 366 0.007 [curiosity-curiosity-api-8080] 10.28.7.60:8080 52 0.007 200 36adb866762c34d934d37850a4a95635',
@@ -87,4 +88,40 @@ class LogFormatSpec extends Specification {
           '5.188.210.101 - [5.188.210.101] - - [05/Jun/2020:07:42:52 +0000] "GET http://5.188.210.101/echo.php HTTP/1.1" 400 658 "https://www.google.com/" "Mozilla/5.0 (Windows NT 6.1) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/70.0.3538.77 Safari/537.36" 361 0.000 [] - - - - 4beaa1b7059ddd4f568fc3aeae388187'
         ]
     }
+
+    def 'the upstream fields of nginx log lines should be parsed, including retries'() {
+
+        when:
+        def evt = INGRESS_NGINX.parse(line).get()
+
+        then:
+        verifyAll {
+            evt.upstreamName == name
+            evt.upstreamAddr == addr
+            evt.upstreamResponseTime == time
+            evt.upstreamStatus == status
+        }
+
+        where:
+        name                           | addr                               | time           | status
+        'curiosity-curiosity-api-8080' | '10.28.7.60:8080'                  | '0.007'        | '200'
+        'api-8080'                     | '10.28.7.60:8080, 10.28.7.61:8080' | '0.500, 0.012' | '502, 200'
+        null                           | null                               | null           | null
+
+        line << [
+          '213.218.143.17 - [213.218.143.17] - - [31/May/2020:14:57:26 +0000] "POST /api/curiosity/v1/article-availabilities HTTP/1.1" 200 83 "-" "Apache-HttpAsyncClient/4.1.4 (Java/11.0.3)" 366 0.007 [curiosity-curiosity-api-8080] 10.28.7.60:8080 52 0.007 200 36adb866762c34d934d37850a4a95635',
+          '213.218.143.17 - [213.218.143.17] - - [31/May/2020:14:57:26 +0000] "GET /api HTTP/1.1" 200 83 "-" "curl/7.64.1" 366 0.512 [api-8080] 10.28.7.60:8080, 10.28.7.61:8080 0, 52 0.500, 0.012 502, 200 36adb866762c34d934d37850a4a95635',
+          '5.188.210.101 - [5.188.210.101] - - [05/Jun/2020:07:42:52 +0000] "GET http://5.188.210.101/echo.php HTTP/1.1" 400 658 "https://www.google.com/" "Mozilla/5.0 (Windows NT 6.1) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/70.0.3538.77 Safari/537.36" 361 0.000 [] - - - - 4beaa1b7059ddd4f568fc3aeae388187'
+        ]
+    }
+
+    def 'the user agent of nginx log lines should be parsed'() {
+
+        expect:
+        INGRESS_NGINX.parse(line).get().userAgent == 'curl/7.64.1'
+        LogFormat.CLF.parse('127.0.0.1 - - [09/May/2018:16:00:42 +0000] "GET / HTTP/1.0" 200 12').get().userAgent == null
+
+        where:
+        line = '213.218.143.17 - [213.218.143.17] - - [31/May/2020:14:57:26 +0000] "GET /api HTTP/1.1" 200 83 "-" "curl/7.64.1" 366 0.512 [api-8080] 10.28.7.60:8080 52 0.512 200 36adb866762c34d934d37850a4a95635'
+    }
 }
@@ -1,5 +1,6 @@
 package com.datadog.yaala
 
+import com.datadog.yaala.ui.SortOrder
 import io.micrometer.core.instrument.MockClock
 import spock.lang.Specification
 import spock.lang.Subject
@@ -50,9 +51,9 @@ class LogStatisticsSpec extends Specification {
 
         then:
         stats.totalRps() == 3
-        stats.routeStatistics == [
-          [route: '/api', hits: 2.0, throughput: 200.0D, increase: 2],
-          [route: '/report', hits: 1.0, throughput: 500.0D, increase: 1]
+        routeStatistics() == [
+          [route: '/api', hits: 2.0, throughput: 200.0D, increase: 2, visitors: 1L, users: 1L, errors: 0, latency: 0, anomaly: 0],
+          [route: '/report', hits: 1.0, throughput: 500.0D, increase: 1, visitors: 1L, users: 1L, errors: 0, latency: 0, anomaly: 0]
         ]
 
         when: 'Next step means should drop'
@@ -60,9 +61,9 @@ class LogStatisticsSpec extends Specification {
 
         then:
         stats.totalRps() == 0
-        stats.routeStatistics == [
-          [route: '/api', hits: 2.0, throughput: 0, increase: 0],
-          [route: '/report', hits: 1.0, throughput: 0, increase: 0]
+        routeStatistics() == [
+          [route: '/api', hits: 2.0, throughput: 0, increase: 0, visitors: 1L, users: 1L, errors: 0, latency: 0, anomaly: 0],
+          [route: '/report', hits: 1.0, throughput: 0, increase: 0, visitors: 1L, users: 1L, errors: 0, latency: 0, anomaly: 0]
         ]
     }
 
@@ -91,6 +92,7 @@ class LogStatisticsSpec extends Specification {
         stats.alertTriggerTime.present
         stats.alertTriggerTime.get().key == alertTime
         stats.alertTriggerTime.get().value == 10.0
+        stats.alertClients*.client == ['127.0.0.1']
 
         when: 'No more traffic is being sent, but the alert should always be present until cooldown period is reached'
         4.times {
@@ -111,9 +113,192 @@ class LogStatisticsSpec extends Specification {
         then: 'No more alert ;)'
         stats.totalRps() == 0
         !stats.alertTriggerTime.present
+        stats.alertClients.empty
 
     }
 
+    def 'when aggregating by event time, a backlog read at once should not alert'() {
+
+        given:
+        def eventStats = new LogStatistics([
+          clock        : { clock },
+          step         : { step },
+          eventTime    : { true },
+          alertDelay   : { ofSeconds(10) },
+          alertCooldown: { ofSeconds(5) }
+        ] as Config)
+        def at = { long ms -> emitEvent(localTime: ZonedDateTime.ofInstant(ofEpochMilli(ms), defaultTz())) }
+
+        when: 'a 200s backlog at 5 rps is read at once'
+        (0..<1000).each { eventStats.ingest at(1_000_000 + it * 200) }
+        eventStats.refreshAlert()
+
+        then:
+        eventStats.totalRps() == 5
+        !eventStats.alertTriggerTime.present
+
+        when: 'followed by 20s at 20 rps'
+        (0..<400).each { eventStats.ingest at(1_200_000 + it * 50) }
+        eventStats.refreshAlert()
+
+        then: 'the alert fires once its delay has elapsed in event time'
+        eventStats.totalRps() == 20
+        eventStats.alertTriggerTime.present
+        eventStats.alertTriggerTime.get().key == 1_201_000
+        eventStats.alertTriggerTime.get().value == 20
+        eventStats.eventTimeSummary().get().endsWith('0 late events dropped')
+    }
+
+    def 'sampled events should be scaled while the total number of requests stays exact'() {
+
+        when: 'sampling 1 line out of 4'
+        stats.ingest emitEvent(route: '/api'), 4.0D
+        stats.ingest emitEvent(route: '/report'), 4.0D
+        stats.incRequests 6
+        clock.add step
+
+        then:
+        stats.totalRps() == 8
+        stats.routeStatistics.collect { [it.route, it.hits, it.throughput] } == [['/report', 4.0D, 400.0D], ['/api', 4.0D, 400.0D]]
+    }
+
+    def 'it should track the most frequent clients overall and per route'() {
+
+        when:
+        3.times { stats << emitEvent(ip: '10.0.0.1', route: '/api') }
+        stats << emitEvent(ip: '10.0.0.2', route: '/report')
+
+        then:
+        stats.getTopClients(1) == [[client: '10.0.0.1', hits: 3L, share: 75.0D]]
+        stats.getRouteTopClients(2) == [
+          [route: '/api', clients: [[client: '10.0.0.1', hits: 3L, share: 100.0D]]],
+          [route: '/report', clients: [[client: '10.0.0.2', hits: 1L, share: 100.0D]]]
+        ]
+
+        when: 'sampled events are weighted like the route hits'
+        stats.ingest emitEvent(ip: '10.0.0.2', route: '/report'), 4.0D
+
+        then:
+        stats.getTopClients(1) == [[client: '10.0.0.2', hits: 5L, share: 62.5D]]
+        stats.getRouteTopClients(2)[0] == [route: '/report', clients: [[client: '10.0.0.2', hits: 5L, share: 100.0D]]]
+    }
+
+    def 'exact client totals should be counted off-heap when enabled'() {
+
+        given:
+        def exact = new LogStatistics([
+          clock          : { clock },
+          step           : { step },
+          clientTableSize: { 2 }
+        ] as Config)
+
+        when:
+        3.times { exact.ingest emitEvent(ip: '10.0.0.1', bytesSent: 10) }
+        exact.ingest emitEvent(ip: '10.0.0.2'), 2.0D
+        exact.ingest emitEvent(ip: '10.0.0.3')
+
+        then:
+        stats.getClientTotals(10) == []
+        exact.getClientTotals(10) == [[client: '10.0.0.1', hits: 3L, bytes: 30L], [client: '10.0.0.2', hits: 2L, bytes: 200L]]
+        exact.clientTableSummary().get().endsWith '1 rejected'
+
+        when: 'sampled hits are weighted exactly'
+        3.times { exact.ingest emitEvent(ip: '10.0.0.1', bytesSent: 10), 1.5D }
+
+        then:
+        exact.getClientTotals(1) == [[client: '10.0.0.1', hits: 8L, bytes: 75L]]
+
+        when: 'the clients looked up within the step are sorted by their current totals'
+        exact.ingest emitEvent(ip: '10.0.0.2'), 7.0D
+
+        then:
+        exact.getClientTotals(1) == [[client: '10.0.0.2', hits: 9L, bytes: 900L]]
+        exact.getClientTotals(10)*.client == ['10.0.0.2', '10.0.0.1']
+    }
+
+    def 'it should estimate the distinct visitors and users over the current window'() {
+
+        when:
+        100.times { stats << emitEvent(ip: "10.0.0.$it", user: "user${it % 10}", route: '/api') }
+        stats << emitEvent(ip: '10.0.0.1', user: '-', route: '/report')
+
+        then: 'estimates are within a few percents'
+        Math.abs(stats.uniqueVisitors() - 100) <= 5
+        stats.uniqueUsers() == 10
+        with(stats.routeStatistics) {
+            it*.route == ['/api', '/report']
+            Math.abs(it[0].visitors - 100) <= 10
+            it[0].users == 10
+            it[1].visitors == 1
+            it[1].users == 0
+        }
+
+        when: 'the window has elapsed'
+        6.times { clock.add step }
+
+        then:
+        stats.uniqueVisitors() == 0
+        stats.uniqueUsers() == 0
+    }
+
+    def 'routes should be collapsed and the least recently used ones folded into the other bucket'() {
+
+        given:
+        def cappedStats = new LogStatistics([
+          clock    : { clock },
+          step     : { step },
+          maxRoutes: { 2 }
+        ] as Config)
+
+        when:
+        cappedStats.ingest emitEvent(route: '/123/orders')
+        cappedStats.ingest emitEvent(route: '/456/orders')
+        cappedStats.ingest emitEvent(route: '/api')
+        cappedStats.ingest emitEvent(route: '/report')
+        clock.add step
+
+        then:
+        cappedStats.routeStatistics*.route == ['(other)', '/report', '/api']
+        cappedStats.routeStatistics.find { it.route == '(other)' }.hits == 2.0
+    }
+
+    def 'routes should be sorted by the previous step metrics and filtered'() {
+
+        when:
+        3.times { stats << emitEvent(route: '/api', requestTime: 0.010D) }
+        stats << emitEvent(route: '/report', status: 503, requestTime: 0.250D, bytesSent: 1000)
+        stats << emitEvent(route: '/reset', requestTime: 0.002D)
+        clock.add step
+        stats.refreshAlert()
+
+        then:
+        stats.getRouteStatistics(SortOrder.HITS, null, 10)*.route == ['/api', '/reset', '/report']
+        stats.getRouteStatistics(SortOrder.THROUGHPUT, null, 10)*.route == ['/report', '/api', '/reset']
+        stats.getRouteStatistics(SortOrder.ERROR_RATE, null, 1)*.errors == [100.0D]
+        with(stats.getRouteStatistics(SortOrder.LATENCY, null, 10)) {
+            it*.route == ['/report', '/api', '/reset']
+            Math.abs(it[1].latency - 10.0D) < 1e-6
+        }
+        stats.getRouteStatistics(SortOrder.LATENCY, DefaultUIModel.compileFilter('/re'), 10)*.route == ['/report', '/reset']
+        stats.getRouteStatistics(SortOrder.HITS, DefaultUIModel.compileFilter('~^/(api|reset)$'), 1)*.route == ['/api']
+
+        when: 'a new route shows up within the step'
+        stats << emitEvent(route: '/login', requestTime: 5.0D)
+
+        then: 'it is appended to the step indexes until the next step'
+        stats.getRouteStatistics(SortOrder.LATENCY, null, 10)*.route == ['/report', '/api', '/reset', '/login']
+
+        when:
+        clock.add step
+        stats.refreshAlert()
+
+        then:
+        stats.getRouteStatistics(SortOrder.LATENCY, null, 1)*.route == ['/login']
+
+        and: 'a larger panel shows more routes from the same index'
+        stats.getRouteStatistics(SortOrder.LATENCY, null, 2).size() == 2
+    }
+
     @Unroll
     def 'the section for route "#route" with depth #depth is "#section"'() {
 
@@ -133,6 +318,143 @@ class LogStatisticsSpec extends Specification {
 
     }
 
+    def 'routes deviating from their baseline should be flagged and feed the alert'() {
+
+        given: 'an rps threshold which is never reached'
+        def anomalyStats = new LogStatistics([
+          clock         : { clock },
+          step          : { step },
+          alertThreshold: { 1000 },
+          alertDelay    : { ofSeconds(2) },
+          alertCooldown : { ofSeconds(5) }
+        ] as Config)
+        def traffic = { Map<String, Integer> hits ->
+            hits.each { route, n -> n.times { anomalyStats.ingest emitEvent(route: route) } }
+            clock.add step
+            anomalyStats.refreshAlert()
+        }
+
+        when: 'the baselines warm up with a steady traffic'
+        8.times { traffic('/api': 4, '/report': 2) }
+
+        then:
+        anomalyStats.anomalies.empty
+
+        when: 'a route suddenly spikes'
+        traffic('/api': 4, '/report': 20)
+
+        then:
+        anomalyStats.anomalies.collect { [it.route, it.metric, it.value, it.mean] } == [['/report', 'rate', 20.0D, 2.0D]]
+        anomalyStats.anomalies[0].z > 3
+        anomalyStats.routeStatistics.find { it.route == '/report' }.anomaly > 3
+        !anomalyStats.alertTriggerTime.present
+
+        when: 'the spike lasts longer than the alert delay'
+        traffic('/api': 4, '/report': 60)
+        traffic('/api': 4, '/report': 180)
+
+        then:
+        anomalyStats.alertTriggerTime.present
+        anomalyStats.alertAnomalies.collect { [it.route, it.metric] } as Set == [['/report', 'rate'], ['/report', 'bytes']] as Set
+    }
+
+    def 'it should keep the history of the hits per step'() {
+
+        when:
+        stats << emitEvent(route: '/api')
+        stats.refreshAlert()
+        clock.add step
+        stats.refreshAlert()
+        2.times { stats << emitEvent(route: '/api') }
+        2.times { clock.add step }
+        stats.refreshAlert()
+        stats.ingest emitEvent(route: '/api'), 4.0D
+
+        then: 'the current step is the last one'
+        with(stats.routeStatistics[0].history) {
+            (capacity() - 4..<capacity()).collect { get(it) } == [1.0f, 2.0f, 0.0f, 4.0f]
+        }
+    }
+
+    def 'routes should count their hits by user agent category'() {
+
+        when:
+        ['curl/7.64.1', 'Mozilla/5.0 (compatible; Googlebot/2.1)', 'Mozilla/5.0 Firefox/121.0', 'curl/7.64.1'].each {
+            stats << new LogEvent('127.0.0.1', 'nobody', localTimeAt(), 'GET', '/api/user', 'HTTP/1.1', 200, 100,
+              Double.NaN, null, null, null, null, it)
+        }
+        stats << emitEvent(route: '/report')
+
+        then:
+        stats.routeStatistics.find { it.route == '/api' }.agents == [browser: 1L, crawler: 1L, client: 2L]
+        !stats.routeStatistics.find { it.route == '/report' }.containsKey('agents')
+        stats.getTopAgents(1) == [[family: 'curl', hits: 2L, share: 50.0D]]
+        stats.userAgentsSummary().get() == 'browser 25%, crawler 25%, client 50%, 3 classified, 3 cached'
+    }
+
+    def 'cold routes should be merged, then histories coarsened and buffers shrunk within the memory budget'() {
+
+        given: 'room for the sketches and 20 routes'
+        def budgeted = new LogStatistics([
+          clock       : { clock },
+          step        : { step },
+          memoryBudget: { 212_352L }
+        ] as Config)
+
+        when:
+        (0..<100).each { budgeted.ingest emitEvent(route: "/r$it") }
+        clock.add step
+        budgeted.refreshAlert()
+
+        then: 'the other bucket alone is still too much'
+        budgeted.routeStatistics.size() == 21
+        budgeted.routeStatistics.find { it.route == '(other)' }.hits == 80.0
+        budgeted.routeStatistics[0].history.stepsPerPoint() == 2
+        budgeted.memorySummary().startsWith('0.2MB of 0.2MB (routes 0.1MB, history 0.0MB, sketches 0.1MB')
+        budgeted.memorySummary().endsWith('80 routes merged, 2 steps per history point, buffers halved 1 times')
+
+        when: 'new routes are hit'
+        budgeted.ingest emitEvent(route: '/new')
+
+        then: 'they take the place of colder ones'
+        budgeted.routeStatistics.size() == 21
+        budgeted.routeStatistics.find { it.route == '(other)' }.hits == 81.0
+    }
+
+    def 'a memory budget below what is reserved up front should be rejected'() {
+
+        given:
+        def budget = 100_000L
+        def cfg = [
+          clock          : { clock },
+          step           : { step },
+          clientTableSize: { 1000 },
+          memoryBudget   : { budget }
+        ] as Config
+        def reserved = LogStatistics.reservedMemoryBytes(cfg)
+
+        when:
+        new LogStatistics(cfg)
+
+        then:
+        def e = thrown(IllegalArgumentException)
+        e.message == "a memory budget of 100000 bytes is below the $reserved bytes reserved up front"
+        reserved == 4 * 2048 * 4 + 2 * 7 * 4096 + 2048 * 32 + 24_000
+
+        when: 'the client table and the sketches fit'
+        budget = reserved
+
+        then:
+        new LogStatistics(cfg).clientTableSummary().present
+    }
+
+    /**
+     * @return the route statistics without their history, since the latter isn't comparable.
+     */
+    def routeStatistics() {
+        stats.routeStatistics.collect { it.findAll { it.key != 'history' } }
+    }
+
     def emitEvent(Map opts = [:]) {
         new LogEvent(opts.ip ?: '127.0.0.1',
                      opts.user ?: 'nobody',
@@ -141,7 +463,8 @@ class LogStatisticsSpec extends Specification {
                      opts.route ?: '/api',
                      opts.protocol ?: 'HTTP/1.1',
                      opts.status ?: 200,
-                     opts.bytesSent ?: 100)
+                     opts.bytesSent ?: 100,
+                     opts.requestTime ?: Double.NaN)
     }
 
     ZonedDateTime localTimeAt() {
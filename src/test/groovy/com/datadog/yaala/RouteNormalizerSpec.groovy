@@ -0,0 +1,52 @@
+package com.datadog.yaala
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+/**
+ * @author Nicolas Estrada.
+ */
+class RouteNormalizerSpec extends Specification {
+
+    def templates = ['/users/{name}', '/static/assets']
+    def cfg = [
+      routeDepth    : { 4 },
+      routeTemplates: { templates },
+      routeCacheSize: { 2 }
+    ] as Config
+
+    def normalizer = new RouteNormalizer(cfg)
+
+    @Unroll
+    def 'the route "#route" should be normalized into "#normalized"'() {
+
+        expect:
+        normalizer.normalize(route) == normalized
+
+        where:
+        route                                              | normalized
+        '/'                                                | '/'
+        '/api/user'                                        | '/api/user'
+        '/api/'                                            | '/api/'
+        '/orders/987?page=2'                               | '/orders/{id}'
+        '/users/12345/orders/987'                          | '/users/{name}/orders/{id}'
+        '/static/assets/5d41402abc4b2a76b9719d911017c592'  | '/static/assets/{hash}'
+        '/jobs/123e4567-e89b-12d3-a456-426614174000/logs'  | '/jobs/{uuid}/logs'
+        '/v1/cafe'                                         | '/v1/cafe' // too short to be a hash
+        '*'                                                | '*'
+    }
+
+    def 'normalized sections should be cached in a bounded LRU'() {
+
+        when:
+        def s1 = normalizer.section('/users/bob/orders/1')
+        def s2 = normalizer.section('/users/alice/orders/2')
+        def s3 = normalizer.section('/items/3')
+
+        then:
+        s1 == '/users/{name}/orders/{id}'
+        s2 == s1
+        s3 == '/items/{id}'
+        normalizer.cacheSize() == 2
+    }
+}
@@ -0,0 +1,62 @@
+package com.datadog.yaala
+
+import io.micrometer.core.instrument.MockClock
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.AutoCleanup
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import static java.time.Duration.ofSeconds
+
+/**
+ * @author Nicolas Estrada.
+ */
+class ShardedIngestSpec extends Specification {
+
+    def clock = new MockClock()
+    def cfg = [
+      clock: { clock },
+      step : { ofSeconds(1) }
+    ] as Config
+    def pipeline = new PipelineMetrics(new SimpleMeterRegistry())
+
+    @AutoCleanup
+    def sharded = new ShardedIngest(cfg, 4, pipeline)
+
+    def 'lines should be parsed by the shards and merged on read'() {
+
+        given:
+        def stats = new LogStatistics(cfg, false)
+        def routes = ['/api/user', '/api/order', '/report', '/login', '/logout', '/static/app.js']
+
+        when:
+        600.times {
+            sharded.dispatch "127.0.0.$it - bob [09/May/2018:16:00:39 +0000] \"GET ${routes[it % routes.size()]} HTTP/1.0\" 200 10", 1.0D
+        }
+        sharded.dispatch 'garbage', 1.0D
+        sharded.dispatch '127.0.0.1 - bob [09/May/2018:16:00:39 +0000] "GET /report HTTP/1.0" 200 10', 2.0D
+
+        then: 'shards report asynchronously'
+        new PollingConditions(timeout: 5).eventually {
+            sharded.collect(stats.&merge, pipeline)
+            assert stats.routeStatistics.collectEntries { [it.route, it.hits] } == [
+              '/api': 200.0D, '/report': 102.0D, '/login': 100.0D, '/logout': 100.0D, '/static': 100.0D
+            ]
+        }
+        clock.add ofSeconds(1)
+        stats.totalRps() == 602
+        pipeline.toDisplayMap()['lines parsed'].endsWith('(total 601)')
+    }
+
+    def 'lines of the same route section should always land on the same shard'() {
+
+        expect:
+        partition('/api/user') == partition('/api/order?id=1')
+        partition('/api') == partition('/api/user')
+        (1..100).collect { partition("/route$it") }.toSet() == (0..3).toSet()
+    }
+
+    int partition(String route) {
+        ShardedIngest.partition "127.0.0.1 - - [09/May/2018:16:00:39 +0000] \"GET $route HTTP/1.0\" 200 10", 4
+    }
+}
@@ -0,0 +1,91 @@
+package com.datadog.yaala
+
+import io.micrometer.core.instrument.MockClock
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+import static java.time.Duration.ofSeconds
+
+/**
+ * @author Nicolas Estrada.
+ */
+class StatsExporterSpec extends Specification {
+
+    Path dir = Files.createTempDirectory('yaala-export')
+
+    void cleanup() {
+        dir.toFile().deleteDir()
+    }
+
+    def 'rows should be encoded as #format'() {
+
+        given:
+        def sb = new StringBuilder()
+
+        when:
+        format.append sb, 1000L, '/a b,c', [2, 200, 10, 1, 0, 0, 1, 1.5D, 3, Double.NaN] as double[]
+
+        then:
+        (format.header() ?: '') + sb == expected
+
+        where:
+        format                     | expected
+        ExportFormat.CSV           | 'time_ms,route,hits,bytes,total,status_2xx,status_3xx,status_4xx,status_5xx,p50_ms,p90_ms,p99_ms\n' +
+                                     '1000,"/a b,c",2,200,10,1,0,0,1,1.5,3,\n'
+        ExportFormat.LINE_PROTOCOL | 'yaala_route,route=/a\\ b\\,c hits=2,bytes=200,total=10,status_2xx=1,status_3xx=0,' +
+                                     'status_4xx=0,status_5xx=1,p50_ms=1.5,p90_ms=3 1000000000\n'
+    }
+
+    def 'batches should be written in the background to rolling files'() {
+
+        given:
+        def exporter = StatsExporter.open(dir, ExportFormat.CSV, 100, 2)
+        def values = [1, 2, 3, 4, 5, 6, 7, 8, 9, 10] as double[]
+
+        when: 'each batch is bigger than the maximum file size'
+        3.times { batch ->
+            2.times { exporter.append it, '/api', values }
+            exporter.flush()
+            new PollingConditions(timeout: 5).eventually {
+                assert Files.list(dir).anyMatch { it.toString().endsWith(String.format('-%04d.csv', batch)) }
+            }
+        }
+        exporter.close()
+        def files = Files.list(dir).sorted().collect { Files.readString(it) }
+
+        then: 'only the last 2 files are kept'
+        files.size() == 2
+        files.every { it.startsWith('time_ms,route,') && it.count('\n') == 3 }
+        exporter.dropped() == 0
+    }
+
+    def 'route statistics should be exported every step'() {
+
+        given:
+        def clock = new MockClock()
+        def stats = new LogStatistics([clock: { clock }, step: { ofSeconds(1) }] as Config, false)
+        def exporter = StatsExporter.open(dir, ExportFormat.LINE_PROTOCOL, 1 << 20, 1)
+        stats.exportTo exporter
+        def event = { int status, double requestTime ->
+            new LogEvent('127.0.0.1', 'bob', null, 'GET', '/api/user', 'HTTP/1.1', status, 100, requestTime)
+        }
+
+        when:
+        stats.refreshAlert()
+        stats.ingest event(200, 0.010D)
+        stats.ingest event(200, 0.020D)
+        stats.ingest event(503, 0.100D)
+        clock.add ofSeconds(1)
+        stats.refreshAlert()
+        exporter.close()
+
+        then:
+        Files.list(dir).collect { Files.readString(it) } == [
+          'yaala_route,route=/api hits=3,bytes=300,total=3,status_2xx=2,status_3xx=0,status_4xx=0,status_5xx=1,' +
+            'p50_ms=20.479,p90_ms=100,p99_ms=100 1000000000\n'
+        ]
+    }
+}
@@ -0,0 +1,113 @@
+package com.datadog.yaala
+
+import io.micrometer.core.instrument.MockClock
+import spock.lang.Specification
+
+import java.time.ZonedDateTime
+
+import static java.time.Duration.ofSeconds
+import static java.time.Instant.ofEpochMilli
+import static java.time.ZoneId.systemDefault as defaultTz
+
+/**
+ * @author Nicolas Estrada.
+ */
+class StatsSnapshotSpec extends Specification {
+
+    def step = ofSeconds 1
+    def clock = new MockClock()
+    def cfg = [
+      clock: { clock },
+      step : { step }
+    ] as Config
+
+    def agent1 = new LogStatistics(cfg)
+    def agent2 = new LogStatistics(cfg)
+    def aggregator = new LogStatistics(cfg)
+
+    def 'agents deltas should survive a round trip and merge into the aggregator'() {
+
+        given:
+        5.times { agent1.ingest emitEvent(ip: "10.0.0.$it", route: '/api') }
+        3.times { agent2.ingest emitEvent(ip: "10.0.1.$it", route: '/report') }
+        agent2.ingest emitEvent(ip: '10.0.0.1', route: '/api')
+
+        when:
+        aggregator.merge roundTrip(agent1.snapshotDelta('agent1'))
+        aggregator.merge roundTrip(agent2.snapshotDelta('agent2'))
+        clock.add step
+
+        then:
+        aggregator.totalRps() == 9
+        aggregator.uniqueVisitors() == 8
+        aggregator.routeStatistics.collect { [it.route, it.hits, it.visitors] } == [['/api', 6.0D, 5L], ['/report', 3.0D, 3L]]
+
+        when: 'only the new events are sent the next time around'
+        agent1.ingest emitEvent(ip: '10.0.0.1', route: '/api')
+        def delta = agent1.snapshotDelta('agent1')
+
+        then:
+        delta.requests == 1
+        delta.routes*.section == ['/api']
+        delta.routes[0].hits == 1
+
+        when: 'nothing happened'
+        delta = agent1.snapshotDelta('agent1')
+
+        then:
+        delta.empty
+    }
+
+    def 'unsent snapshots should coalesce'() {
+
+        given:
+        agent1.ingest emitEvent(route: '/api')
+        def s1 = agent1.snapshotDelta('agent1')
+        agent1.ingest emitEvent(route: '/api')
+        agent1.ingest emitEvent(route: '/report', ip: '10.0.0.2')
+        def s2 = agent1.snapshotDelta('agent1')
+
+        when:
+        s1.merge s2
+        aggregator.merge roundTrip(s1)
+        clock.add step
+
+        then:
+        aggregator.totalRps() == 3
+        aggregator.uniqueVisitors() == 2
+        aggregator.routeStatistics.collect { [it.route, it.hits] } == [['/api', 2.0D], ['/report', 1.0D]]
+    }
+
+    def 'the other bucket of an agent should merge into the one of the aggregator'() {
+
+        given:
+        def capped = { new LogStatistics([clock: { clock }, step: { step }, maxRoutes: { 1 }] as Config) }
+        def agent3 = capped()
+        def aggregator = capped()
+        agent1.ingest emitEvent(route: '/a')
+        agent1.ingest emitEvent(route: '/b')
+        ['/c', '/d', '/e'].each { agent3.ingest emitEvent(route: it) }
+
+        when:
+        aggregator.merge roundTrip(agent1.snapshotDelta('agent1'))
+        aggregator.merge roundTrip(agent3.snapshotDelta('agent3'))
+        clock.add step
+
+        then:
+        aggregator.routeStatistics.collect { [it.route, it.hits] } == [['(other)', 4.0D], ['/e', 1.0D]]
+    }
+
+    static StatsSnapshot roundTrip(StatsSnapshot snapshot) {
+        def bytes = new ByteArrayOutputStream()
+        snapshot.writeTo(new DataOutputStream(bytes))
+        StatsSnapshot.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())))
+    }
+
+    def emitEvent(Map opts = [:]) {
+        new LogEvent(opts.ip ?: '127.0.0.1', 'nobody', localTimeAt(), 'GET', opts.route ?: '/api', 'HTTP/1.1', 200, 100)
+    }
+
+    ZonedDateTime localTimeAt() {
+        ZonedDateTime.ofInstant ofEpochMilli(clock.wallTime()), defaultTz()
+    }
+}
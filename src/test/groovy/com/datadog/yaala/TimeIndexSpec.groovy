@@ -0,0 +1,119 @@
+package com.datadog.yaala
+
+import com.datadog.yaala.util.LineReader
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.ZoneOffset
+import java.time.ZonedDateTime
+
+import static com.datadog.yaala.LogEvent.CLF_DT_FORMAT
+
+/**
+ * @author Nicolas Estrada.
+ */
+class TimeIndexSpec extends Specification {
+
+    static final long START = ZonedDateTime.of(2018, 5, 9, 16, 0, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli()
+
+    Path dir = Files.createTempDirectory('yaala-index')
+    Path log = dir.resolve('access.log')
+
+    void cleanup() {
+        dir.toFile().deleteDir()
+    }
+
+    def 'seeking to a time should skip all lines logged before it'() {
+
+        given: 'a line per second'
+        append 0..<1000
+        def index = TimeIndex.open(log, LogFormat.CLF, 4096)
+        def reader = LineReader.open(log)
+
+        when:
+        reader.seek index.offsetOf(START + 500_000)
+        def lines = reader.readLines(100)
+
+        then: 'the seek lands at most an interval before'
+        index.size() > 10
+        Files.exists(TimeIndex.sidecarOf(log))
+        lines.first().startsWith('127.0.0.1')
+        second(lines.first()) <= 500
+        second(lines.first()) > 500 - 4096 / line(0).length() - 1
+        lines.collect { second(it) } == (second(lines.first())..<second(lines.first()) + 100).toList()
+
+        and: 'the end of a range is found at most an interval after it'
+        index.endOffsetOf(START + 500_000) > index.offsetOf(START + 500_000)
+        index.endOffsetOf(START + 2_000_000) == Long.MAX_VALUE
+        index.offsetOf(START - 1) == 0
+
+        cleanup:
+        reader.close()
+        index.close()
+    }
+
+    def 'the index should be extended as the log grows and reloaded from its sidecar'() {
+
+        given:
+        append 0..<100
+        def index = TimeIndex.open(log, LogFormat.CLF, 1024)
+        int size = index.size()
+
+        when:
+        append 100..<1000
+        index.extend()
+
+        then:
+        index.size() > size
+        index.offsetOf(START + 900_000) > 0
+
+        when: 'it is reopened'
+        def entries = index.size()
+        def offset = index.offsetOf(START + 900_000)
+        index.close()
+        def sidecarSize = Files.size(TimeIndex.sidecarOf(log))
+        index = TimeIndex.open(log, LogFormat.CLF, 1024)
+
+        then: 'nothing has to be sampled again'
+        index.size() == entries
+        index.offsetOf(START + 900_000) == offset
+        Files.size(TimeIndex.sidecarOf(log)) == sidecarSize
+
+        cleanup:
+        index.close()
+    }
+
+    def 'the index should be rebuilt once the log is rotated'() {
+
+        given:
+        append 0..<1000
+        TimeIndex.open(log, LogFormat.CLF, 1024).close()
+
+        when:
+        Files.delete log
+        append 5000..<5100
+        def index = TimeIndex.open(log, LogFormat.CLF, 1024)
+
+        then:
+        index.size() > 0
+        index.offsetOf(START + 5_050_000) > 0
+        index.offsetOf(START + 900_000) == 0
+
+        cleanup:
+        index.close()
+    }
+
+    void append(Range<Integer> seconds) {
+        log.toFile() << seconds.collect { line(it) }.join('')
+    }
+
+    static String line(int second) {
+        def time = CLF_DT_FORMAT.format(ZonedDateTime.of(2018, 5, 9, 16, 0, 0, 0, ZoneOffset.UTC).plusSeconds(second))
+        "127.0.0.1 - james [$time] \"GET /report/$second HTTP/1.0\" 200 123\n"
+    }
+
+    static int second(String line) {
+        (LogFormat.CLF.parseTime(line) - START) / 1000
+    }
+}
@@ -0,0 +1,79 @@
+package com.datadog.yaala
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static java.nio.charset.StandardCharsets.UTF_8
+
+/**
+ * @author Nicolas Estrada.
+ */
+class TrafficFilterSpec extends Specification {
+
+    static final CLF_LINE = '10.1.2.3 - james [09/May/2018:16:00:39 +0000] "GET /api/users?id=1 HTTP/1.0" 503 1234'
+    static final NGINX_LINE = '192.168.0.7 - [192.168.0.7] - - [09/May/2018:16:00:39 +0000] ' +
+      '"POST http://example.com/admin/login HTTP/1.1" 200 12 "-" "curl/7.58.0" 100 0.010 [default-web-80] ' +
+      '10.0.0.1:80 12 0.010 200 abc'
+
+    @Unroll
+    def '#expression should be #expected on #line'() {
+
+        given:
+        def filter = TrafficFilter.compile([expression])
+        def bytes = (' ' + line + '\n').getBytes(UTF_8)
+
+        expect:
+        filter.accept(bytes, 1, bytes.length - 2) == expected
+
+        where:
+        expression                             | line       || expected
+        'status>=500'                          | CLF_LINE   || true
+        'status>=500'                          | NGINX_LINE || false
+        'status=5xx'                           | CLF_LINE   || true
+        'status=2xx,3xx'                       | CLF_LINE   || false
+        'status!=404,503'                      | CLF_LINE   || false
+        'status!=404,500'                      | CLF_LINE   || true
+        'bytes>1000'                           | CLF_LINE   || true
+        'bytes <= 12'                          | NGINX_LINE || true
+        'route=/api/*'                         | CLF_LINE   || true
+        'route=/api/users'                     | CLF_LINE   || true
+        'route=/api/user'                      | CLF_LINE   || false
+        'route=/admin/*'                       | NGINX_LINE || true
+        'route!=/admin/*,/api/*'               | NGINX_LINE || false
+        'method=GET,HEAD'                      | CLF_LINE   || true
+        'method=GET,HEAD'                      | NGINX_LINE || false
+        'client=10.0.0.0/8'                    | CLF_LINE   || true
+        'client=10.0.0.0/8'                    | NGINX_LINE || false
+        'client!=10.0.0.0/8,192.168.0.0/16'    | NGINX_LINE || false
+        'client=192.168.0.7'                   | NGINX_LINE || true
+        'client=0.0.0.0/0'                     | NGINX_LINE || true
+        'status>=500 && route=/api/*'          | CLF_LINE   || true
+        'status>=500 && client=192.168.0.0/16' | CLF_LINE   || false
+        'status>=500'                          | 'garbage'  || false
+        'client=10.0.0.0/8'                    | '10.1.2.3' || false
+    }
+
+    def 'repeated expressions should all match'() {
+
+        given:
+        def filter = TrafficFilter.compile(['status>=500', 'method=POST'])
+        def bytes = CLF_LINE.getBytes(UTF_8)
+
+        expect:
+        !filter.accept(bytes, 0, bytes.length)
+        filter.toString() == 'status>=500 && method=POST'
+    }
+
+    @Unroll
+    def '#expression should not compile'() {
+
+        when:
+        TrafficFilter.compile([expression])
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        expression << ['status', 'status=', 'latency>1', 'route>/api', 'status>abc', 'client=10.0.0.0/33', 'status=~500']
+    }
+}
@@ -0,0 +1,93 @@
+package com.datadog.yaala
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static com.datadog.yaala.UpstreamStats.parseMicros
+import static com.datadog.yaala.UpstreamStats.parseStatus
+
+/**
+ * @author Nicolas Estrada.
+ */
+class UpstreamStatsSpec extends Specification {
+
+    def upstreams = new UpstreamStats(3.0)
+
+    def 'retried requests should be accounted to every pod and once to their service'() {
+
+        when:
+        upstreams.ingest event('api', '10.0.0.1:80, 10.0.0.2:80', '0.500, 0.012', '502, 200'), 1.0D
+        upstreams.ingest event('api', '10.0.0.2:80', '0.010', '200'), 1.0D
+        upstreams.ingest event('web', '10.0.1.1:80 : 10.0.1.2:80', '0.001 : -', '200 : -'), 2.0D
+
+        then: 'nothing is displayed until the step rolls over'
+        upstreams.slowestServices(10) == []
+
+        when:
+        upstreams.step()
+
+        then:
+        upstreams.slowestServices(10).collect { it.subMap('upstream', 'hits', 'errors', 'retries', 'p99') } == [
+          [upstream: 'api', hits: 2.0D, errors: 0.0D, retries: 1.0D, p99: 512.0D],
+          [upstream: 'web', hits: 2.0D, errors: 0.0D, retries: 2.0D, p99: 1.0D]
+        ]
+        upstreams.slowestPods(3).collect { it.subMap('upstream', 'service', 'hits', 'errors') } == [
+          [upstream: '10.0.0.1:80', service: 'api', hits: 1.0D, errors: 100.0D],
+          [upstream: '10.0.0.2:80', service: 'api', hits: 2.0D, errors: 0.0D],
+          [upstream: '10.0.1.1:80', service: 'web', hits: 2.0D, errors: 0.0D]
+        ]
+
+        when: 'nothing happened during the next step'
+        upstreams.step()
+
+        then:
+        upstreams.slowestServices(10) == []
+    }
+
+    def 'services slowing down should be flagged'() {
+
+        when:
+        10.times {
+            upstreams.ingest event('api', '10.0.0.1:80', '0.010', '200'), 1.0D
+            upstreams.step()
+        }
+
+        then:
+        upstreams.slowServices() == []
+
+        when:
+        upstreams.ingest event('api', '10.0.0.1:80', '0.250', '200'), 1.0D
+        upstreams.step()
+
+        then:
+        upstreams.slowServices().collect { [it.upstream, it.slow] } == [['api', true]]
+    }
+
+    @Unroll
+    def 'the upstream time "#s" should be #micros micros'() {
+
+        expect:
+        parseMicros(s, 0, s.length()) == micros
+
+        where:
+        s          | micros
+        '0.007'    | 7_000
+        '1.5'      | 1_500_000
+        '12'       | 12_000_000
+        '0.1234567'| 123_456
+        '-'        | -1
+        ''         | -1
+    }
+
+    def 'statuses should be parsed without allocating'() {
+
+        expect:
+        parseStatus('502, 200', 0, 3) == 502
+        parseStatus('502, 200', 5, 8) == 200
+        parseStatus('-', 0, 1) == 0
+    }
+
+    static LogEvent event(String name, String addr, String time, String status) {
+        new LogEvent('127.0.0.1', '-', null, 'GET', '/api', 'HTTP/1.1', 200, 10, 0.0D, name, addr, time, status)
+    }
+}
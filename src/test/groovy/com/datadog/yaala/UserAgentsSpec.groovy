@@ -0,0 +1,71 @@
+package com.datadog.yaala
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static com.datadog.yaala.UserAgents.Category.BOT
+import static com.datadog.yaala.UserAgents.Category.BROWSER
+import static com.datadog.yaala.UserAgents.Category.CLIENT
+import static com.datadog.yaala.UserAgents.Category.CRAWLER
+import static com.datadog.yaala.UserAgents.Category.OTHER
+import static com.datadog.yaala.UserAgents.Category.UNKNOWN
+
+/**
+ * @author Nicolas Estrada.
+ */
+class UserAgentsSpec extends Specification {
+
+    @Unroll
+    def '#agent should be classified as #family (#category)'() {
+
+        when:
+        def ua = UserAgents.classifyUncached(agent)
+
+        then:
+        ua.family() == family
+        ua.category() == category
+
+        where:
+        agent                                                                                                                  || family              | category
+        'Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/83.0.4103.61 Safari/537.36'             || 'Chrome'            | BROWSER
+        'Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36 Edg/120.0' || 'Edge'              | BROWSER
+        'Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.0 Safari/605.1.15' || 'Safari'            | BROWSER
+        'Mozilla/5.0 (X11; Ubuntu; Linux x86_64; rv:121.0) Gecko/20100101 Firefox/121.0'                                       || 'Firefox'           | BROWSER
+        'Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)'                                             || 'Googlebot'         | CRAWLER
+        'Mozilla/5.0 AppleWebKit/537.36 (KHTML, like Gecko; compatible; bingbot/2.0; +http://www.bing.com/bingbot.htm)'        || 'Bingbot'           | CRAWLER
+        'Mozilla/5.0 (compatible; FooBot/1.0)'                                                                                 || 'Mozilla'           | CRAWLER
+        'Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) HeadlessChrome/120.0 Safari/537.36'            || 'HeadlessChrome'    | BOT
+        'kube-probe/1.27'                                                                                                      || 'kube-probe'        | BOT
+        'curl/7.64.1'                                                                                                          || 'curl'              | CLIENT
+        'Apache-HttpAsyncClient/4.1.4 (Java/11.0.3)'                                                                           || 'Apache-HttpClient' | CLIENT
+        'python-requests/2.31.0'                                                                                               || 'python-requests'   | CLIENT
+        'Mozilla/5.0 (Unknown)'                                                                                                || 'Other'             | BROWSER
+        'my-script v2'                                                                                                         || 'my-script'         | OTHER
+        '-'                                                                                                                    || '-'                 | UNKNOWN
+        ''                                                                                                                     || '-'                 | UNKNOWN
+    }
+
+    def 'agents should only be classified once while cached'() {
+
+        given:
+        def agents = new UserAgents(2)
+
+        when:
+        3.times {
+            agents.classify 'curl/7.64.1'
+            agents.classify 'Wget/1.21'
+        }
+
+        then:
+        agents.classified() == 2
+        agents.cacheSize() == 2
+
+        when: 'a third agent evicts the least recently used one'
+        agents.classify 'okhttp/4.12.0'
+        agents.classify 'curl/7.64.1'
+
+        then:
+        agents.classified() == 4
+        agents.cacheSize() == 2
+    }
+}
@@ -0,0 +1,88 @@
+package com.datadog.yaala.net
+
+import com.datadog.yaala.StatsSnapshot
+import spock.lang.AutoCleanup
+import spock.lang.Specification
+import spock.lang.Timeout
+import spock.util.concurrent.PollingConditions
+
+/**
+ * @author Nicolas Estrada.
+ */
+class SnapshotServerSpec extends Specification {
+
+    @AutoCleanup
+    def server = SnapshotServer.listen(0)
+
+    def 'several agents on the same machine should be able to send their deltas'() {
+
+        given:
+        def address = SnapshotClient.parseAddress("localhost:${server.port}")
+        def agents = (1..3).collect { new SnapshotClient(address) }
+        def received = [:]
+
+        when:
+        agents.eachWithIndex { agent, i ->
+            2.times { agent.send(snapshot("agent$i", i + 1)) }
+        }
+
+        then: 'deltas of a given agent are coalesced until drained'
+        new PollingConditions(timeout: 5).eventually {
+            server.drain { received[it.agent] = (received[it.agent] ?: 0) + it.requests }
+            assert received == [agent0: 2L, agent1: 4L, agent2: 6L]
+        }
+        server.connectedAgents() == 3
+
+        cleanup:
+        agents*.close()
+    }
+
+    def 'deltas should be kept pending while the aggregator is unreachable'() {
+
+        given:
+        def client = new SnapshotClient(SnapshotClient.parseAddress('localhost:1'))
+
+        when:
+        2.times { client.send(snapshot('agent', 1)) }
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            assert !client.connected
+            assert client.hasUnsent()
+        }
+
+        cleanup:
+        client.close()
+    }
+
+    @Timeout(10)
+    def 'a stalled aggregator should not block the caller'() {
+
+        given: 'an aggregator which never reads'
+        def stalled = new ServerSocket(0)
+        def client = new SnapshotClient(SnapshotClient.parseAddress("localhost:${stalled.localPort}"))
+
+        when: 'frames of ~800KB outgrow the socket buffers'
+        long start = System.nanoTime()
+        100.times {
+            def s = snapshot('agent', 1, 18)
+            Arrays.fill(s.visitors, (byte) (it % 100 + 1))
+            client.send s
+            sleep 10
+        }
+
+        then:
+        System.nanoTime() - start < 5_000_000_000L
+        client.hasUnsent()
+
+        cleanup:
+        client.close()
+        stalled.close()
+    }
+
+    static StatsSnapshot snapshot(String agent, long requests, int precision = 4) {
+        def s = new StatsSnapshot(agent, 0L, precision)
+        s.addRequests requests
+        s
+    }
+}
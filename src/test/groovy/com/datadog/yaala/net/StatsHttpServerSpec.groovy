@@ -0,0 +1,69 @@
+package com.datadog.yaala.net
+
+import com.datadog.yaala.PublishedStats
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.AutoCleanup
+import spock.lang.Specification
+
+/**
+ * @author Nicolas Estrada.
+ */
+class StatsHttpServerSpec extends Specification {
+
+    @AutoCleanup
+    def server = StatsHttpServer.listen(new InetSocketAddress('127.0.0.1', 0))
+
+    def 'the latest published snapshot should be served as JSON and Prometheus metrics'() {
+
+        given:
+        def reg = new SimpleMeterRegistry()
+        reg.counter('http.requests', 'route', '/api').increment(3)
+        reg.gauge('pipeline.lag', 42)
+
+        expect: 'nothing was published yet'
+        status('/api/stats') == 503
+
+        when:
+        server.publish new PublishedStats(
+          [totals: [rps: 1.5D, visitors: 2L], routes: [[route: '/a"b', hits: 3.0D]], alert: [active: false]],
+          PublishedStats.sampleMeters(reg))
+
+        then:
+        status('/api/stats') == 200
+        get('/api/stats') == '{"totals":{"rps":1.5,"visitors":2},"routes":[{"route":"/a\\"b","hits":3.0}],"alert":{"active":false}}'
+        get('/metrics') == '''\
+            # TYPE http_requests_total counter
+            http_requests_total{route="/api"} 3.0
+            # TYPE pipeline_lag gauge
+            pipeline_lag 42.0
+            '''.stripIndent()
+
+        and:
+        status('/api/stats/other') == 404
+        status('/metrics', 'POST') == 405
+    }
+
+    def 'encodings should be cached per snapshot'() {
+
+        given:
+        def snapshot = new PublishedStats([a: 1], [])
+
+        expect:
+        snapshot.json().is(snapshot.json())
+        snapshot.prometheus().is(snapshot.prometheus())
+    }
+
+    def get(String path) {
+        new URL("http://127.0.0.1:${server.port}$path").getText('UTF-8')
+    }
+
+    int status(String path, String method = 'GET') {
+        def conn = (HttpURLConnection) new URL("http://127.0.0.1:${server.port}$path").openConnection()
+        conn.requestMethod = method
+        try {
+            conn.responseCode
+        } finally {
+            conn.disconnect()
+        }
+    }
+}
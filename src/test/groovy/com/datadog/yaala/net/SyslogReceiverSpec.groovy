@@ -0,0 +1,113 @@
+package com.datadog.yaala.net
+
+import com.datadog.yaala.util.LineFilter
+import spock.lang.AutoCleanup
+import spock.lang.Specification
+import spock.lang.Unroll
+import spock.util.concurrent.PollingConditions
+
+import java.nio.ByteBuffer
+import java.nio.channels.DatagramChannel
+
+import static java.nio.charset.StandardCharsets.UTF_8
+
+/**
+ * @author Nicolas Estrada.
+ */
+class SyslogReceiverSpec extends Specification {
+
+    static final LINE = '127.0.0.1 - james [09/May/2018:16:00:39 +0000] "GET /report HTTP/1.0" 200 123'
+
+    @AutoCleanup
+    def receiver = SyslogReceiver.listen(new InetSocketAddress('127.0.0.1', 0))
+
+    @AutoCleanup
+    def sender = DatagramChannel.open()
+
+    @Unroll
+    def 'the syslog header of #message should be stripped'() {
+
+        given:
+        def bytes = message.getBytes(UTF_8)
+        def off = SyslogReceiver.payloadOffset(bytes, 0, bytes.length)
+
+        expect:
+        new String(bytes, off, bytes.length - off, UTF_8) == payload
+
+        where:
+        message                                                                             || payload
+        "<190>Oct 18 12:00:00 web-1 nginx: $LINE"                                           || LINE
+        "<165>1 2018-05-09T16:00:39Z web-1 nginx - - - $LINE"                               || LINE
+        "<165>1 2018-05-09T16:00:39Z web-1 nginx 42 access [id@1 a=\"x\\]\"][id@2] $LINE"   || LINE
+        "<165>1 2018-05-09T16:00:39Z web-1 nginx - - - \uFEFF$LINE"                         || LINE
+        LINE                                                                                || LINE
+        '<190>no tag'                                                                       || 'no tag'
+        '<abc>'                                                                             || '<abc>'
+    }
+
+    def 'datagrams should be read as lines, filtered without their header'() {
+
+        given:
+        def filter = { byte[] buf, int off, int len -> buf[off] != (byte) 'x' } as LineFilter
+
+        when:
+        send "<190>Oct 18 12:00:00 web-1 nginx: $LINE"
+        send 'x rejected'
+        send "$LINE\n"
+        send ''
+
+        then:
+        readLines(receiver, 2, filter) == [LINE, LINE]
+        receiver.datagrams() == 4
+        receiver.dropped() == 0
+        receiver.lag() == 0
+        receiver.readLines(10, filter).empty
+    }
+
+    def 'datagrams should be dropped and counted once all buffers are pending'() {
+
+        given:
+        def small = SyslogReceiver.listen(new InetSocketAddress('127.0.0.1', 0), 1, 128 << 10)
+
+        when: 'the only buffer is pending'
+        send LINE, small.port
+        new PollingConditions(timeout: 5).eventually {
+            assert small.pendingBuffers() == 1
+        }
+        send 'dropped', small.port
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            assert small.datagrams() == 2
+        }
+        small.dropped() == 1
+        small.lag() == LINE.length() + 1
+
+        when: 'it was read'
+        def lines = small.readLines(10, LineFilter.ACCEPT_ALL)
+        send 'received', small.port
+
+        then:
+        lines == [LINE]
+        readLines(small, 1) == ['received']
+        small.dropped() == 1
+
+        cleanup:
+        small.close()
+    }
+
+    static List<String> readLines(SyslogReceiver receiver, int count, LineFilter filter = LineFilter.ACCEPT_ALL) {
+        List<String> lines = []
+        new PollingConditions(timeout: 5).eventually {
+            for (line in receiver.readLines(10, filter)) {
+                lines << line
+            }
+            assert lines.size() >= count
+        }
+        lines
+    }
+
+    void send(String message, int port = receiver.port) {
+        sender.send ByteBuffer.wrap(message.getBytes(UTF_8)), new InetSocketAddress('127.0.0.1', port)
+    }
+}
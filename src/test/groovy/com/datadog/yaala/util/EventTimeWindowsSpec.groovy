@@ -0,0 +1,78 @@
+package com.datadog.yaala.util
+
+import io.micrometer.core.instrument.MockClock
+import spock.lang.Specification
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS
+
+/**
+ * @author Nicolas Estrada.
+ */
+class EventTimeWindowsSpec extends Specification {
+
+    def clock = new MockClock()
+    def finalized = []
+    def windows = new EventTimeWindows(1000, 2000, clock, { start, total -> finalized << [start, total] })
+
+    def 'buckets should be finalized in order once the watermark passes them'() {
+
+        when: 'out of order events within the allowed lateness'
+        windows.add 10_500, 1
+        windows.add 11_200, 1
+        windows.add 10_900, 2
+        windows.add 12_100, 1
+
+        then:
+        windows.watermark() == 10_100
+        finalized == [[8000L, 0.0D], [9000L, 0.0D]]
+
+        when:
+        windows.add 13_000, 1
+
+        then:
+        windows.watermark() == 11_000
+        finalized.drop(2) == [[10_000L, 3.0D]]
+
+        when: 'an event is later than allowed'
+        def accepted = windows.add(10_999, 1)
+
+        then:
+        !accepted
+        windows.late() == 1
+        finalized.size() == 3
+    }
+
+    def 'empty buckets should keep being finalized once the input is idle'() {
+
+        given:
+        windows.add 10_500, 1
+
+        when: 'idle for less than the lateness'
+        clock.add 2000, MILLISECONDS
+        windows.advance()
+
+        then:
+        windows.watermark() == 8500
+
+        when:
+        clock.add 3000, MILLISECONDS
+        windows.advance()
+
+        then:
+        windows.watermark() == 11_500
+        finalized == [[8000L, 0.0D], [9000L, 0.0D], [10_000L, 1.0D]]
+    }
+
+    def 'a gap wider than the ring should only finalize its last empty bucket'() {
+
+        given:
+        windows.add 10_500, 1
+
+        when:
+        windows.add 1_000_500, 1
+
+        then:
+        finalized.collect { it[0] } == [8000L, 9000L, 10_000L, 11_000L, 996_000L, 997_000L]
+        finalized.sum { it[1] } == 1.0D
+    }
+}
@@ -0,0 +1,43 @@
+package com.datadog.yaala.util
+
+import spock.lang.Specification
+
+/**
+ * @author Nicolas Estrada.
+ */
+class EwmaSpec extends Specification {
+
+    def 'values should be scored against the baseline before being folded into it'() {
+
+        given:
+        def ewma = new Ewma(0.5D, 0.1D)
+
+        expect: 'the first value is the baseline'
+        ewma.update(10) == 0
+        ewma.mean() == 10
+
+        and: 'a flat series is scored against the floored deviation'
+        ewma.update(10) == 0
+        ewma.update(11) == 10
+
+        and:
+        ewma.mean() == 10.5D
+        ewma.stdDev() == 0.5D
+        ewma.count() == 3
+    }
+
+    def 'a steady noisy series should not deviate much from its baseline'() {
+
+        given:
+        def ewma = new Ewma(0.1D, 1)
+        def random = new Random(42)
+
+        when:
+        def scores = (1..1000).collect { ewma.update(100 + random.nextGaussian() * 10) }
+
+        then:
+        Math.abs(ewma.mean() - 100) < 5
+        Math.abs(ewma.stdDev() - 10) < 3
+        scores.drop(20).count { Math.abs(it) > 4 } <= 2
+    }
+}
@@ -0,0 +1,88 @@
+package com.datadog.yaala.util
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static com.datadog.yaala.util.Misc.hash64
+
+/**
+ * @author Nicolas Estrada.
+ */
+class HeavyHittersSpec extends Specification {
+
+    def 'the count-min sketch should never under-estimate frequencies'() {
+
+        given:
+        def sketch = new CountMinSketch(4, 64)
+        1000.times { sketch.add hash64("10.0.0.${it % 200}"), 1 }
+
+        expect:
+        (0..<200).every { sketch.estimate(hash64("10.0.0.$it")) >= 5 }
+        sketch.sizeInBytes() == 4 * 64 * 4
+
+        when:
+        sketch.decay()
+
+        then:
+        (0..<200).every { sketch.estimate(hash64("10.0.0.$it")) >= 2 }
+    }
+
+    @Unroll
+    def 'the heavy hitters should be found among a long tail of clients (sketch: #withSketch)'() {
+
+        given:
+        def hitters = new HeavyHitters(capacity, withSketch ? new CountMinSketch(4, 1024) : null)
+
+        when: 'three clients hammer us among 5000 one-off clients'
+        5000.times {
+            hitters.offer "10.0.${it >> 8}.${it & 0xff}"
+            if (it % 10 == 0) hitters.offer '1.1.1.1'
+            if (it % 20 == 0) hitters.offer '2.2.2.2'
+            if (it % 50 == 0) hitters.offer '3.3.3.3'
+        }
+
+        then:
+        hitters.top(3)*.key == ['1.1.1.1', '2.2.2.2', '3.3.3.3']
+        hitters.top(3).every { it.count - it.error <= 500 }
+        hitters.total() == 5000 + 500 + 250 + 100
+
+        where: 'without a sketch, only keys more frequent than total/capacity are guaranteed to be found'
+        withSketch | capacity
+        true       | 4
+        false      | 100
+    }
+
+    def 'decaying should forget about infrequent clients'() {
+
+        given:
+        def hitters = new HeavyHitters(4)
+        hitters.offer 'a'
+        4.times { hitters.offer 'b' }
+
+        when:
+        hitters.decay()
+
+        then:
+        hitters.top(10) == [[key: 'b', count: 2L, error: 0L]]
+        hitters.total() == 2
+    }
+
+    def 'several occurrences should be recorded at once'() {
+
+        given:
+        def hitters = new HeavyHitters(2, withSketch ? new CountMinSketch(4, 64) : null)
+
+        when:
+        hitters.offer 'a', 3
+        hitters.offer 'b', 2
+        hitters.offer 'c', 4
+
+        then:
+        hitters.top(1)*.key == ['c']
+        hitters.top(1)[0].count - hitters.top(1)[0].error == 4
+        hitters.total() == 9
+
+        where:
+        withSketch << [true, false]
+    }
+}
@@ -0,0 +1,52 @@
+package com.datadog.yaala.util
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+/**
+ * @author Nicolas Estrada.
+ */
+class HistogramSpec extends Specification {
+
+    @Unroll
+    def 'the value #v should fall into a bucket whose upper bound is within 25% of it'() {
+
+        expect:
+        def ub = Histogram.upperBound(Histogram.index(v))
+        ub >= v
+        ub <= Math.max(v as double, v * 1.25d)
+
+        where:
+        v << [0L, 1L, 3L, 4L, 7L, 8L, 9L, 100L, 1_000L, 123_456L, Long.MAX_VALUE >> 1]
+    }
+
+    def 'percentiles should be accurate and histograms mergeable'() {
+
+        given:
+        def h1 = new Histogram()
+        def h2 = new Histogram()
+        (1..500).each { h1.record it }
+        (501..1000).each { h2.record it }
+
+        expect:
+        h1.count() == 500
+        h1.max() == 500
+        h1.mean() == 250.5D
+
+        when:
+        h1.merge h2
+
+        then:
+        h1.count() == 1000
+        h1.percentile(0.5) >= 500 && h1.percentile(0.5) <= 625
+        h1.percentile(0.99) >= 990 && h1.percentile(0.99) <= 1000
+        h1.percentile(1) == 1000
+
+        when:
+        h1.clear()
+
+        then:
+        h1.count() == 0
+        h1.percentile(0.5) == 0
+    }
+}
@@ -0,0 +1,88 @@
+package com.datadog.yaala.util
+
+import io.micrometer.core.instrument.MockClock
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static com.datadog.yaala.util.Misc.hash64
+import static java.lang.Math.abs
+import static java.util.concurrent.TimeUnit.MILLISECONDS
+
+/**
+ * @author Nicolas Estrada.
+ */
+class HyperLogLogSpec extends Specification {
+
+    @Unroll
+    def 'the estimate of #n distinct keys should be within 3 standard errors with precision #p'() {
+
+        given:
+        def hll = new HyperLogLog(p)
+        n.times { hll.add hash64("10.${it >> 16}.${(it >> 8) & 0xff}.${it & 0xff}") }
+        // Duplicates shouldn't change anything
+        n.times { hll.add hash64("10.${it >> 16}.${(it >> 8) & 0xff}.${it & 0xff}") }
+
+        expect:
+        abs(hll.estimate() - n) <= 3 * n * 1.04 / Math.sqrt(1 << p)
+        hll.sizeInBytes() == 1 << p
+
+        where:
+        p  | n
+        8  | 1000
+        12 | 1000
+        12 | 100000
+    }
+
+    def 'sketches built separately should merge into the union'() {
+
+        given:
+        def a = new HyperLogLog(10)
+        def b = new HyperLogLog(10)
+        300.times { a.add hash64("a$it") }
+        300.times { b.add hash64("b$it") }
+        // Overlap
+        100.times { b.add hash64("a$it") }
+
+        when:
+        a.merge b
+
+        then:
+        abs(a.estimate() - 600) <= 600 * 0.1
+
+        when:
+        a.merge new HyperLogLog(8)
+
+        then:
+        thrown IllegalArgumentException
+    }
+
+    def 'the rolling sketch should only count the keys of the window'() {
+
+        given:
+        def clock = new MockClock()
+        def step = 1000L
+        def rolling = new RollingHyperLogLog(8, 3, clock, step)
+
+        when:
+        rolling.add hash64('a')
+        clock.add step, MILLISECONDS
+        rolling.add hash64('b')
+        clock.add step, MILLISECONDS
+        rolling.add hash64('c')
+
+        then:
+        rolling.estimate() == 3
+
+        when: 'the first step leaves the window'
+        clock.add step, MILLISECONDS
+
+        then:
+        rolling.estimate() == 2
+
+        when: 'way past the window'
+        clock.add step * 10, MILLISECONDS
+
+        then:
+        rolling.estimate() == 0
+    }
+}
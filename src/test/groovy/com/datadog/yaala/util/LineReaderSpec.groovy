@@ -0,0 +1,160 @@
+package com.datadog.yaala.util
+
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.nio.ByteBuffer
+import java.nio.channels.Pipe
+import java.nio.file.Files
+
+/**
+ * @author Nicolas Estrada.
+ */
+class LineReaderSpec extends Specification {
+
+    def file = Files.createTempFile('access', '.log').toFile()
+
+    void cleanup() {
+        file.delete()
+    }
+
+    def 'it should only return complete lines while keeping track of the lag'() {
+
+        given:
+        file.text = 'line 1\nline 2\r\nline'
+        def reader = LineReader.open(file.toPath())
+
+        expect:
+        reader.lag() == 19
+
+        when:
+        def lines = reader.readLines(1)
+
+        then:
+        lines == ['line 1']
+        reader.position() == 7
+        reader.lag() == 12
+
+        when: 'the last line has not been fully written yet'
+        lines = reader.readLines(10)
+
+        then:
+        lines == ['line 2']
+        reader.lag() == 4
+
+        when:
+        file << ' 3\n'
+
+        then:
+        reader.readLines(10) == ['line 3']
+        reader.lag() == 0
+        reader.readLines(10) == []
+
+        cleanup:
+        reader.close()
+    }
+
+    def 'lines larger than the buffer should be read entirely'() {
+
+        given:
+        def longLine = 'x' * (200 << 10)
+        file.text = "${longLine}\nshort\n"
+        def reader = LineReader.open(file.toPath())
+
+        expect:
+        reader.readLines(10) == [longLine, 'short']
+        reader.lag() == 0
+
+        cleanup:
+        reader.close()
+    }
+
+    def 'lines rejected by the filter should only be counted'() {
+
+        given:
+        file.text = (1..10).collect { "line $it" }.join('\n') + '\n'
+        def reader = LineReader.open(file.toPath())
+        LineFilter evenOnly = { byte[] buf, int off, int len -> (buf[off + len - 1] - ('0' as char)) % 2 == 0 }
+
+        when:
+        def lines = reader.readLines(4, evenOnly)
+
+        then: 'skipped lines count towards the batch size'
+        lines == ['line 2', 'line 4']
+        reader.skippedLines() == 2
+
+        when:
+        lines = reader.readLines(100, evenOnly)
+
+        then:
+        lines == ['line 6', 'line 8', 'line 10']
+        reader.skippedLines() == 3
+        reader.lag() == 0
+
+        cleanup:
+        reader.close()
+    }
+
+    def 'streams should be read without blocking until they are closed'() {
+
+        given:
+        def pipe = Pipe.open()
+        def reader = LineReader.stream(pipe.source())
+        def conditions = new PollingConditions(timeout: 5)
+
+        expect: 'nothing was written yet'
+        reader.readLines(10) == []
+        !reader.exhausted()
+
+        when:
+        pipe.sink().write(ByteBuffer.wrap('line 1\nline 2\nli'.bytes))
+
+        then:
+        conditions.eventually {
+            assert reader.readLines(10) == ['line 1', 'line 2']
+        }
+        !reader.exhausted()
+
+        when:
+        pipe.sink().write(ByteBuffer.wrap('ne 3\n'.bytes))
+        pipe.sink().close()
+
+        then:
+        conditions.eventually {
+            assert reader.readLines(10) == ['line 3']
+        }
+        // The end of the stream may only be pumped after its last line
+        conditions.eventually {
+            assert reader.readLines(10) == [] && reader.exhausted()
+        }
+        reader.position() == 21
+        reader.lag() == 0
+
+        cleanup:
+        reader.close()
+    }
+
+    def 'the unterminated last line of a closed stream should still be read'() {
+
+        given:
+        def pipe = Pipe.open()
+        def reader = LineReader.stream(pipe.source())
+        def lines = []
+
+        when:
+        pipe.sink().write(ByteBuffer.wrap('a\r\nb\rc'.bytes))
+        pipe.sink().close()
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            lines.addAll reader.readLines(10)
+            assert lines == ['a', 'b\rc']
+            assert reader.exhausted()
+        }
+        reader.readLines(10) == []
+        reader.position() == 6
+
+        cleanup:
+        reader.close()
+    }
+}
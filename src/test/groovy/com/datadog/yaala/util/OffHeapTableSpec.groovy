@@ -0,0 +1,103 @@
+package com.datadog.yaala.util
+
+import spock.lang.Specification
+
+/**
+ * @author Nicolas Estrada.
+ */
+class OffHeapTableSpec extends Specification {
+
+    def table = new OffHeapTable(4, 64, 2)
+
+    def 'keys should be inserted once and counted in their own slots'() {
+
+        when:
+        def a = table.slot('10.0.0.1')
+        table.add a, 0, 3
+        table.add a, 1, 100
+        table.add table.slot('10.0.0.1'), 0, 2
+        def b = table.slot('10.0.0.2')
+        table.add b, 0, 1
+
+        then:
+        a != b
+        table.size() == 2
+        table.find('10.0.0.1') == a
+        table.find('10.0.0.3') == -1
+        table.key(a) == '10.0.0.1'
+        table.get(a, 0) == 5
+        table.get(a, 1) == 100
+        table.get(b, 0) == 1
+        table.get(b, 1) == 0
+    }
+
+    def 'non ASCII keys should be stored wide'() {
+
+        when:
+        def slot = table.slot('clé')
+        table.add slot, 0, 1
+
+        then:
+        table.key(slot) == 'clé'
+        table.find('cle') == -1
+        table.find(new StringBuilder('clé')) == slot
+    }
+
+    def 'new keys should be rejected once the table or its arena is full'() {
+
+        when:
+        (1..4).each { table.slot("key-$it") }
+
+        then:
+        table.size() == 4
+        table.slot('key-5') == -1
+        table.rejected() == 1
+        table.slot('key-1') >= 0
+
+        when: 'the arena is full'
+        def small = new OffHeapTable(8, 10, 1)
+
+        then:
+        small.slot('0123456789') >= 0
+        small.slot('a') == -1
+        small.rejected() == 1
+        small.memoryBytes() == 16 * 24 + 10
+    }
+
+    def 'top keys should be found by decreasing counter'() {
+
+        given:
+        def big = new OffHeapTable(1000, 16000, 2)
+        (1..1000).each { big.add big.slot("client-$it"), 1, (it * 7919) % 1000 }
+
+        when:
+        def top = big.top(5, 1).collect { big.key(it) }
+
+        then:
+        top == (1..1000).toList()
+          .sort { -((it * 7919) % 1000) }
+          .take(5)
+          .collect { "client-$it" as String }
+        big.top(0, 1).length == 0
+        table.top(3, 0).length == 0
+    }
+
+    def 'snapshots should be independent copies'() {
+
+        given:
+        def slot = table.slot('a')
+        table.add slot, 0, 1
+
+        when:
+        def snapshot = table.snapshot()
+        table.add slot, 0, 1
+        table.slot('b')
+
+        then:
+        snapshot.size() == 1
+        snapshot.get(slot, 0) == 1
+        snapshot.key(slot) == 'a'
+        snapshot.find('b') == -1
+        table.get(slot, 0) == 2
+    }
+}
@@ -0,0 +1,55 @@
+package com.datadog.yaala.util
+
+import spock.lang.Specification
+
+/**
+ * @author Nicolas Estrada.
+ */
+class SpscQueueSpec extends Specification {
+
+    def 'the queue should be bounded and FIFO'() {
+
+        given:
+        def queue = new SpscQueue<Integer>(3)
+
+        expect: 'the capacity is rounded up to a power of 2'
+        queue.capacity() == 4
+        (1..4).every { queue.offer(it) }
+        !queue.offer(5)
+        queue.size() == 4
+
+        and:
+        queue.poll() == 1
+        queue.offer(5)
+        (1..4).collect { queue.poll() } == [2, 3, 4, 5]
+        queue.poll() == null
+        queue.size() == 0
+    }
+
+    def 'elements should be handed over in order from a producer thread to a consumer thread'() {
+
+        given:
+        def queue = new SpscQueue<Integer>(64)
+        def n = 100_000
+        def received = new ArrayList<Integer>(n)
+
+        when:
+        def producer = Thread.start {
+            for (int i = 0; i < n; i++) {
+                while (!queue.offer(i)) {
+                    Thread.onSpinWait()
+                }
+            }
+        }
+        while (received.size() < n) {
+            def e = queue.poll()
+            if (e != null) {
+                received << e
+            }
+        }
+        producer.join()
+
+        then:
+        received == (0..<n).toList()
+    }
+}
@@ -0,0 +1,87 @@
+package com.datadog.yaala.util
+
+import spock.lang.Specification
+
+/**
+ * @author Nicolas Estrada.
+ */
+class StepHistorySpec extends Specification {
+
+    def history = new StepHistory(4)
+
+    def 'values should be added to the current step, from the oldest to the newest'() {
+
+        when:
+        history.advance 10
+        history.add 1
+        history.add 2
+        history.advance 11
+        history.add 5
+
+        then:
+        (0..3).collect { history.get(it) } == [0f, 0f, 3f, 5f]
+
+        when: 'steps without any data are zeroed'
+        history.advance 13
+        history.add 1
+
+        then:
+        (0..3).collect { history.get(it) } == [3f, 5f, 0f, 1f]
+
+        when: 'the whole history has elapsed'
+        history.advance 100
+
+        then:
+        (0..3).collect { history.get(it) } == [0f, 0f, 0f, 0f]
+    }
+
+    def 'histories should be absorbed aligned on their current step'() {
+
+        given:
+        def other = new StepHistory(2)
+        history.advance 1
+        other.advance 1
+        history.add 1
+        other.add 2
+        history.advance 2
+        other.advance 2
+        other.add 3
+
+        when:
+        history.absorb other
+
+        then:
+        (0..3).collect { history.get(it) } == [0f, 0f, 3f, 3f]
+    }
+
+    def 'coarsened histories should sum pairs of steps, and be read as means per step'() {
+
+        given:
+        (0..3).each { i ->
+            history.advance start + i
+            history.add i + 1
+        }
+
+        when:
+        history.coarsen()
+
+        then:
+        history.capacity() == 2
+        history.stepsPerPoint() == 2
+        (0..1).collect { history.get(it) } == coarse
+
+        when: 'the next pair of steps is recorded'
+        history.advance start + 4
+        history.add 2
+        history.advance start + 5
+        history.add 4
+
+        then:
+        (0..1).collect { history.get(it) } == next
+
+        where:
+        start || coarse       | next
+        10    || [1.5f, 3.5f] | [3.5f, 3f]
+        11    || [2.5f, 2f]   | [3f, 2f]
+    }
+}